@@ -86,41 +86,26 @@ public class CellSpacePartition<T extends Entity> {
   
     public ArrayList<T> getNeighborList(PVector target, float queryRadius) {
         ArrayList<T> neighbors = new ArrayList<T>();
+        float radiusSq = queryRadius * queryRadius;
     
-        // Find the coordinates of the region of interest's corners. This will
-        // depend on the wrap mode.
-        float left = target.x - queryRadius;
-        float top = target.y - queryRadius;
-        float right = target.x + queryRadius;
-        float bottom = target.y + queryRadius;
-    
-        // Rectify the corner coordinates if we are not in wrap mode.
-        if (!wrapMode) {
-            left = Math.max(0.0f, left);
-            top = Math.max(0.0f, top);
-            right = Math.min(spaceWidth - 1, right);
-            bottom = Math.min(spaceHeight - 1, bottom);
-        }
-    
-        // Turn coordinates into x, y indices.
-        int leftIndex = (int) (Math.floor(left / cellWidth));
-        int topIndex = (int) (Math.floor(top / cellHeight));
-        int rightIndex = (int) (Math.floor(right / cellWidth));
-        int bottomIndex = (int) (Math.floor(bottom / cellHeight));
+        // Find the cell range of the region of interest. This will depend on
+        // the wrap mode.
+        int leftIndex = columnIndex(target.x - queryRadius);
+        int topIndex = rowIndex(target.y - queryRadius);
+        int rightIndex = columnIndex(target.x + queryRadius);
+        int bottomIndex = rowIndex(target.y + queryRadius);
     
         for (int rowIndex = topIndex; rowIndex <= bottomIndex; ++rowIndex) {
+            float offsetY = wrapOffset(rowIndex, numberCellsY, spaceHeight) - target.y;
             for (int colIndex = leftIndex; colIndex <= rightIndex; ++colIndex) {
-                int index = rowColumnToIndex(rowIndex, colIndex);
-                Cell<T> cell = cells.get(index);
-                if (!cell.members.isEmpty()) {
-                    for (T member : cell.members) {
-                        PVector point = !wrapMode ? member.getPosition() : 
-                            translateWrappedPoint(member.getPosition(), 
-                                                  rowIndex, colIndex);
-                        float distance = PVector.dist(point, target);
-                        if (distance < queryRadius) {
-                            neighbors.add(member);
-                        }
+                float offsetX = wrapOffset(colIndex, numberCellsX, spaceWidth) - target.x;
+                Cell<T> cell = cells.get(rowColumnToIndex(rowIndex, colIndex));
+                for (T member : cell.members) {
+                    PVector point = member.getPosition();
+                    float dx = point.x + offsetX;
+                    float dy = point.y + offsetY;
+                    if (dx * dx + dy * dy < radiusSq) {
+                        neighbors.add(member);
                     }
                 }
             }
@@ -128,6 +113,43 @@ public class CellSpacePartition<T extends Entity> {
     
         return neighbors;
     }
+
+    /**
+     * Calls a visitor for every entity within a radius of a point. Nothing
+     * is allocated, distances are compared squared and the visitor may end
+     * the query early.
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param queryRadius the radius of the query
+     * @param visitor the callback that receives each entity found
+     */
+    public void forEachNeighbor(float targetX, float targetY, float queryRadius,
+                                NeighborVisitor<? super T> visitor) {
+        float radiusSq = queryRadius * queryRadius;
+
+        int leftIndex = columnIndex(targetX - queryRadius);
+        int topIndex = rowIndex(targetY - queryRadius);
+        int rightIndex = columnIndex(targetX + queryRadius);
+        int bottomIndex = rowIndex(targetY + queryRadius);
+
+        for (int rowIndex = topIndex; rowIndex <= bottomIndex; ++rowIndex) {
+            float offsetY = wrapOffset(rowIndex, numberCellsY, spaceHeight) - targetY;
+            for (int colIndex = leftIndex; colIndex <= rightIndex; ++colIndex) {
+                float offsetX = wrapOffset(colIndex, numberCellsX, spaceWidth) - targetX;
+                Cell<T> cell = cells.get(rowColumnToIndex(rowIndex, colIndex));
+                for (T member : cell.members) {
+                    PVector point = member.getPosition();
+                    float dx = point.x + offsetX;
+                    float dy = point.y + offsetY;
+                    float distanceSq = dx * dx + dy * dy;
+                    if (distanceSq < radiusSq &&
+                        !visitor.visit(member, dx, dy, distanceSq)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
   
     public void setWrapMode(boolean useWrapping) {
         wrapMode = useWrapping;
@@ -189,20 +211,47 @@ public class CellSpacePartition<T extends Entity> {
         return index;
     }
   
-    private PVector translateWrappedPoint(PVector sourcePoint, int rowIndex, int colIndex) {
-        PVector translatedPoint = sourcePoint.get();
-    
-        if (rowIndex < 0) {
-            translatedPoint.y -= spaceHeight;
-        } else if (rowIndex >= numberCellsY) {
-            translatedPoint.y += spaceHeight;
+    /**
+     * Converts an x-coordinate into a column index. Outside of wrap mode the
+     * coordinate is first clamped to the space.
+     * @param x the x-coordinate to convert
+     * @return the column index, which may lie outside the grid in wrap mode
+     */
+    private int columnIndex(float x) {
+        if (!wrapMode) {
+            x = Math.min(spaceWidth - 1, Math.max(0.0f, x));
         }
-        if (colIndex < 0) {
-            translatedPoint.x -= spaceWidth;
-        } else if (colIndex >= numberCellsX) {
-            translatedPoint.x += spaceWidth;
+        return (int) (Math.floor(x / cellWidth));
+    }
+
+    /**
+     * Converts a y-coordinate into a row index. Outside of wrap mode the
+     * coordinate is first clamped to the space.
+     * @param y the y-coordinate to convert
+     * @return the row index, which may lie outside the grid in wrap mode
+     */
+    private int rowIndex(float y) {
+        if (!wrapMode) {
+            y = Math.min(spaceHeight - 1, Math.max(0.0f, y));
         }
-    
-        return translatedPoint;
+        return (int) (Math.floor(y / cellHeight));
+    }
+
+    /**
+     * Returns the amount by which a coordinate in a wrapped cell must be
+     * shifted so that it lies next to the query point. This is computed once
+     * per cell rather than once per member.
+     * @param index the unwrapped row or column index of the cell
+     * @param numberCells the number of cells along the axis
+     * @param spaceSize the size of the space along the axis
+     * @return the coordinate offset
+     */
+    private static float wrapOffset(int index, int numberCells, float spaceSize) {
+        if (index < 0) {
+            return -spaceSize;
+        } else if (index >= numberCells) {
+            return spaceSize;
+        }
+        return 0.0f;
     }
 }
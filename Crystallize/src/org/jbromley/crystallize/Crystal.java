@@ -24,6 +24,7 @@ public class Crystal {
 
     private Particle freeParticle;
     ArrayList<PVector> stickingParticles;
+    private TouchTest touchTest;
 
     private PApplet p;
 
@@ -33,6 +34,7 @@ public class Crystal {
         csp = new CellSpacePartition<Particle>(p.width, p.height, 128, 80);
         radius = MIN_RADIUS;
         stickingParticles = new ArrayList<PVector>();
+        touchTest = new TouchTest();
     }
 
     public void addParticle(Particle particle) {
@@ -49,18 +51,10 @@ public class Crystal {
     }
 
     public boolean isTouching(Particle particle) {
-        boolean touching = false;
-        ArrayList<Particle> neighbors = csp.getNeighborList(particle.getPosition(), QUERY_RADIUS);
-        
-        for (Particle crystalParticle : neighbors) {
-            PVector dp = PVector.sub(crystalParticle.getPosition(), particle.getPosition());
-            if (dp.mag() <= MIN_DISTANCE) {
-                touching = true;
-                break;
-            }
-        }
-        
-    return touching;
+        PVector position = particle.getPosition();
+        touchTest.touching = false;
+        csp.forEachNeighbor(position.x, position.y, QUERY_RADIUS, touchTest);
+        return touchTest.touching;
     }
 
     public int size() {
@@ -137,5 +131,21 @@ public class Crystal {
         
         return particle;
     }
-}
 
+
+    /**
+     * Neighbor visitor that stops at the first crystal particle close enough
+     * to touch the query point.
+     */
+    private static class TouchTest implements NeighborVisitor<Particle> {
+        public boolean touching;
+
+        public boolean visit(Particle member, float dx, float dy, float distanceSq) {
+            if (distanceSq <= MIN_DISTANCE * MIN_DISTANCE) {
+                touching = true;
+                return false;
+            }
+            return true;
+        }
+    }
+}
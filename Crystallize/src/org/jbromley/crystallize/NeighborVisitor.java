@@ -0,0 +1,24 @@
+// NeighborVisitor.java
+// Callback for neighbor queries on a cell space partition.
+package org.jbromley.crystallize;
+
+
+/**
+ * A callback that receives each entity found by a neighbor query. The
+ * offset is measured from the query point to the entity and already
+ * accounts for wrapping.
+ * @param <T> the type of entity visited
+ */
+public interface NeighborVisitor<T> {
+
+    /**
+     * Visits one entity within the query radius.
+     * @param member the entity
+     * @param dx the x-offset from the query point to the entity
+     * @param dy the y-offset from the query point to the entity
+     * @param distanceSq the squared distance from the query point
+     * @return true to continue the query, false to stop it
+     */
+    public boolean visit(T member, float dx, float dy, float distanceSq);
+
+}
@@ -0,0 +1,137 @@
+// BenchmarkWorld.java
+// Builds the worlds used by the benchmarks.
+package org.jbromley.flocking;
+
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.Random;
+
+
+/**
+ * Helpers that build the worlds the benchmarks run in. The world grows with
+ * the number of boids so that the average density stays that of the
+ * Flocking sketch, and boids are placed either uniformly or in a few tight
+ * clusters.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+final class BenchmarkWorld {
+
+    /** The world area per boid in the Flocking sketch. */
+    private static final float AREA_PER_BOID = 1920.0f * 1200.0f / 800.0f;
+    private static final float ASPECT = 1920.0f / 1200.0f;
+    private static final int CLUSTERS = 8;
+
+    private BenchmarkWorld() {
+    }
+
+    /**
+     * Returns the width of a world holding the given number of boids.
+     * @param boids the number of boids
+     * @return the world width
+     */
+    static float width(int boids) {
+        return (float) Math.sqrt(boids * AREA_PER_BOID * ASPECT);
+    }
+
+    /**
+     * Returns the height of a world holding the given number of boids.
+     * @param boids the number of boids
+     * @return the world height
+     */
+    static float height(int boids) {
+        return width(boids) / ASPECT;
+    }
+
+    /**
+     * Creates the octagonal arena of the Flocking sketch scaled to a world.
+     * @param width the world width
+     * @param height the world height
+     * @return the wall segments
+     */
+    static ArrayList<Line2D.Float> octagon(float width, float height) {
+        float d = width / 8.0f;
+        ArrayList<Line2D.Float> walls = new ArrayList<Line2D.Float>();
+        walls.add(new Line2D.Float(d, 1, width - d, 1));
+        walls.add(new Line2D.Float(width - d, 1, width - 1, d));
+        walls.add(new Line2D.Float(width - 1, d, width - 1, height - d));
+        walls.add(new Line2D.Float(width - 1, height - d, width - d, height - 1));
+        walls.add(new Line2D.Float(width - d, height - 1, d, height - 1));
+        walls.add(new Line2D.Float(d, height - 1, 1, height - d));
+        walls.add(new Line2D.Float(1, height - d, 1, d));
+        walls.add(new Line2D.Float(1, d, d, 1));
+        return walls;
+    }
+
+    /**
+     * Picks boid positions. When walls are given, positions outside them
+     * are drawn again, since the simulation would move every such boid to
+     * the center of the world and pile them into one cell.
+     * @param boids the number of positions to pick
+     * @param width the world width
+     * @param height the world height
+     * @param clustered true to pack the boids into a few clusters
+     * @param walls the field of the walls to stay inside, or null
+     * @param random the generator to draw from
+     * @return the positions, x and y interleaved
+     */
+    static float[] positions(int boids, float width, float height,
+                             boolean clustered, WallField walls,
+                             Random random) {
+        float[] positions = new float[2 * boids];
+        float[] centers = new float[2 * CLUSTERS];
+        for (int i = 0; i < CLUSTERS; ++i) {
+            centers[2 * i] = width * (0.25f + 0.5f * random.nextFloat());
+            centers[2 * i + 1] = height * (0.25f + 0.5f * random.nextFloat());
+        }
+        float spread = 0.02f * Math.min(width, height);
+
+        for (int i = 0; i < boids; ++i) {
+            float x;
+            float y;
+            do {
+                if (clustered) {
+                    int cluster = random.nextInt(CLUSTERS);
+                    x = centers[2 * cluster] + spread * (float) random.nextGaussian();
+                    y = centers[2 * cluster + 1] + spread * (float) random.nextGaussian();
+                } else {
+                    x = width * random.nextFloat();
+                    y = height * random.nextFloat();
+                }
+                x = Math.min(width - 2.0f, Math.max(2.0f, x));
+                y = Math.min(height - 2.0f, Math.max(2.0f, y));
+            } while (walls != null && !walls.contains(x, y));
+            positions[2 * i] = x;
+            positions[2 * i + 1] = y;
+        }
+        return positions;
+    }
+
+    /**
+     * Creates a flock simulation filled with boids.
+     * @param boids the number of boids
+     * @param clustered true to pack the boids into a few clusters
+     * @param walls true to contain the flock in walls, false to wrap
+     * @param seed the seed of the random number generator
+     * @return the simulation
+     */
+    static FlockSimulation simulation(int boids, boolean clustered,
+                                      boolean walls, long seed) {
+        float width = width(boids);
+        float height = height(boids);
+        Random random = new Random(seed);
+        FlockSimulation simulation =
+            new FlockSimulation(width, height, octagon(width, height),
+                                random, 1.0f / 60.0f);
+        WallField field = walls ? simulation.getWallField() : null;
+        float[] positions =
+            positions(boids, width, height, clustered, field, random);
+        for (int i = 0; i < boids; ++i) {
+            simulation.addBoid(positions[2 * i], positions[2 * i + 1],
+                               1.0f + 2.0f * random.nextFloat(), 0.10f);
+        }
+        simulation.setUseWalls(walls);
+        return simulation;
+    }
+
+}
@@ -0,0 +1,76 @@
+// FlockStepBenchmark.java
+// Benchmark of a full step of the flock simulation.
+package org.jbromley.flocking;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures one step of a headless {@link FlockSimulation}. The flock is
+ * rebuilt before every measurement iteration so a clustered start does not
+ * spread out into a uniform one over the course of the run.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FlockStepBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int boids;
+
+    @Param({"16", "32", "64"})
+    public float neighborhoodSize;
+
+    @Param({"uniform", "clustered"})
+    public String distribution;
+
+    @Param({"true", "false"})
+    public boolean walls;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private FlockSimulation simulation;
+    private float savedNeighborhoodSize;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        // The neighborhood size is shared by all boids.
+        savedNeighborhoodSize = Boid.getNeighborhoodSize();
+        Boid.setNeighborhoodSize(neighborhoodSize);
+        simulation = BenchmarkWorld.simulation(boids,
+                                               "clustered".equals(distribution),
+                                               walls, 42L);
+        simulation.setParallel(parallel);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        Boid.setNeighborhoodSize(savedNeighborhoodSize);
+    }
+
+    @Benchmark
+    public FlockSimulation step() {
+        simulation.step();
+        return simulation;
+    }
+
+}
@@ -0,0 +1,180 @@
+// SpatialIndexBenchmark.java
+// Benchmarks of the neighbor queries and updates of the spatial indexes.
+package org.jbromley.flocking;
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures single neighbor queries and entity updates on each kind of
+ * {@link SpatialIndex}, filled and sized the way the flock fills and sizes
+ * it. Each invocation works on the next boid in turn, so every boid of the
+ * world is eventually queried.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SpatialIndexBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int boids;
+
+    @Param({"16", "32", "64"})
+    public float neighborhoodSize;
+
+    @Param({"uniform", "clustered"})
+    public String distribution;
+
+    @Param({"false", "true"})
+    public boolean wrap;
+
+    @Param({"partition", "compact", "sparse"})
+    public String grid;
+
+    private BoidStore store;
+    private SpatialIndex index;
+    private IntList neighbors;
+    private CountingVisitor visitor;
+    private boolean incremental;
+    private int next;
+    private float shift;
+
+    /**
+     * Neighbor visitor that only counts the neighbors it sees.
+     */
+    private static class CountingVisitor implements NeighborVisitor {
+        public int count;
+
+        public boolean visit(int id, float dx, float dy, float distanceSq) {
+            ++count;
+            return true;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        float width = BenchmarkWorld.width(boids);
+        float height = BenchmarkWorld.height(boids);
+        Random random = new Random(42);
+        float[] positions =
+            BenchmarkWorld.positions(boids, width, height,
+                                     "clustered".equals(distribution),
+                                     null, random);
+
+        // Let a flock size the cells for this neighborhood, keeping the
+        // separation distance in the sketch's proportion so that the
+        // neighborhood is the query radius.
+        Boid.setNeighborhoodSize(neighborhoodSize);
+        Boid.setSeparationDistance(0.75f * neighborhoodSize);
+        FlockSimulation simulation =
+            new FlockSimulation(width, height,
+                                BenchmarkWorld.octagon(width, height),
+                                random, 1.0f / 60.0f);
+        for (int i = 0; i < boids; ++i) {
+            simulation.addBoid(positions[2 * i], positions[2 * i + 1], 2.0f, 0.1f);
+        }
+        if ("compact".equals(grid)) {
+            simulation.setGridKind(FlockSimulation.GridKind.COMPACT);
+        } else if ("sparse".equals(grid)) {
+            simulation.setGridKind(FlockSimulation.GridKind.SPARSE);
+        }
+        simulation.settleGrid();
+        store = simulation.getStore();
+        index = simulation.getIndex();
+        incremental = index instanceof CellSpacePartition;
+        index.setWrapMode(wrap);
+        index.rebuild();
+
+        neighbors = new IntList();
+        visitor = new CountingVisitor();
+        next = 0;
+        shift = 2.0f;
+    }
+
+    /**
+     * Returns the id of the boid to use for the next invocation.
+     * @return a boid id
+     */
+    private int nextBoid() {
+        int id = next;
+        if (++next == boids) {
+            next = 0;
+            shift = -shift;
+        }
+        return id;
+    }
+
+    @Benchmark
+    public IntList getNeighborListAllocating() {
+        int id = nextBoid();
+        return index.getNeighborList(store.px[id], store.py[id], neighborhoodSize);
+    }
+
+    @Benchmark
+    public int getNeighborList() {
+        int id = nextBoid();
+        index.getNeighborList(store.px[id], store.py[id], neighborhoodSize,
+                              neighbors);
+        return neighbors.size();
+    }
+
+    @Benchmark
+    public int forEachNeighbor() {
+        int id = nextBoid();
+        visitor.count = 0;
+        index.forEachNeighbor(store.px[id], store.py[id], neighborhoodSize,
+                              visitor);
+        return visitor.count;
+    }
+
+    /**
+     * Re-bins the whole flock, which the compact and sparse grids do once
+     * per step.
+     */
+    @Benchmark
+    public void rebuild() {
+        index.rebuild();
+    }
+
+    /**
+     * Moves one boid a few pixels and re-bins it. The direction flips on
+     * every pass over the flock, so the distribution does not drift. The
+     * compact and sparse grids only re-bin in a rebuild, so for them the
+     * whole flock is rebuilt once per pass, as the flock does once per
+     * step, and the time is the share of that rebuild per boid.
+     */
+    @Benchmark
+    public void updateEntity(Blackhole blackhole) {
+        int id = nextBoid();
+        float oldX = store.px[id];
+        float oldY = store.py[id];
+        store.px[id] = oldX + shift;
+        store.py[id] = oldY + shift;
+        if (incremental) {
+            index.updateEntity(id, oldX, oldY);
+        } else if (next == 0) {
+            index.rebuild();
+        }
+        blackhole.consume(store.px[id]);
+    }
+
+}
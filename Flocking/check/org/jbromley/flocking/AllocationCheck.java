@@ -0,0 +1,85 @@
+// AllocationCheck.java
+// Checks that the steady-state flock step allocates nothing.
+package org.jbromley.flocking;
+
+
+import java.lang.management.ManagementFactory;
+
+
+/**
+ * Checks that stepping a flock allocates nothing on the heap once it has
+ * settled. A flock is built for every kind of spatial index, with and
+ * without walls, and stepped until its grid has settled and the step has
+ * been compiled. The bytes allocated by the stepping thread are then
+ * counted with
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}
+ * over several windows of steps in a row. Only the sequential step is
+ * checked, since the counter covers a single thread.
+ * <p>
+ * The JIT compiler now and then charges a few bytes to the thread when it
+ * recompiles or deoptimizes part of the step, so a flock passes if any of
+ * its windows allocates nothing; a step that allocates shows in every
+ * window. The process exits with status 1 if any flock fails.
+ * <p>
+ * The arguments are the number of boids, the number of warm-up steps, the
+ * number of windows and the number of steps in a window, all optional.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public final class AllocationCheck {
+
+    private static final int DEFAULT_BOIDS = 2000;
+    private static final int DEFAULT_WARMUP_STEPS = 3000;
+    private static final int DEFAULT_WINDOWS = 4;
+    private static final int DEFAULT_WINDOW_STEPS = 1000;
+    private static final long SEED = 1L;
+
+    private AllocationCheck() {
+    }
+
+    public static void main(String[] args) {
+        int boids = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_BOIDS;
+        int warmup = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WARMUP_STEPS;
+        int windows = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_WINDOWS;
+        int steps = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_WINDOW_STEPS;
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("this JVM cannot count the bytes a thread allocates");
+            System.exit(1);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        boolean passed = true;
+        for (FlockSimulation.GridKind kind : FlockSimulation.GridKind.values()) {
+            for (boolean walls : new boolean[] {true, false}) {
+                FlockSimulation simulation = BenchmarkWorld.simulation(boids, false, walls, SEED);
+                simulation.setGridKind(kind);
+                for (int i = 0; i < warmup; ++i) {
+                    simulation.step();
+                }
+                long least = Long.MAX_VALUE;
+                long most = 0;
+                for (int window = 0; window < windows; ++window) {
+                    long before = threads.getThreadAllocatedBytes(thread);
+                    for (int i = 0; i < steps; ++i) {
+                        simulation.step();
+                    }
+                    long allocated = threads.getThreadAllocatedBytes(thread) - before;
+                    least = Math.min(least, allocated);
+                    most = Math.max(most, allocated);
+                }
+                System.out.println(String.format("%1$-9s %2$-6s %3$8d to %4$8d bytes per %5$d steps%6$s",
+                                                 kind.name().toLowerCase(),
+                                                 walls ? "walls" : "wrap", least, most, steps,
+                                                 least > 0 ? "  FAILED" : ""));
+                passed &= least == 0;
+            }
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+}
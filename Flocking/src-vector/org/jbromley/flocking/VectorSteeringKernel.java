@@ -0,0 +1,163 @@
+// VectorSteeringKernel.java
+// SIMD accumulation of the flocking sums with the Vector API.
+package org.jbromley.flocking;
+
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * This class accumulates the flocking sums with the incubating Vector
+ * API, testing and summing as many candidates at a time as the preferred
+ * vector shape of the machine holds: sixteen with AVX-512. The candidates
+ * of a run are loaded from the packed, cell-ordered state of the compact
+ * grid with contiguous vector loads, and the separation and neighborhood
+ * tests become lane masks on the sums. The last, partial vector of a run
+ * and the lane of the boid itself are masked out by lane index, so a run
+ * needs no scalar tail loop and no ids are compared.
+ * <p>
+ * Two things keep the kernel compiled to plain vector code on JDK 17:
+ * the loads use the packed state rather than gathering through the ids,
+ * since gathers are either not intrinsified or miscompiled on some
+ * builds, and all runs are swept by one flat loop, since vectors carried
+ * around a nested loop are boxed.
+ * <p>
+ * This class is built from its own source directory with Java 16 or
+ * later and needs <code>--add-modules jdk.incubator.vector</code> at run
+ * time. {@link FlockSimulation} loads it by name and falls back to the
+ * scalar path when it is missing or cannot be linked.
+ * <p>
+ * The lanes are folded into the sums in lane order rather than with
+ * <code>reduceLanes</code>, whose order is unspecified, so the results do
+ * not depend on whether the code has been compiled yet.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+class VectorSteeringKernel implements SteeringKernel {
+
+    /** The fewest lanes for which the kernel beats the scalar path. */
+    private static final int MIN_LANES = 4;
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    /** The index of each lane, as a float. */
+    private static final float[] LANE_INDEX = new float[FLOATS.length()];
+
+    static {
+        for (int i = 0; i < LANE_INDEX.length; ++i) {
+            LANE_INDEX[i] = i;
+        }
+    }
+
+    /**
+     * Creates the kernel.
+     * @throws UnsupportedOperationException if the machine has no vectors
+     *         wide enough to be worth using, or vectors wider than the
+     *         padding of the packed state
+     */
+    VectorSteeringKernel() {
+        if (FLOATS.length() > CompactGrid.PADDING) {
+            throw new UnsupportedOperationException(FLOATS.length() +
+                                                    " float lanes exceed the padding");
+        }
+        if (FLOATS.length() < MIN_LANES) {
+            throw new UnsupportedOperationException("only " + FLOATS.length() +
+                                                    " float lanes");
+        }
+    }
+
+    public void accumulate(CellRuns runs, Neighborhood sums) {
+        if (runs.count == 0) {
+            return;
+        }
+        float[] xs = runs.xs;
+        float[] ys = runs.ys;
+        float[] vxs = runs.vxs;
+        float[] vys = runs.vys;
+        int lanes = FLOATS.length();
+
+        FloatVector laneIndex = FloatVector.fromArray(FLOATS, LANE_INDEX, 0);
+        FloatVector zero = FloatVector.zero(FLOATS);
+        FloatVector separateX = zero;
+        FloatVector separateY = zero;
+        FloatVector velocityX = zero;
+        FloatVector velocityY = zero;
+        FloatVector offsetX = zero;
+        FloatVector offsetY = zero;
+        int count = 0;
+
+        int run = 0;
+        int i = runs.starts[0];
+        int end = runs.ends[0];
+        float cellX = runs.offsetsX[0];
+        float cellY = runs.offsetsY[0];
+        while (true) {
+            // Lanes past the end of the run belong to the next cell or the
+            // padding, and the boid itself is not its own neighbor.
+            int selfLane = runs.self - i;
+            float skipLane = selfLane >= 0 && selfLane < lanes ? selfLane : -1.0f;
+            VectorMask<Float> other =
+                laneIndex.compare(VectorOperators.LT, (float) Math.min(end - i, lanes))
+                         .and(laneIndex.compare(VectorOperators.NE, skipLane));
+
+            FloatVector dx = FloatVector.fromArray(FLOATS, xs, i).add(cellX);
+            FloatVector dy = FloatVector.fromArray(FLOATS, ys, i).add(cellY);
+            FloatVector distanceSq = dx.mul(dx).add(dy.mul(dy));
+
+            // Separation: offsets scaled by the inverse squared distance.
+            VectorMask<Float> close =
+                other.and(distanceSq.compare(VectorOperators.LT, sums.separationSq))
+                     .and(distanceSq.compare(VectorOperators.GT, 0.0f));
+            separateX = separateX.sub(dx.div(distanceSq), close);
+            separateY = separateY.sub(dy.div(distanceSq), close);
+
+            // Alignment and cohesion: the velocity and offset sums.
+            VectorMask<Float> near =
+                other.and(distanceSq.compare(VectorOperators.LT, sums.neighborhoodSq));
+            velocityX = velocityX.add(FloatVector.fromArray(FLOATS, vxs, i), near);
+            velocityY = velocityY.add(FloatVector.fromArray(FLOATS, vys, i), near);
+            offsetX = offsetX.add(dx, near);
+            offsetY = offsetY.add(dy, near);
+            count += near.trueCount();
+
+            i += lanes;
+            if (i >= end) {
+                if (++run == runs.count) {
+                    break;
+                }
+                i = runs.starts[run];
+                end = runs.ends[run];
+                cellX = runs.offsetsX[run];
+                cellY = runs.offsetsY[run];
+            }
+        }
+
+        if (runs.lanes.length < lanes) {
+            runs.lanes = new float[lanes];
+        }
+        sums.separateX += sumLanes(separateX, runs.lanes);
+        sums.separateY += sumLanes(separateY, runs.lanes);
+        sums.velocityX += sumLanes(velocityX, runs.lanes);
+        sums.velocityY += sumLanes(velocityY, runs.lanes);
+        sums.offsetX += sumLanes(offsetX, runs.lanes);
+        sums.offsetY += sumLanes(offsetY, runs.lanes);
+        sums.count += count;
+    }
+
+    /**
+     * Adds up the lanes of a vector from the first to the last.
+     * @param vector the vector to sum
+     * @param scratch an array with room for every lane
+     * @return the sum of the lanes
+     */
+    private static float sumLanes(FloatVector vector, float[] scratch) {
+        vector.intoArray(scratch, 0);
+        float sum = 0.0f;
+        for (int i = 0; i < FLOATS.length(); ++i) {
+            sum += scratch[i];
+        }
+        return sum;
+    }
+
+}
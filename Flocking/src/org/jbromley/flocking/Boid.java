@@ -3,455 +3,385 @@
 package org.jbromley.flocking;
 
 
-import processing.core.PApplet;
-import processing.core.PMatrix2D;
 import processing.core.PVector;
-import java.awt.geom.Line2D;
-import java.util.ArrayList;
 
 
 /**
- * This class represents a "boid". It represents the location and
- * position of a boid and also contains the steering behaviors.
+ * This class represents a "boid". It is a thin view onto one slot of a
+ * {@link BoidStore}, which holds the location and velocity of the boid,
+ * and it also contains the steering behaviors. The steering behaviors
+ * work on primitive locals and write straight into the store, so a step
+ * of the flock does not allocate.
  * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
  */
 public class Boid implements Entity {
-        
-    private static final int THROB_PERIOD = 250;
-    private static final float WANDER_RADIUS = 1.2f;
+
+    static final int THROB_PERIOD = 250;
+    static final float START_RADIUS = 4.0f;
+    static final float WANDER_RADIUS = 1.2f;
     private static final float WANDER_DISTANCE = 2.0f;
     private static final float WANDER_JITTER = 80.0f;
-        
-    private Flocking p;
+    private static final float FEELER_LENGTH = 8.0f;
+    private static final float FEELER_COS_1 = (float) Math.cos(Math.PI / 2.0 * 3.5);
+    private static final float FEELER_SIN_1 = (float) Math.sin(Math.PI / 2.0 * 3.5);
+    private static final float FEELER_COS_2 = (float) Math.cos(Math.PI / 2.0 * 0.5);
+    private static final float FEELER_SIN_2 = (float) Math.sin(Math.PI / 2.0 * 0.5);
+    private static final float WALL_WEIGHT = 1.5f;
+    /** How far a topological neighbor may be, in neighborhood sizes. */
+    private static final float TOPOLOGICAL_RANGE = 2.0f;
+
+    private FlockSimulation sim;
+    private BoidStore s;
+    private int id;
 
     private static float alignment = 1.5f;
     private static float cohesion = 1.0f;
     private static float separation = 1.5f;
     private static float neighborhoodSize = 32.0f;
     private static float separationDistance = 24.0f;
+    private static int topologicalNeighbors = 0;
 
-    private PVector position;
-    private PVector velocity;
-    private PVector accel;
-    private PMatrix2D feelerMatrix1;
-    private PMatrix2D feelerMatrix2;
-    private PMatrix2D coordinateMatrix;
-
-    private PVector wanderTarget;
-        
-    private PVector feelers[] = new PVector[3];
-        
-    private float startRadius;
-    private float radius;
-    private float maxForce;    // Maximum steering force
-    private float maxSpeed;    // Maximum speed
-    private int color;
-    private int throbOffset;
-        
     /**
-     * This class is a value object for intersection test results.
-     * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+     * Creates a view onto a boid that already exists in a simulation.
+     * @param simulation the simulation holding the boid's state
+     * @param id the id of the boid within the simulation's store
      */
-    private static class Intersection {
-        public PVector point;
-        public float distance;
+    Boid(FlockSimulation simulation, int id) {
+        sim = simulation;
+        s = simulation.getStore();
+        this.id = id;
+    }
 
-        public Intersection(PVector point, float distance) {
-            this.point = point;
-            this.distance = distance;
-        }
+    /**
+     * Returns the id of this boid within its store.
+     * @return the boid id
+     */
+    public int getId() {
+        return id;
     }
 
     /**
-     * Create a single boid.
-     * @param pos the initial position of the boid on the screen
-     * @param ms the maximum speed for the boid
-     * @param mf the maximum force that can be applied to a boid
-     * @param applet the parent PApplet
+     * Moves this view to the boid's new id after the store is reordered.
+     * @param newId the new id of the boid
      */
-    public Boid(PVector pos, float ms, float mf, Flocking applet) {
-        p = applet;
-        position = pos.get();
-        velocity = new PVector(p.random(-1, 1), p.random(-1, 1));
-        accel = new PVector(0,0);
-        startRadius = 4.0f;
-        maxSpeed = ms;
-        maxForce = mf;
-        color = p.color(p.random(0, 256), p.random(0, 256), p.random(0, 256));
-        throbOffset = (int) p.random(0, THROB_PERIOD);
-
-        float theta = p.random(1.0f) * PApplet.TWO_PI;
-        wanderTarget = new PVector(WANDER_RADIUS * p.cos(theta),
-                                   WANDER_RADIUS * p.sin(theta));
-        feelerMatrix1 = new PMatrix2D();
-        feelerMatrix1.rotate(PApplet.HALF_PI * 3.5f);
-        feelerMatrix2 = new PMatrix2D();
-        feelerMatrix2.rotate(PApplet.HALF_PI * 0.5f);
-                
-        coordinateMatrix = new PMatrix2D();
+    void setId(int newId) {
+        id = newId;
     }
-        
+
     public PVector getPosition() {
-        return position;
+        return new PVector(s.px[id], s.py[id]);
     }
-        
+
     public void setPosition(PVector newPosition) {
-        position = newPosition;
+        s.px[id] = newPosition.x;
+        s.py[id] = newPosition.y;
     }
-        
+
     /**
      * Advances the state of the boid through a single step
-     * @param boids a list of all Boids
+     * @param boids the partition holding all Boids
+     * @param neighbors the scratch accumulator for the neighbor sums
      */
-    public void update(CellSpacePartition<Boid> boids) {
-        PVector oldPosition = position.get();
-        flock(boids);
-        updateMotion();
-
-//        ArrayList<Boid> neighbors = boids.getNeighborList(position, 
-//                  getNeighborhoodSize());
-//        enforceNoOverlap(neighbors);
-                
-        boids.updateEntity(this, oldPosition);
-        render();
-    }
+    void update(SpatialIndex boids, Neighborhood neighbors) {
+        Profiler.Timer timer = neighbors.timerFor(id);
+        float oldX = s.px[id];
+        float oldY = s.py[id];
+        flock(boids, neighbors, timer);
+        updateMotion(s.px, s.py, s.vx, s.vy);
+        if (timer != null) {
+            timer.lap(Profiler.Phase.MOTION);
+        }
 
-    /**
-     * Calculates and weights the forces from all steering forces.
-     * @param boids a list of all boids
-     */
-    private void flock(CellSpacePartition<Boid> boids) {
-        ArrayList<Boid> neighbors = boids.getNeighborList(position, getNeighborhoodSize());
-        PVector separation = separate(boids);
-        PVector alignment = align(neighbors);
-        PVector cohesion = cohesion(neighbors);
-        PVector wander = wander();
-        PVector avoidWalls = avoidWalls();
-                
-        // Weight the steering forces.
-        alignment.mult(getAlignment());
-        cohesion.mult(getCohesion());
-        separation.mult(getSeparation());
-        avoidWalls.mult(1.5f);
-
-        // Add the force vectors to acceleration.
-        accel.add(separation);
-        accel.add(alignment);
-        accel.add(cohesion);
-        accel.add(wander);
-        if (p.getUseWalls()) {
-            accel.add(avoidWalls);
+        boids.updateEntity(id, oldX, oldY);
+        if (timer != null) {
+            timer.lap(Profiler.Phase.REBIN);
         }
     }
 
     /**
-     * Updates the position of the boids based on applied steering forces.
+     * Computes the next state of the boid from the current state of the
+     * flock without modifying the current position or velocity of any
+     * boid. The result is written to the store's next-step buffers, so
+     * any number of boids can be stepped concurrently.
+     * @param boids the partition holding all boids
+     * @param neighbors the scratch accumulator for the neighbor sums
      */
-    private void updateMotion() {
-        // Make boid "throb".
-        radius = startRadius * (1.0f + 0.5f * p.sin(throbOffset + (float) p.millis() / THROB_PERIOD));
-                
-        // Calculate motion for this step.
-        velocity.add(accel);
-        velocity.limit(maxSpeed);
-                
-        position.add(velocity);
-
-        if (!p.getUseWalls()){
-            checkBoundaries();
+    void updateNext(SpatialIndex boids, Neighborhood neighbors) {
+        Profiler.Timer timer = neighbors.timerFor(id);
+        flock(boids, neighbors, timer);
+        updateMotion(s.nextPx, s.nextPy, s.nextVx, s.nextVy);
+        if (timer != null) {
+            timer.lap(Profiler.Phase.MOTION);
         }
-
-        // Reset the acceleration for the next step.
-        accel.mult(0);
     }
 
     /**
-     * Calculates a steering vector towards a target. The boid may optionally
-     * brake as it approaches the target.
-     * @param target the point toward which the boid should steer
-     * @param slowdown if true, apply the braking steering behavior on arriving
-     * @return the steering vector needed to move towards the target 
+     * Calculates and weights the forces from all steering forces. A single
+     * neighbor query covering both the separation distance and the
+     * neighborhood feeds the separation, alignment and cohesion sums, which
+     * are accumulated with squared distances in one pass. In topological
+     * mode the query instead finds a fixed number of nearest neighbors and
+     * all three behaviors are computed from those alone, which bounds the
+     * work per boid in dense parts of the flock. If the simulation has a
+     * steering kernel and uses a compact grid, the sums are accumulated by
+     * the kernel a cell at a time instead of a neighbor at a time. With
+     * far-field sums, a space partition adds the cells wholly inside the
+     * neighborhood from its per-cell sums.
+     * @param boids the partition holding all boids
+     * @param neighbors the scratch accumulator for the neighbor sums
+     * @param timer the timer for the phases, or null if they are not timed
      */
-    private PVector steer(PVector target, boolean slowdown) {
-        PVector steer;
-        PVector desired = PVector.sub(target, position);
-        float d = desired.mag();
-                
-        // If the distance is greater than 0, calculate the steering force
-        // (otherwise return zero vector).
-        if (d > 0) {
-            desired.normalize();
-
-            // Two options for desired vector magnitude (1 -- based on 
-            // distance, 2 -- maxSpeed).
-            if (slowdown && d < 100.0f) {
-                desired.mult(maxSpeed * (d / 100.0f)); 
-            } else {
-                desired.mult(maxSpeed);
-            }
-            // Steering = Desired minus Velocity
-            steer = PVector.sub(desired, velocity);
-            steer.limit(maxForce);
+    private void flock(SpatialIndex boids, Neighborhood neighbors,
+                       Profiler.Timer timer) {
+        if (timer != null) {
+            timer.start();
+        }
+        float neighborhood = getNeighborhoodSize();
+        float separationRadius = getSeparationDistance();
+        if (topologicalNeighbors > 0) {
+            // Topological rule: the sums only cover the nearest neighbors,
+            // however close together the flock is packed.
+            float range = TOPOLOGICAL_RANGE * neighborhood;
+            neighbors.reset(s, id, range, separationRadius);
+            NearestHeap nearest = neighbors.nearest;
+            nearest.reset(topologicalNeighbors, id);
+            boids.findNearest(s.px[id], s.py[id], range, nearest);
+            nearest.forEach(neighbors);
+        } else if (sim.getSteeringKernel() != null && boids instanceof CompactGrid) {
+            // The kernel sweeps whole cells of the compact grid at once.
+            neighbors.reset(s, id, neighborhood, separationRadius);
+            CellRuns runs = neighbors.runs;
+            ((CompactGrid) boids).findCellRuns(id, s.px[id], s.py[id], getQueryRadius(), runs);
+            sim.getSteeringKernel().accumulate(runs, neighbors);
+        } else if (sim.getUseFarField() && boids instanceof CellSpacePartition) {
+            neighbors.reset(s, id, neighborhood, separationRadius);
+            ((CellSpacePartition) boids).accumulateNeighborhood(id, getQueryRadius(), neighbors);
         } else {
-            steer = new PVector(0,0);
+            neighbors.reset(s, id, neighborhood, separationRadius);
+            boids.forEachNeighbor(s.px[id], s.py[id], getQueryRadius(), neighbors);
         }
-                
-        return steer;
-    }
-        
-    /**
-     * Avoids walls in the world.
-     */
-    private PVector avoidWalls() {
-        double distClosest = Double.MAX_VALUE;
-        Line2D.Float closestWall = null;
-        PVector touchingFeeler = null;
-        PVector closestPoint = new PVector();
-        PVector steer = new PVector();
-                
-        createFeelers();
-                
-        for (PVector feeler : feelers) {
-            for (Line2D.Float wall : p.getWalls()) {
-                Intersection intersection = null;
-                if ((intersection = intersectsLine(wall, position, feeler)) != null) {
-                    if (intersection.distance < distClosest) {
-                        closestWall = wall;
-                        touchingFeeler = feeler;
-                        distClosest = intersection.distance;
-                        closestPoint = intersection.point;
-                    }
-                }
-            }
+        if (timer != null) {
+            timer.lap(Profiler.Phase.NEIGHBORS);
         }
-                
-        if (closestWall != null) {
-            PVector overshoot = PVector.sub(touchingFeeler, closestPoint);
-            PVector temp = new PVector(-(closestWall.y2 - closestWall.y1), 
-                                       (closestWall.x2 - closestWall.x1));
-            temp.normalize();
-            steer = PVector.mult(temp, overshoot.mag());
-            //steer.limit(maxForce);
+
+        float maxSpeed = s.maxSpeed[id];
+        steerToward(neighbors.separateX, neighbors.separateY, maxSpeed,
+                    getSeparation());
+        steerToward(neighbors.velocityX, neighbors.velocityY, maxSpeed,
+                    getAlignment());
+        if (neighbors.count > 0) {
+            // Steer towards the average location.
+            steerToward(neighbors.offsetX / neighbors.count,
+                        neighbors.offsetY / neighbors.count,
+                        maxSpeed, getCohesion());
         }
-                
-        return steer;
-    }
-        
-    private Intersection intersectsLine(Line2D.Float line, 
-					PVector point1, PVector point2) {
-        float rNumerator = (point1.y - line.y1) * (line.x2 - line.x1) -
-            (point1.x - line.x1) * (line.y2 - line.y1);
-        float sNumerator = (point1.y - line.y1) * (point2.x - point1.x) -
-            (point1.x - line.x1) * (point2.y - point1.y);
-        float det = (point2.x - point1.x) * (line.y2 - line.y1) -
-            (point2.y - point1.y) * (line.x2 - line.x1);
-                
-        if (det == 0.0f) {
-            return null;
+        wander();
+        if (timer != null) {
+            timer.lap(Profiler.Phase.STEERING);
         }
-                
-        float r = rNumerator / det;
-        float s = sNumerator / det;
-        if (0.0f < r && r < 1.0f && 0.0f < s && s < 1.0f) {
-            PVector point = 
-		PVector.add(point1, PVector.mult(PVector.sub(point2, point1), 
-						 (float) r));
-            float distance = PVector.dist(point1, point);
-            return new Intersection(point, distance);
+        if (sim.getUseWalls()) {
+            avoidWalls();
+            if (timer != null) {
+                timer.lap(Profiler.Phase.WALLS);
+            }
         }
-                
-        return null;
     }
-        
-    private void createFeelers() {
-        final float FEELER_LENGTH = 8.0f;
-                
-        feelers[0] = PVector.add(position, PVector.mult(velocity, FEELER_LENGTH));
-                
-        PVector temp = new PVector();
-        feelerMatrix1.mult(velocity, temp);
-        feelers[1] = PVector.add(position, PVector.mult(temp, FEELER_LENGTH / 2.0f));
-                
-        feelerMatrix2.mult(velocity, temp);
-        feelers[2] = PVector.add(position, PVector.mult(temp, FEELER_LENGTH / 2.0f));
-    }
-        
-    /**
-     * Adds a small amount of random wandering to a boid's path.
-     */
-    private PVector wander() {
-        float jitter = WANDER_JITTER * (1.0f / p.frameRate);
-        wanderTarget.add(new PVector(p.random(-1.0f, 1.0f) * jitter,
-                                     p.random(-1.0f, 1.0f) * jitter));
-        wanderTarget.normalize();
-        wanderTarget.mult(WANDER_RADIUS);
-        PVector target = PVector.add(wanderTarget, new PVector(WANDER_DISTANCE, 0));
-        PVector worldTarget = pointToWorldSpace(position, velocity, target);
-
-        return steer(worldTarget, false);
-    }
-        
+
     /**
-     * Converts a point from boid local coordinates to world coordinates. Boid 
-     * local coordinates have the x-axis aligned with the velocity and the 
-     * y-axis perpendicular to this.
-     * @param target the point in boid-local coordinates
-     * @param velocity the boid's velocity vector 
-     * @param position the boid's position in world coordinates
-     * @return the point translated to world coordinates
+     * Updates the position of the boids based on applied steering forces.
+     * @param outPx the array that receives the new x-coordinate
+     * @param outPy the array that receives the new y-coordinate
+     * @param outVx the array that receives the new x-velocity
+     * @param outVy the array that receives the new y-velocity
      */
-    PVector pointToWorldSpace(PVector position, PVector velocity, PVector localPos) {
-        coordinateMatrix.reset();
-        coordinateMatrix.translate(position.x, position.y);
-        coordinateMatrix.rotate(velocity.heading2D());
-        PVector worldPos = new PVector();
-        coordinateMatrix.mult(localPos, worldPos);
-        return worldPos;
-    }
+    private void updateMotion(float[] outPx, float[] outPy,
+                              float[] outVx, float[] outVy) {
+        // Make boid "throb". StrictMath gives the same result on every
+        // platform, which keeps seeded runs reproducible.
+        double millis = 1000.0 * sim.getTime();
+        s.radius[id] = START_RADIUS * (1.0f + 0.5f * (float) StrictMath.sin(s.throbOffset[id] + millis / THROB_PERIOD));
 
-    /** 
-     * Renders a single frame of the boid.
-     */
-    private void render() {
-        // Draw a triangle rotated in the direction of velocity
-        float theta = velocity.heading2D() + PApplet.HALF_PI;
-        p.fill(color, 128);
-        p.stroke(color);
-        p.pushMatrix();
-        p.translate(position.x, position.y);
-        p.rotate(theta);
-//        p.triangle(0, -radius * 2, -radius, radius * 2, radius, radius * 2);
-        p.beginShape(PApplet.TRIANGLES);
-        p.vertex(0, -radius * 2);
-        p.vertex(-radius, radius * 2);
-        p.vertex(radius, radius * 2);
-        p.endShape();
-        p.popMatrix();
+        // Calculate motion for this step.
+        float vx = s.vx[id] + s.ax[id];
+        float vy = s.vy[id] + s.ay[id];
+        float maxSpeed = s.maxSpeed[id];
+        float speedSq = vx * vx + vy * vy;
+        if (speedSq > maxSpeed * maxSpeed) {
+            float scale = maxSpeed / (float) Math.sqrt(speedSq);
+            vx *= scale;
+            vy *= scale;
+        }
+        float x = s.px[id] + vx;
+        float y = s.py[id] + vy;
+
+        if (!sim.getUseWalls()){
+            float radius = s.radius[id];
+            x = wrapCoordinate(x, sim.getWidth(), radius);
+            y = wrapCoordinate(y, sim.getHeight(), radius);
+        } else {
+            WallField field = sim.getWallField();
+            if (!field.contains(x, y) && field.contains(s.px[id], s.py[id])) {
+                // The boid would cross a wall, so it turns back instead.
+                x = s.px[id];
+                y = s.py[id];
+                vx = -vx;
+                vy = -vy;
+            }
+        }
+        outVx[id] = vx;
+        outVy[id] = vy;
+        outPx[id] = x;
+        outPy[id] = y;
+
+        // Reset the acceleration for the next step.
+        s.ax[id] = 0.0f;
+        s.ay[id] = 0.0f;
     }
 
     /**
-     * Handles boids moving off the edge of the screen. The screen is treated 
-     * as the surface of a torus. Boids moving off the top are wrapped to the 
-     * top of the screen and vice versa.
+     * Adds a weighted steering force to the boid's acceleration. The boid
+     * wants to move at full speed in the given direction, and the
+     * steering force is the difference between that and its current
+     * velocity, limited to the boid's maximum force. A zero direction
+     * adds nothing.
+     * @param directionX the x-component of the desired direction
+     * @param directionY the y-component of the desired direction
+     * @param maxSpeed the maximum speed of the boid
+     * @param weight the weight of the steering force
      */
-    private void checkBoundaries() {
-        if (position.x < -radius) { 
-            position.x = p.width + radius;
-        } else if (position.x > p.width + radius) {
-            position.x = -radius; 
-        }
-        if (position.y < -radius) {
-            position.y = p.height + radius;
-        } else if (position.y > p.height + radius) {
-            position.y = -radius;
+    private void steerToward(float directionX, float directionY,
+                             float maxSpeed, float weight) {
+        float lengthSq = directionX * directionX + directionY * directionY;
+        if (lengthSq > 0.0f) {
+            // Steering = Desired minus Velocity
+            float scale = maxSpeed / (float) Math.sqrt(lengthSq);
+            float steerX = directionX * scale - s.vx[id];
+            float steerY = directionY * scale - s.vy[id];
+            float maxForce = s.maxForce[id];
+            float steerSq = steerX * steerX + steerY * steerY;
+            if (steerSq > maxForce * maxForce) {
+                float limit = maxForce / (float) Math.sqrt(steerSq);
+                steerX *= limit;
+                steerY *= limit;
+            }
+            s.ax[id] += weight * steerX;
+            s.ay[id] += weight * steerY;
         }
     }
 
     /**
-     * Calculates a steering force that moves a boid away from nearby boids.
-     * @param boids a list of all boids
-     * @return the steering force to keep this boid separated from the flock
+     * Avoids walls in the world. Three feelers are projected ahead of the
+     * boid, and the one that penetrates a wall closest to the boid pushes
+     * it away along the wall normal by the length of the penetration. Only
+     * the walls in the wall grid cells under each feeler are tested, and
+     * none at all if the wall field shows the boid to be further from every
+     * wall than its feelers reach.
      */
-    private PVector separate(CellSpacePartition<Boid> boids) {
-        PVector steer = new PVector(0, 0);
-        float separationRadius = getSeparationDistance();
-        ArrayList<Boid> neighbors = boids.getNeighborList(position,
-                                                          separationRadius);
-        for (Boid other : neighbors) {
-            if (other != this) {
-                // Calculate vector pointing away from neighbor
-                PVector diff = PVector.sub(position, other.position);
-                diff.normalize();
-                float distance = PVector.dist(position, other.position); 
-                if (distance > 0.0f) {
-                    diff.div(distance);
-                }
-                steer.add(diff);
-            }
+    private void avoidWalls() {
+        float x = s.px[id];
+        float y = s.py[id];
+        float vx = s.vx[id];
+        float vy = s.vy[id];
+        // The side feelers are half as long, so none reach a wall further
+        // away than the front one.
+        float reach = FEELER_LENGTH * (float) Math.sqrt(vx * vx + vy * vy);
+        if (sim.getWallField().distanceToWall(x, y) > reach) {
+            return;
         }
+        WallGrid walls = sim.getWallGrid();
+        float closest = Float.MAX_VALUE;
+        int closestWall = -1;
+        float overshoot = 0.0f;
+
+        for (int feeler = 0; feeler < 3; ++feeler) {
+            float feelerX;
+            float feelerY;
+            if (feeler == 0) {
+                feelerX = vx * FEELER_LENGTH;
+                feelerY = vy * FEELER_LENGTH;
+            } else {
+                float c = feeler == 1 ? FEELER_COS_1 : FEELER_COS_2;
+                float sn = feeler == 1 ? FEELER_SIN_1 : FEELER_SIN_2;
+                feelerX = (c * vx - sn * vy) * FEELER_LENGTH / 2.0f;
+                feelerY = (sn * vx + c * vy) * FEELER_LENGTH / 2.0f;
+            }
 
-        if (neighbors.size() > 0) {
-            steer.div(neighbors.size());
+            int wall = walls.closestWall(x, y, feelerX, feelerY);
+            if (wall >= 0) {
+                float length = (float) Math.sqrt(feelerX * feelerX + feelerY * feelerY);
+                float r = walls.intersectFeeler(wall, x, y, feelerX, feelerY);
+                if (r * length < closest) {
+                    closest = r * length;
+                    closestWall = wall;
+                    overshoot = (1.0f - r) * length;
+                }
+            }
         }
 
-        if (steer.mag() > 0) {
-            steer.normalize();
-            steer.mult(maxSpeed);
-            steer.sub(velocity);
-            steer.limit(maxForce);
+        if (closestWall >= 0) {
+            float normalX = walls.getNormalX(closestWall);
+            float normalY = walls.getNormalY(closestWall);
+            float normalLength = (float) Math.sqrt(normalX * normalX + normalY * normalY);
+            if (normalLength > 0.0f) {
+                float scale = WALL_WEIGHT * overshoot / normalLength;
+                s.ax[id] += normalX * scale;
+                s.ay[id] += normalY * scale;
+            }
         }
-        return steer;
     }
 
     /**
-     * Aligns the boid with the average velocity of nearby boids.
-     * @param neighbors a list of all neighbors of this boid
-     * @return a vector aligned with the flock's average velocity
+     * Adds a small amount of random wandering to a boid's path. The wander
+     * target is jittered on a circle ahead of the boid, and the circle is
+     * rotated into world space with the boid's unit heading.
      */
-    private PVector align(ArrayList<Boid> neighbors) {
-        PVector steer = new PVector(0, 0);
-        int count = 0;
-
-        for (Boid other : neighbors) {
-            if (other != this) {
-                steer.add(other.velocity);
-                count++;
-            }
-        }
-
-        if (count > 0) {
-            steer.div((float) count);
+    private void wander() {
+        float jitter = WANDER_JITTER * sim.getTimeStep();
+        float wx = s.wx[id] + s.random(id, -1.0f, 1.0f) * jitter;
+        float wy = s.wy[id] + s.random(id, -1.0f, 1.0f) * jitter;
+        float length = (float) Math.sqrt(wx * wx + wy * wy);
+        if (length > 0.0f) {
+            wx *= WANDER_RADIUS / length;
+            wy *= WANDER_RADIUS / length;
         }
-
-        if (steer.mag() > 0) {
-            steer.normalize();
-            steer.mult(maxSpeed);
-            steer.sub(velocity);
-            steer.limit(maxForce);
+        s.wx[id] = wx;
+        s.wy[id] = wy;
+
+        // Boid local coordinates have the x-axis aligned with the velocity
+        // and the y-axis perpendicular to this.
+        float localX = wx + WANDER_DISTANCE;
+        float localY = wy;
+        float vx = s.vx[id];
+        float vy = s.vy[id];
+        float speed = (float) Math.sqrt(vx * vx + vy * vy);
+        float headingX = 1.0f;
+        float headingY = 0.0f;
+        if (speed > 0.0f) {
+            headingX = vx / speed;
+            headingY = vy / speed;
         }
-        return steer;
+        steerToward(headingX * localX - headingY * localY,
+                    headingY * localX + headingX * localY,
+                    s.maxSpeed[id], 1.0f);
     }
 
     /**
-     * Calculates steering vector towards average position of neighbors.
-     * @param neighbors a list of all neighbors of this boid
-     * @return steering force to go towards average position of neighbors
+     * Handles boids moving off the edge of the screen. The screen is treated
+     * as the surface of a torus. Boids moving off the top are wrapped to the
+     * top of the screen and vice versa.
+     * @param value the coordinate to wrap
+     * @param size the size of the screen along the coordinate's axis
+     * @param radius the radius of the boid
+     * @return the wrapped coordinate
      */
-    private PVector cohesion(ArrayList<Boid> neighbors) {
-        PVector sum = new PVector(0, 0);
-        int count = 0;
-
-        for (Boid other : neighbors) {
-            if (other != this) {
-                sum.add(other.position);
-                count++;
-            }
-        }
-                
-        if (count > 0) {
-            sum.div((float) count);
-            return steer(sum, false);  // Steer towards the location
+    private static float wrapCoordinate(float value, float size, float radius) {
+        if (value < -radius) {
+            return size + radius;
+        } else if (value > size + radius) {
+            return -radius;
         }
-        return sum;
+        return value;
     }
-        
-//      /**
-//       * Enforce the non-overlap condition.
-//       */
-//      private void enforceNoOverlap(ArrayList<Boid> neighbors) {
-//              for (Boid other : neighbors) {
-//                      if (this == other) {
-//                              continue;
-//                      }
-//                      
-//                      PVector separationVector = PVector.sub(position, other.position);
-//                      float distance = separationVector.mag();
-//                      float overlap = radius + other.radius - distance;
-//                      if (overlap >= 0.0f){
-//                              position.add(PVector.mult(PVector.div(separationVector, distance), overlap));
-//                      }
-//              }
-//      }
 
     public static void setAlignment(float alignment) {
         Boid.alignment = alignment;
@@ -492,4 +422,40 @@ public class Boid implements Entity {
     public static float getSeparationDistance() {
         return separationDistance;
     }
+
+    /**
+     * Selects topological flocking, where every boid flocks with a fixed
+     * number of its nearest neighbors instead of with all the neighbors
+     * within the neighborhood size.
+     * @param count the number of nearest neighbors, or 0 for metric flocking
+     */
+    public static void setTopologicalNeighbors(int count) {
+        Boid.topologicalNeighbors = Math.max(0, count);
+    }
+
+    public static int getTopologicalNeighbors() {
+        return topologicalNeighbors;
+    }
+
+    /**
+     * Returns the radius of the neighbor query made for every boid, which
+     * must cover both the neighborhood and the separation distance.
+     * @return the query radius
+     */
+    public static float getQueryRadius() {
+        return Math.max(neighborhoodSize, separationDistance);
+    }
+
+    /**
+     * Returns the farthest that a boid can be from a neighbor that steers
+     * it, which is the query radius or, in topological mode, the range of
+     * the nearest-neighbor search.
+     * @return the interaction radius
+     */
+    public static float getInteractionRadius() {
+        if (topologicalNeighbors > 0) {
+            return Math.max(getQueryRadius(), TOPOLOGICAL_RANGE * neighborhoodSize);
+        }
+        return getQueryRadius();
+    }
 }
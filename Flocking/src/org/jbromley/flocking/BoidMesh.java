@@ -0,0 +1,119 @@
+// BoidMesh.java
+// Triangle mesh of every boid in a flock, built on the CPU.
+package org.jbromley.flocking;
+
+
+import java.util.Arrays;
+
+
+/**
+ * This class turns the state of a flock into one triangle per boid so the
+ * whole flock can be drawn as a single shape. Every boid is a triangle
+ * pointing along its velocity and sized by its current throb radius. The
+ * vertex and color buffers are reused from frame to frame and building
+ * them needs nothing but a {@link BoidStore}, so the mesh can be built and
+ * checked without a window.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class BoidMesh {
+
+    /** Floats per boid: three vertices of two coordinates each. */
+    public static final int FLOATS_PER_BOID = 6;
+    /** Alpha of the triangle fill. */
+    private static final int FILL_ALPHA = 128;
+
+    private float[] vertices;
+    private int[] fillColors;
+    private int[] strokeColors;
+    private int count;
+
+    /**
+     * Creates an empty mesh.
+     */
+    public BoidMesh() {
+        vertices = new float[FLOATS_PER_BOID];
+        fillColors = new int[1];
+        strokeColors = new int[1];
+        count = 0;
+    }
+
+    /**
+     * Rebuilds the mesh from the current state of a flock.
+     * @param store the store holding the boids
+     */
+    public void build(BoidStore store) {
+        count = store.size();
+        if (fillColors.length < count) {
+            int capacity = Math.max(count, 2 * fillColors.length);
+            vertices = Arrays.copyOf(vertices, FLOATS_PER_BOID * capacity);
+            fillColors = Arrays.copyOf(fillColors, capacity);
+            strokeColors = Arrays.copyOf(strokeColors, capacity);
+        }
+
+        for (int id = 0; id < count; ++id) {
+            float vx = store.vx[id];
+            float vy = store.vy[id];
+            float speed = (float) Math.sqrt(vx * vx + vy * vy);
+            float headingX = 1.0f;
+            float headingY = 0.0f;
+            if (speed > 0.0f) {
+                headingX = vx / speed;
+                headingY = vy / speed;
+            }
+
+            // The triangle points up in its own frame, so it is rotated by
+            // the heading plus a quarter turn.
+            float c = -headingY;
+            float s = headingX;
+            float r = store.radius[id];
+            float x = store.px[id];
+            float y = store.py[id];
+            int base = FLOATS_PER_BOID * id;
+            vertices[base] = x + 2.0f * r * s;
+            vertices[base + 1] = y - 2.0f * r * c;
+            vertices[base + 2] = x - r * c - 2.0f * r * s;
+            vertices[base + 3] = y - r * s + 2.0f * r * c;
+            vertices[base + 4] = x + r * c - 2.0f * r * s;
+            vertices[base + 5] = y + r * s + 2.0f * r * c;
+
+            int color = store.color[id];
+            strokeColors[id] = color;
+            fillColors[id] = (color & 0x00ffffff) | (FILL_ALPHA << 24);
+        }
+    }
+
+    /**
+     * Returns the number of boids in the mesh.
+     * @return the number of triangles
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the vertex buffer. Boid <code>i</code> owns the six floats
+     * starting at <code>FLOATS_PER_BOID * i</code>, holding x and y of its
+     * tip, left corner and right corner.
+     * @return the vertex coordinates
+     */
+    public float[] getVertices() {
+        return vertices;
+    }
+
+    /**
+     * Returns the fill colors, one per boid, with the fill alpha applied.
+     * @return the ARGB fill colors
+     */
+    public int[] getFillColors() {
+        return fillColors;
+    }
+
+    /**
+     * Returns the stroke colors, one per boid.
+     * @return the ARGB stroke colors
+     */
+    public int[] getStrokeColors() {
+        return strokeColors;
+    }
+
+}
@@ -0,0 +1,371 @@
+// BoidStore.java
+// Flat primitive-array storage for the state of every boid in a flock.
+package org.jbromley.flocking;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * This class holds the state of all boids in a flock as a structure of
+ * arrays. Each boid is identified by its index into the arrays, so the
+ * neighbor loops walk contiguous primitive memory instead of chasing one
+ * object graph per boid. The arrays are package-private so that the
+ * steering code and the cell space partition can read them directly.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class BoidStore {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    /**
+     * The bytes written by {@link #writeState}: nine floats and three
+     * ints. The acceleration is not written, since it is zero between
+     * steps.
+     */
+    static final int STATE_BYTES = 48;
+
+    /** Position of each boid. */
+    float[] px;
+    float[] py;
+    /** Velocity of each boid. */
+    float[] vx;
+    float[] vy;
+    /**
+     * Next-step position and velocity buffers, written by the parallel
+     * step while the arrays above hold the frozen previous step.
+     */
+    float[] nextPx;
+    float[] nextPy;
+    float[] nextVx;
+    float[] nextVy;
+    /** Steering acceleration accumulated during a step. */
+    float[] ax;
+    float[] ay;
+    /** Wander target of each boid in boid-local coordinates. */
+    float[] wx;
+    float[] wy;
+    float[] maxSpeed;
+    float[] maxForce;
+    float[] radius;
+    int[] color;
+    int[] throbOffset;
+    /** Per-boid random number generator state. */
+    int[] seed;
+
+    private int count;
+    /** Spare arrays that take the place of the arrays being reordered. */
+    private float[] spareFloats;
+    private int[] spareInts;
+
+    /**
+     * Creates an empty store with a default capacity.
+     */
+    public BoidStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty store.
+     * @param capacity the number of boids to allocate room for
+     */
+    public BoidStore(int capacity) {
+        count = 0;
+        allocate(Math.max(1, capacity));
+    }
+
+    /**
+     * Adds a boid to the store. Everything except the position and the
+     * speed and force limits starts at zero.
+     * @param x the x-coordinate of the boid
+     * @param y the y-coordinate of the boid
+     * @param ms the maximum speed of the boid
+     * @param mf the maximum steering force of the boid
+     * @return the id of the new boid
+     */
+    public int add(float x, float y, float ms, float mf) {
+        return add(x, y, ms, mf, 0);
+    }
+
+    /**
+     * Adds a boid to the store with its own random number sequence.
+     * @param x the x-coordinate of the boid
+     * @param y the y-coordinate of the boid
+     * @param ms the maximum speed of the boid
+     * @param mf the maximum steering force of the boid
+     * @param randomSeed the seed of the boid's random number sequence
+     * @return the id of the new boid
+     */
+    public int add(float x, float y, float ms, float mf, int randomSeed) {
+        if (count == px.length) {
+            allocate(2 * px.length);
+        }
+        int id = count++;
+        px[id] = x;
+        py[id] = y;
+        vx[id] = 0.0f;
+        vy[id] = 0.0f;
+        ax[id] = 0.0f;
+        ay[id] = 0.0f;
+        wx[id] = 0.0f;
+        wy[id] = 0.0f;
+        maxSpeed[id] = ms;
+        maxForce[id] = mf;
+        radius[id] = 0.0f;
+        color[id] = 0;
+        throbOffset[id] = 0;
+        // Xorshift has a fixed point at zero, so never use it as a state.
+        seed[id] = randomSeed != 0 ? randomSeed : 0x9e3779b9 + id;
+        return id;
+    }
+
+    /**
+     * Returns the next number in a boid's random sequence. Each boid owns
+     * its own xorshift generator, so boids can be stepped concurrently
+     * without sharing a generator.
+     * @param id the boid whose generator is advanced
+     * @param low the lower bound of the result
+     * @param high the upper bound of the result
+     * @return a random number in [low, high)
+     */
+    float random(int id, float low, float high) {
+        int x = seed[id];
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        seed[id] = x;
+        float unit = (x >>> 8) / (float) (1 << 24);
+        return low + unit * (high - low);
+    }
+
+    /**
+     * Removes a boid. The last boid is moved into its slot, so the id of
+     * the last boid changes to that of the boid removed.
+     * @param id the boid to remove
+     */
+    void remove(int id) {
+        int last = --count;
+        if (id == last) {
+            return;
+        }
+        px[id] = px[last];
+        py[id] = py[last];
+        vx[id] = vx[last];
+        vy[id] = vy[last];
+        ax[id] = ax[last];
+        ay[id] = ay[last];
+        wx[id] = wx[last];
+        wy[id] = wy[last];
+        maxSpeed[id] = maxSpeed[last];
+        maxForce[id] = maxForce[last];
+        radius[id] = radius[last];
+        color[id] = color[last];
+        throbOffset[id] = throbOffset[last];
+        seed[id] = seed[last];
+    }
+
+    /**
+     * Writes the whole state of a boid, including its random sequence, so
+     * that it can carry on in another store exactly where it left off.
+     * @param id the boid to write
+     * @param out the buffer that receives {@link #STATE_BYTES} bytes
+     */
+    void writeState(int id, ByteBuffer out) {
+        out.putFloat(px[id]).putFloat(py[id]);
+        out.putFloat(vx[id]).putFloat(vy[id]);
+        out.putFloat(wx[id]).putFloat(wy[id]);
+        out.putFloat(maxSpeed[id]).putFloat(maxForce[id]).putFloat(radius[id]);
+        out.putInt(color[id]).putInt(throbOffset[id]).putInt(seed[id]);
+    }
+
+    /**
+     * Adds a boid whose state was written by {@link #writeState}.
+     * @param in the buffer holding the state
+     * @return the id of the new boid
+     */
+    int readState(ByteBuffer in) {
+        float x = in.getFloat();
+        float y = in.getFloat();
+        float velocityX = in.getFloat();
+        float velocityY = in.getFloat();
+        float wanderX = in.getFloat();
+        float wanderY = in.getFloat();
+        float ms = in.getFloat();
+        float mf = in.getFloat();
+        float r = in.getFloat();
+        int c = in.getInt();
+        int throb = in.getInt();
+        int id = add(x, y, ms, mf, in.getInt());
+        vx[id] = velocityX;
+        vy[id] = velocityY;
+        wx[id] = wanderX;
+        wy[id] = wanderY;
+        radius[id] = r;
+        color[id] = c;
+        throbOffset[id] = throb;
+        return id;
+    }
+
+    /**
+     * Makes the next-step position and velocity buffers current. The old
+     * current buffers become the next-step buffers and still hold the
+     * previous step until they are overwritten.
+     */
+    void swapBuffers() {
+        float[] temp = px;
+        px = nextPx;
+        nextPx = temp;
+        temp = py;
+        py = nextPy;
+        nextPy = temp;
+        temp = vx;
+        vx = nextVx;
+        nextVx = temp;
+        temp = vy;
+        vy = nextVy;
+        nextVy = temp;
+    }
+
+    /**
+     * Reorders the first boids in the store, so that the boid at id
+     * <code>order[i]</code> moves to id <code>i</code>. The boids after
+     * them keep their ids. The next-step buffers are not reordered, since
+     * they only hold anything during a step.
+     * @param order the old id of the boid to move to each id
+     * @param size the number of boids to reorder
+     */
+    void permute(int[] order, int size) {
+        px = gather(px, order, size);
+        py = gather(py, order, size);
+        vx = gather(vx, order, size);
+        vy = gather(vy, order, size);
+        ax = gather(ax, order, size);
+        ay = gather(ay, order, size);
+        wx = gather(wx, order, size);
+        wy = gather(wy, order, size);
+        maxSpeed = gather(maxSpeed, order, size);
+        maxForce = gather(maxForce, order, size);
+        radius = gather(radius, order, size);
+        color = gather(color, order, size);
+        throbOffset = gather(throbOffset, order, size);
+        seed = gather(seed, order, size);
+    }
+
+    /**
+     * Gathers an array into the spare array in a new order. The array
+     * passed in becomes the spare.
+     * @param values the array to reorder
+     * @param order the old index of the value for each index
+     * @param size the number of values to reorder
+     * @return the reordered array
+     */
+    private float[] gather(float[] values, int[] order, int size) {
+        float[] result = spareFloats;
+        if (result == null || result.length != values.length) {
+            result = new float[values.length];
+        }
+        for (int i = 0; i < size; ++i) {
+            result[i] = values[order[i]];
+        }
+        System.arraycopy(values, size, result, size, count - size);
+        spareFloats = values;
+        return result;
+    }
+
+    private int[] gather(int[] values, int[] order, int size) {
+        int[] result = spareInts;
+        if (result == null || result.length != values.length) {
+            result = new int[values.length];
+        }
+        for (int i = 0; i < size; ++i) {
+            result[i] = values[order[i]];
+        }
+        System.arraycopy(values, size, result, size, count - size);
+        spareInts = values;
+        return result;
+    }
+
+    /**
+     * Sets the number of boids without initializing any new ones. This is
+     * for loading whole blocks of state at once, as when replaying a
+     * recorded flock.
+     * @param size the new number of boids
+     */
+    void setSize(int size) {
+        if (size > px.length) {
+            allocate(Math.max(size, 2 * px.length));
+        }
+        count = size;
+    }
+
+    /**
+     * Returns the number of boids in the store.
+     * @return the number of boids
+     */
+    public int size() {
+        return count;
+    }
+
+    public float getX(int id) {
+        return px[id];
+    }
+
+    public float getY(int id) {
+        return py[id];
+    }
+
+    public float getVelocityX(int id) {
+        return vx[id];
+    }
+
+    public float getVelocityY(int id) {
+        return vy[id];
+    }
+
+    /**
+     * Grows every array to the given capacity, keeping existing contents.
+     * @param capacity the new capacity
+     */
+    private void allocate(int capacity) {
+        if (px == null) {
+            px = new float[capacity];
+            py = new float[capacity];
+            vx = new float[capacity];
+            vy = new float[capacity];
+            nextPx = new float[capacity];
+            nextPy = new float[capacity];
+            nextVx = new float[capacity];
+            nextVy = new float[capacity];
+            ax = new float[capacity];
+            ay = new float[capacity];
+            wx = new float[capacity];
+            wy = new float[capacity];
+            maxSpeed = new float[capacity];
+            maxForce = new float[capacity];
+            radius = new float[capacity];
+            color = new int[capacity];
+            throbOffset = new int[capacity];
+            seed = new int[capacity];
+        } else {
+            px = Arrays.copyOf(px, capacity);
+            py = Arrays.copyOf(py, capacity);
+            vx = Arrays.copyOf(vx, capacity);
+            vy = Arrays.copyOf(vy, capacity);
+            nextPx = Arrays.copyOf(nextPx, capacity);
+            nextPy = Arrays.copyOf(nextPy, capacity);
+            nextVx = Arrays.copyOf(nextVx, capacity);
+            nextVy = Arrays.copyOf(nextVy, capacity);
+            ax = Arrays.copyOf(ax, capacity);
+            ay = Arrays.copyOf(ay, capacity);
+            wx = Arrays.copyOf(wx, capacity);
+            wy = Arrays.copyOf(wy, capacity);
+            maxSpeed = Arrays.copyOf(maxSpeed, capacity);
+            maxForce = Arrays.copyOf(maxForce, capacity);
+            radius = Arrays.copyOf(radius, capacity);
+            color = Arrays.copyOf(color, capacity);
+            throbOffset = Arrays.copyOf(throbOffset, capacity);
+            seed = Arrays.copyOf(seed, capacity);
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+// CellRuns.java
+// The cells covered by a neighbor query, as runs of packed boid state.
+package org.jbromley.flocking;
+
+
+import java.util.Arrays;
+
+
+/**
+ * This class lists the cells covered by a neighbor query on a
+ * {@link CompactGrid}. The grid keeps a packed copy of the positions and
+ * velocities sorted by cell, and each cell covered by the query is a run
+ * <code>[start, end)</code> of those arrays, together with the offset
+ * that moves the positions of its members next to the query point. A
+ * kernel can then sweep the candidates of each run in order without a
+ * call per candidate. One instance is reused for every query made by a
+ * thread, so nothing is allocated once the arrays have grown.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+class CellRuns {
+
+    /**
+     * The packed positions and velocities, sorted by cell. At least
+     * {@link CompactGrid#PADDING} slots follow the last run.
+     */
+    float[] xs;
+    float[] ys;
+    float[] vxs;
+    float[] vys;
+    /** The slot of the boid at the query point, or -1. */
+    int self;
+    /** The first and one past the last slot of each run. */
+    int[] starts;
+    int[] ends;
+    /** The offsets from the query point, including any wrapping. */
+    float[] offsetsX;
+    float[] offsetsY;
+    /** The number of runs. */
+    int count;
+    /** Scratch space for a kernel to spill its partial sums into. */
+    float[] lanes;
+
+    /**
+     * Creates an empty list of runs.
+     */
+    CellRuns() {
+        starts = new int[16];
+        ends = new int[16];
+        offsetsX = new float[16];
+        offsetsY = new float[16];
+        lanes = new float[16];
+        clear(null, null, null, null, -1);
+    }
+
+    /**
+     * Removes all runs before a query.
+     * @param x the packed x-coordinates
+     * @param y the packed y-coordinates
+     * @param vx the packed x-velocities
+     * @param vy the packed y-velocities
+     * @param selfSlot the slot of the boid at the query point, or -1
+     */
+    void clear(float[] x, float[] y, float[] vx, float[] vy, int selfSlot) {
+        xs = x;
+        ys = y;
+        vxs = vx;
+        vys = vy;
+        self = selfSlot;
+        count = 0;
+    }
+
+    /**
+     * Adds a run. Empty runs are skipped.
+     * @param start the first slot of the run
+     * @param end one past the last slot of the run
+     * @param offsetX the x-offset from the query point to the cell
+     * @param offsetY the y-offset from the query point to the cell
+     */
+    void add(int start, int end, float offsetX, float offsetY) {
+        if (start == end) {
+            return;
+        }
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, 2 * count);
+            ends = Arrays.copyOf(ends, 2 * count);
+            offsetsX = Arrays.copyOf(offsetsX, 2 * count);
+            offsetsY = Arrays.copyOf(offsetsY, 2 * count);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        offsetsX[count] = offsetX;
+        offsetsY[count] = offsetY;
+        ++count;
+    }
+
+}
@@ -4,170 +4,561 @@
 package org.jbromley.flocking;
 
 
-import processing.core.PVector;
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 
 /**
  * This class divides a geometric space into cells. Each cell keeps
  * track of the entities within it. This allows us to query for
  * objects within a certain area without having to iterate over all
- * entities.
- * @param <T> the type of object that this cell space partition will track
+ * entities. Entities are the boids of a {@link BoidStore}, identified
+ * by id, and their positions are read directly from the store.
+ * <p>
+ * The members of each cell are chained into a linked list through
+ * arrays indexed by entity id, so moving an entity from one cell to
+ * another takes constant time and allocates nothing, however crowded
+ * the cells become. An entity taken out of a cell is replaced in the
+ * chain by the last member, which keeps the members in the order a list
+ * that swaps the last element into the hole would have them in.
+ * <p>
+ * The partition can also keep the number of entities in every cell and
+ * the sums of their positions and velocities, updated as entities are
+ * added and moved. A cell that lies wholly inside the neighborhood of a
+ * boid and wholly outside its separation distance then contributes to
+ * the alignment and cohesion sums all at once, so with a large
+ * neighborhood only the cells on the rim of the query are visited entity
+ * by entity.
  * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
  */
-public class CellSpacePartition<T extends Entity> {
-  
-    private ArrayList<Cell<T>> cells;
+public class CellSpacePartition implements SpatialIndex {
+
+    /** The link that ends a chain of cell members. */
+    private static final int NONE = -1;
+
+    private BoidStore store;
+    private int numberCells;
+    /** The first and last member and the number of members of each cell. */
+    private int[] cellHeads;
+    private int[] cellTails;
+    private int[] cellSizes;
+    /** The members before and after each entity in the chain of its cell. */
+    private int[] nextMembers;
+    private int[] previousMembers;
     private float spaceWidth;
     private float spaceHeight;
     private int numberCellsX;
     private int numberCellsY;
     private float cellWidth;
     private float cellHeight;
+    private float originX;
+    private float originY;
     private boolean wrapMode;
-  
+    private boolean aggregating;
+    private RingSearch rings;
+    /**
+     * The number of members of each cell, the number of them that lie
+     * outside it, and the sums of their x-coordinates, y-coordinates,
+     * x-velocities and y-velocities, four to a cell. They are kept in flat
+     * arrays so that a query reads a row of cells from contiguous memory.
+     */
+    private int[] cellCounts;
+    private int[] cellStrays;
+    private double[] cellSums;
+    /** The position and velocity of each entity when it was last binned. */
+    private float[] binnedX;
+    private float[] binnedY;
+    private float[] binnedVx;
+    private float[] binnedVy;
+
     /**
-     * Creates a new cell space partition. 
+     * Creates a new cell space partition.
+     * @param store the store holding the entity positions
      * @param width the width of the space to be divided
      * @param height the height of the space to be dividedd
      * @param cellsX the number of horizontal cells
      * @param cellsY the number of vertical cells
-     * @param maxEntities the maximum number of entities to allow in a cell
      */
-    public CellSpacePartition(float width, float height, 
+    public CellSpacePartition(BoidStore store, float width, float height,
 			      int cellsX, int cellsY) {
-	cells = new ArrayList<Cell<T>>();
+	this.store = store;
 	spaceWidth = width;
 	spaceHeight = height;
 	numberCellsX = cellsX;
 	numberCellsY = cellsY;
+	originX = 0.0f;
+	originY = 0.0f;
 	wrapMode = false;
-    
+	aggregating = false;
+	cellCounts = new int[0];
+	cellStrays = new int[0];
+	cellSums = new double[0];
+	binnedX = new float[0];
+	binnedY = new float[0];
+	binnedVx = new float[0];
+	binnedVy = new float[0];
+	nextMembers = new int[0];
+	previousMembers = new int[0];
+
 	cellWidth = spaceWidth / numberCellsX;
 	cellHeight = spaceHeight / numberCellsY;
-    
-	for (int y = 0; y < numberCellsY; ++y) {
-	    for (int x = 0; x < numberCellsX; ++x) {
-		float top = y * cellHeight;
-		float left = x * cellWidth;
-		float bottom = top + cellHeight - 1.0f;
-		float right = left + cellWidth - 1.0f;
-		cells.add(new Cell<T>(left, top, right, bottom));
-	    }
-	}
+	rings = new NearestSearch();
+	rings.setGrid(numberCellsX, numberCellsY, cellWidth, cellHeight, wrapMode);
+
+	numberCells = numberCellsX * numberCellsY;
+	cellHeads = new int[numberCells];
+	cellTails = new int[numberCells];
+	cellSizes = new int[numberCells];
+	Arrays.fill(cellHeads, NONE);
+	Arrays.fill(cellTails, NONE);
     }
-  
+
     /**
      * Adds an entity to the cell space partition.
-     * @param entity the entity to be added.
+     * @param id the id of the entity to be added.
      */
-    public void addEntity(T entity) {
-	int index = positionToIndex(entity.getPosition());
-	Cell<T> cell = cells.get(index);
-	cell.members.add(entity);
+    public void addEntity(int id) {
+	int index = positionToIndex(store.px[id], store.py[id]);
+	if (id >= nextMembers.length) {
+	    int capacity = Math.max(id + 1, 2 * nextMembers.length);
+	    nextMembers = Arrays.copyOf(nextMembers, capacity);
+	    previousMembers = Arrays.copyOf(previousMembers, capacity);
+	}
+	appendMember(index, id);
+	if (aggregating) {
+	    addToSums(index, id);
+	}
     }
-  
+
     /**
      * Updates an entity already in the cell space partition.
-     * @param entity the entity to be updated
-     * @param oldPosition the previous position of the entity
+     * @param id the id of the entity to be updated
+     * @param oldX the previous x-coordinate of the entity
+     * @param oldY the previous y-coordinate of the entity
      */
-    public void updateEntity(T entity, PVector oldPosition) {
-	int oldIndex = positionToIndex(oldPosition);
-	int newIndex = positionToIndex(entity.getPosition());
+    public void updateEntity(int id, float oldX, float oldY) {
+	int oldIndex = positionToIndex(oldX, oldY);
+	int newIndex = positionToIndex(store.px[id], store.py[id]);
 
 	if (oldIndex != newIndex) {
-	    Cell<T> oldCell = cells.get(oldIndex);
-	    Cell<T> newCell = cells.get(newIndex);
-	    oldCell.members.remove(entity);
-	    newCell.members.add(entity);
-	}
-    }
-  
-    public ArrayList<T> getNeighborList(PVector target, float queryRadius) {
-	ArrayList<T> neighbors = new ArrayList<T>();
-    
-	// Find the coordinates of the region of interest's corners. This will
-	// depend on the wrap mode.
-	float left = target.x - queryRadius;
-	float top = target.y - queryRadius;
-	float right = target.x + queryRadius;
-	float bottom = target.y + queryRadius;
-    
-	// Rectify the corner coordinates if we are not in wrap mode.
-	if (!wrapMode) {
-	    left = Math.max(0.0f, left);
-	    top = Math.max(0.0f, top);
-	    right = Math.min(spaceWidth - 1, right);
-	    bottom = Math.min(spaceHeight - 1, bottom);
-	}
-    
-	// Turn coordinates into x, y indices.
-	int leftIndex = (int) (Math.floor(left / cellWidth));
-	int topIndex = (int) (Math.floor(top / cellHeight));
-	int rightIndex = (int) (Math.floor(right / cellWidth));
-	int bottomIndex = (int) (Math.floor(bottom / cellHeight));
-    
+	    removeMember(oldIndex, id);
+	    appendMember(newIndex, id);
+	    if (aggregating) {
+		removeFromSums(oldIndex, id);
+		addToSums(newIndex, id);
+	    }
+	} else if (aggregating) {
+	    removeFromSums(newIndex, id);
+	    addToSums(newIndex, id);
+	}
+    }
+
+    /**
+     * Turns the per-cell sums on or off. Turning them on computes them
+     * from the current state of the store.
+     * @param useSums true to keep the count and the position and velocity
+     *                sums of every cell
+     */
+    public void setAggregating(boolean useSums) {
+	if (useSums != aggregating) {
+	    aggregating = useSums;
+	    rebuild();
+	}
+    }
+
+    public boolean getAggregating() {
+	return aggregating;
+    }
+
+    /**
+     * Accumulates the flocking sums of a boid, using the per-cell sums for
+     * the cells they cover exactly. A cell is taken whole when every point
+     * of it lies within the neighborhood and none lies within the
+     * separation distance, and the boid is not in it; its members then add
+     * nothing to the separation sum and all of their velocities and
+     * offsets to the alignment and cohesion sums. Every other cell is
+     * visited member by member, as by {@link #forEachNeighbor}. So is any
+     * cell holding an entity that has strayed past the edge of the space
+     * and was binned into a cell it does not lie in. The sums are the same
+     * as those of a full visit, added in a different order.
+     * <p>
+     * The per-cell sums must be turned on with {@link #setAggregating}.
+     * @param id the boid whose neighbors are summed
+     * @param queryRadius the radius of the query
+     * @param sums the accumulator, already reset for the boid
+     */
+    void accumulateNeighborhood(int id, float queryRadius, Neighborhood sums) {
+	float[] px = store.px;
+	float[] py = store.py;
+	float targetX = px[id];
+	float targetY = py[id];
+	float radiusSq = queryRadius * queryRadius;
+
+	int leftIndex = columnIndex(targetX - queryRadius);
+	int topIndex = rowIndex(targetY - queryRadius);
+	int rightIndex = columnIndex(targetX + queryRadius);
+	int bottomIndex = rowIndex(targetY + queryRadius);
+
 	for (int rowIndex = topIndex; rowIndex <= bottomIndex; ++rowIndex) {
+	    float offsetY = RingSearch.wrapOffset(rowIndex, numberCellsY, spaceHeight) - targetY;
 	    for (int colIndex = leftIndex; colIndex <= rightIndex; ++colIndex) {
+		float offsetX = RingSearch.wrapOffset(colIndex, numberCellsX, spaceWidth) - targetX;
 		int index = rowColumnToIndex(rowIndex, colIndex);
-		Cell<T> cell = cells.get(index);
-		if (!cell.members.isEmpty()) {
-		    for (T member : cell.members) {
-			PVector point = !wrapMode ? member.getPosition() : 
-			    translateWrappedPoint(member.getPosition(), 
-						  rowIndex, colIndex);
-			float distance = PVector.dist(point, target);
-			if (distance < queryRadius) {
-			    neighbors.add(member);
-			}
+		int size = cellCounts[index];
+		if (size == 0) {
+		    continue;
+		}
+		boolean bounded = cellStrays[index] == 0;
+		float nearestSq = rings.cellDistanceSq(colIndex, rowIndex, targetX, targetY);
+		if (bounded && nearestSq >= radiusSq) {
+		    continue;
+		}
+		if (bounded && nearestSq > 0.0f && nearestSq >= sums.separationSq &&
+		    cellFarthestSq(colIndex, rowIndex, targetX, targetY) < sums.neighborhoodSq) {
+		    int sum = 4 * index;
+		    sums.offsetX += (float) (cellSums[sum] + size * offsetX);
+		    sums.offsetY += (float) (cellSums[sum + 1] + size * offsetY);
+		    sums.velocityX += (float) cellSums[sum + 2];
+		    sums.velocityY += (float) cellSums[sum + 3];
+		    sums.count += size;
+		    continue;
+		}
+		for (int member = cellHeads[index]; member != NONE; member = nextMembers[member]) {
+		    float dx = px[member] + offsetX;
+		    float dy = py[member] + offsetY;
+		    float distanceSq = dx * dx + dy * dy;
+		    if (distanceSq < radiusSq) {
+			sums.visit(member, dx, dy, distanceSq);
 		    }
 		}
 	    }
 	}
-    
+    }
+
+    public IntList getNeighborList(float targetX, float targetY,
+				   float queryRadius) {
+	IntList neighbors = new IntList();
+	getNeighborList(targetX, targetY, queryRadius, neighbors);
 	return neighbors;
     }
-  
+
+    public void getNeighborList(float targetX, float targetY,
+				float queryRadius, IntList neighbors) {
+	neighbors.clear();
+	float[] px = store.px;
+	float[] py = store.py;
+	float radiusSq = queryRadius * queryRadius;
+
+	// Find the cell range of the region of interest. This will depend on
+	// the wrap mode.
+	int leftIndex = columnIndex(targetX - queryRadius);
+	int topIndex = rowIndex(targetY - queryRadius);
+	int rightIndex = columnIndex(targetX + queryRadius);
+	int bottomIndex = rowIndex(targetY + queryRadius);
+
+	for (int rowIndex = topIndex; rowIndex <= bottomIndex; ++rowIndex) {
+	    float offsetY = RingSearch.wrapOffset(rowIndex, numberCellsY, spaceHeight) - targetY;
+	    for (int colIndex = leftIndex; colIndex <= rightIndex; ++colIndex) {
+		float offsetX = RingSearch.wrapOffset(colIndex, numberCellsX, spaceWidth) - targetX;
+		int index = rowColumnToIndex(rowIndex, colIndex);
+		for (int member = cellHeads[index]; member != NONE; member = nextMembers[member]) {
+		    float dx = px[member] + offsetX;
+		    float dy = py[member] + offsetY;
+		    if (dx * dx + dy * dy < radiusSq) {
+			neighbors.add(member);
+		    }
+		}
+	    }
+	}
+    }
+
+    public void forEachNeighbor(float targetX, float targetY,
+				float queryRadius, NeighborVisitor visitor) {
+	float[] px = store.px;
+	float[] py = store.py;
+	float radiusSq = queryRadius * queryRadius;
+
+	int leftIndex = columnIndex(targetX - queryRadius);
+	int topIndex = rowIndex(targetY - queryRadius);
+	int rightIndex = columnIndex(targetX + queryRadius);
+	int bottomIndex = rowIndex(targetY + queryRadius);
+
+	for (int rowIndex = topIndex; rowIndex <= bottomIndex; ++rowIndex) {
+	    float offsetY = RingSearch.wrapOffset(rowIndex, numberCellsY, spaceHeight) - targetY;
+	    for (int colIndex = leftIndex; colIndex <= rightIndex; ++colIndex) {
+		float offsetX = RingSearch.wrapOffset(colIndex, numberCellsX, spaceWidth) - targetX;
+		int index = rowColumnToIndex(rowIndex, colIndex);
+		for (int member = cellHeads[index]; member != NONE; member = nextMembers[member]) {
+		    float dx = px[member] + offsetX;
+		    float dy = py[member] + offsetY;
+		    float distanceSq = dx * dx + dy * dy;
+		    if (distanceSq < radiusSq &&
+			!visitor.visit(member, dx, dy, distanceSq)) {
+			return;
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * Re-bins every entity of the store from its current position.
+     */
+    public void rebuild() {
+	clear();
+	for (int id = 0; id < store.size(); ++id) {
+	    addEntity(id);
+	}
+    }
+
+    public int getCellCount() {
+	return numberCells;
+    }
+
+    public int getCellSize(int cell) {
+	return cellSizes[cell];
+    }
+
+    public void forEachCellMember(int cell, CellVisitor visitor) {
+	for (int member = cellHeads[cell]; member != NONE; member = nextMembers[member]) {
+	    visitor.visit(member);
+	}
+    }
+
+    /**
+     * Finds the entities nearest to a point. The cells are searched in
+     * square rings of growing size around the cell holding the point.
+     * Once the heap is full, cells that lie farther away than the farthest
+     * entity kept are skipped. The search stops as soon as the heap is full
+     * and no cell outside the rings searched so far can hold a nearer
+     * entity, or the rings reach the maximum radius or cover the whole
+     * grid.
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param maxRadius the distance beyond which entities are ignored
+     * @param nearest the heap, already reset, that receives the entities
+     */
+    public void findNearest(float targetX, float targetY, float maxRadius,
+			    NearestHeap nearest) {
+	rings.findNearest(targetX, targetY, columnIndex(targetX), rowIndex(targetY),
+			  maxRadius, store.size(), nearest);
+    }
+
     public void setWrapMode(boolean useWrapping) {
 	wrapMode = useWrapping;
+	rings.setGrid(numberCellsX, numberCellsY, cellWidth, cellHeight, wrapMode);
     }
-  
+
     public boolean getWrapMode() {
 	return wrapMode;
     }
-  
+
+    public void setOrigin(float x, float y) {
+	originX = x;
+	originY = y;
+	rings.setOrigin(originX, originY);
+	rebuild();
+    }
+
+    /**
+     * Divides the space into a new number of cells and re-adds every entity
+     * to them. The arrays of the cells are only reallocated when there are
+     * more cells than they can hold.
+     * @param cellsX the number of horizontal cells
+     * @param cellsY the number of vertical cells
+     */
+    public void resize(int cellsX, int cellsY) {
+	numberCellsX = cellsX;
+	numberCellsY = cellsY;
+	cellWidth = spaceWidth / numberCellsX;
+	cellHeight = spaceHeight / numberCellsY;
+	rings.setGrid(numberCellsX, numberCellsY, cellWidth, cellHeight, wrapMode);
+
+	numberCells = numberCellsX * numberCellsY;
+	if (numberCells > cellHeads.length) {
+	    cellHeads = new int[numberCells];
+	    cellTails = new int[numberCells];
+	    cellSizes = new int[numberCells];
+	}
+	rebuild();
+    }
+
     /**
      * Removes all entites from the cells of this space partition.
      */
     public void clear() {
-	for (Cell<T> cell : cells) {
-	    cell.members.clear();
+	Arrays.fill(cellHeads, 0, numberCells, NONE);
+	Arrays.fill(cellTails, 0, numberCells, NONE);
+	Arrays.fill(cellSizes, 0, numberCells, 0);
+	if (aggregating) {
+	    int count = numberCells;
+	    if (cellCounts.length != count) {
+		cellCounts = new int[count];
+		cellStrays = new int[count];
+		cellSums = new double[4 * count];
+	    } else {
+		Arrays.fill(cellCounts, 0);
+		Arrays.fill(cellStrays, 0);
+		Arrays.fill(cellSums, 0.0);
+	    }
+	}
+    }
+
+    /**
+     * Appends an entity to the chain of a cell.
+     * @param index the index of the cell
+     * @param id the id of the entity
+     */
+    private void appendMember(int index, int id) {
+	int tail = cellTails[index];
+	previousMembers[id] = tail;
+	nextMembers[id] = NONE;
+	if (tail == NONE) {
+	    cellHeads[index] = id;
+	} else {
+	    nextMembers[tail] = id;
+	}
+	cellTails[index] = id;
+	++cellSizes[index];
+    }
+
+    /**
+     * Takes an entity out of the chain of a cell. The last member of the
+     * cell is unlinked and put in the place of the entity.
+     * @param index the index of the cell
+     * @param id the id of the entity, which must be in the cell
+     */
+    private void removeMember(int index, int id) {
+	int tail = cellTails[index];
+	int beforeTail = previousMembers[tail];
+	cellTails[index] = beforeTail;
+	if (beforeTail == NONE) {
+	    cellHeads[index] = NONE;
+	} else {
+	    nextMembers[beforeTail] = NONE;
+	}
+	if (tail != id) {
+	    int previous = previousMembers[id];
+	    int next = nextMembers[id];
+	    previousMembers[tail] = previous;
+	    nextMembers[tail] = next;
+	    if (previous == NONE) {
+		cellHeads[index] = tail;
+	    } else {
+		nextMembers[previous] = tail;
+	    }
+	    if (next == NONE) {
+		cellTails[index] = tail;
+	    } else {
+		previousMembers[next] = tail;
+	    }
 	}
+	--cellSizes[index];
+    }
+
+    /**
+     * Adds the current position and velocity of an entity to the sums of
+     * a cell and remembers them, so that they can be taken out again once
+     * the entity has moved.
+     * @param index the index of the cell holding the entity
+     * @param id the id of the entity
+     */
+    private void addToSums(int index, int id) {
+	if (id >= binnedX.length) {
+	    int capacity = Math.max(id + 1, 2 * binnedX.length);
+	    binnedX = Arrays.copyOf(binnedX, capacity);
+	    binnedY = Arrays.copyOf(binnedY, capacity);
+	    binnedVx = Arrays.copyOf(binnedVx, capacity);
+	    binnedVy = Arrays.copyOf(binnedVy, capacity);
+	}
+	float x = store.px[id];
+	float y = store.py[id];
+	float vx = store.vx[id];
+	float vy = store.vy[id];
+	binnedX[id] = x;
+	binnedY[id] = y;
+	binnedVx[id] = vx;
+	binnedVy[id] = vy;
+	++cellCounts[index];
+	if (!isWithinCell(index, x, y)) {
+	    ++cellStrays[index];
+	}
+	int sum = 4 * index;
+	cellSums[sum] += x;
+	cellSums[sum + 1] += y;
+	cellSums[sum + 2] += vx;
+	cellSums[sum + 3] += vy;
+    }
+
+    /**
+     * Takes the remembered position and velocity of an entity out of the
+     * sums of a cell. The sums of a cell left empty are reset, so rounding
+     * errors do not build up.
+     * @param index the index of the cell holding the entity
+     * @param id the id of the entity
+     */
+    private void removeFromSums(int index, int id) {
+	int sum = 4 * index;
+	if (--cellCounts[index] == 0) {
+	    cellStrays[index] = 0;
+	    Arrays.fill(cellSums, sum, sum + 4, 0.0);
+	    return;
+	}
+	if (!isWithinCell(index, binnedX[id], binnedY[id])) {
+	    --cellStrays[index];
+	}
+	cellSums[sum] -= binnedX[id];
+	cellSums[sum + 1] -= binnedY[id];
+	cellSums[sum + 2] -= binnedVx[id];
+	cellSums[sum + 3] -= binnedVy[id];
     }
 
     /**
      * Converts the given position into an index into the cell space partition.
-     * @param position the position to index
+     * @param x the x-coordinate of the position to index
+     * @param y the y-coordinate of the position to index
      * @return the index of the cell in the partition containing the position
      */
-    private int positionToIndex(final PVector position) {
-	int index = (int) (position.x / cellWidth) + 
-	    (int) (position.y / cellHeight) * numberCellsX;
-    
-	// If the entity is exactly in the bottom right corner of the space, we
-	// have to adjust down.
-	if (index > cells.size() - 1) {
-	    index = cells.size() - 1;
+    private int positionToIndex(float x, float y) {
+	// Positions outside the space, as in the margins of a wrapped space,
+	// are clamped into the nearest cell along each axis, so that queries
+	// still find them in the row and column they are next to.
+	int column = Math.min(numberCellsX - 1,
+			      Math.max(0, (int) Math.floor((x - originX) / cellWidth)));
+	int row = Math.min(numberCellsY - 1,
+			   Math.max(0, (int) Math.floor((y - originY) / cellHeight)));
+	return column + row * numberCellsX;
+    }
+
+    /**
+     * Converts an x-coordinate into a column index. Outside of wrap mode the
+     * coordinate is first clamped to the space.
+     * @param x the x-coordinate to convert
+     * @return the column index, which may lie outside the grid in wrap mode
+     */
+    private int columnIndex(float x) {
+	x -= originX;
+	if (!wrapMode) {
+	    x = Math.min(spaceWidth - 1, Math.max(0.0f, x));
 	}
+	return (int) (Math.floor(x / cellWidth));
+    }
 
-	return index;
+    /**
+     * Converts a y-coordinate into a row index. Outside of wrap mode the
+     * coordinate is first clamped to the space.
+     * @param y the y-coordinate to convert
+     * @return the row index, which may lie outside the grid in wrap mode
+     */
+    private int rowIndex(float y) {
+	y -= originY;
+	if (!wrapMode) {
+	    y = Math.min(spaceHeight - 1, Math.max(0.0f, y));
+	}
+	return (int) (Math.floor(y / cellHeight));
     }
 
     /**
-     * Converts a matrix row and column into an index into the cell space 
+     * Converts a matrix row and column into an index into the cell space
      * partition.
      * @param row the matrix row of the desired element
      * @param column the matrix column of the desired element
@@ -185,62 +576,74 @@ public class CellSpacePartition<T extends Entity> {
 	    column %= numberCellsX;
 	}
 	int index = column + row * numberCellsX;
-	if (index > cells.size()) {
-	    index = cells.size() - 1;
+	if (index > numberCells) {
+	    index = numberCells - 1;
 	}
 	return index;
     }
-  
-    private PVector translateWrappedPoint(PVector sourcePoint, int rowIndex, int colIndex) {
-	PVector translatedPoint = sourcePoint.get();
-    
-	if (rowIndex < 0) {
-	    translatedPoint.y -= spaceHeight;
-	} else if (rowIndex >= numberCellsY) {
-	    translatedPoint.y += spaceHeight;
-	}
-	if (colIndex < 0) {
-	    translatedPoint.x -= spaceWidth;
-	} else if (colIndex >= numberCellsX) {
-	    translatedPoint.x += spaceWidth;
-	}
-    
-	return translatedPoint;
-    }
-
-
-    /**
-     * This class represents a single cell in a cell space partition. Each
-     * cell keeps a list of entities that it contains.
-     * @param <T> the type of object that this cell space partition will track
-     */
-    private class Cell<T> {
-	/** The entities contained by the cell. */
-	public LinkedList<T> members;
-    
-	/** 
-	 * Creates a new cell with the given corners. Note that the
-	 * result is undefined if the bottom right coordinate is above
-	 * or to the left of the top left corner.
-	 * @param topLeft the coordinate of the top left corner of the cell
-	 * @param bottomRight the coordinate of the bottom right
-	 *                    corner of the cell
-	 */
-	public Cell(PVector topLeft, PVector bottomRight) {
-	    members = new LinkedList<T>();
-	}
-    
-	/**
-	 * Creates a new cell with the given corners. Note that the
-	 * result is undefined if the bottom right coordinate is above
-	 * or to the left of the top left corner.
-	 * @param left the x-coordinate of the left side of the cell
-	 * @param top the y-coordinate of the top of the cell
-	 * @param right the x-coordinate of the right side of the cell
-	 * @param bottom the y-coordinate of the bottom of the cell
-	 */
-	public Cell(float left, float top, float right, float bottom) {
-	    this(new PVector(left, top), new PVector(right, bottom));
+
+    /**
+     * Returns the squared distance from a point to the farthest point of a
+     * cell, which bounds the distance to every entity in the cell.
+     * @param column the unwrapped column index of the cell
+     * @param row the unwrapped row index of the cell
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @return the squared distance to the far corner of the cell
+     */
+    private float cellFarthestSq(int column, int row, float x, float y) {
+	x -= originX;
+	y -= originY;
+	float dx = Math.max(x - column * cellWidth, (column + 1) * cellWidth - x);
+	float dy = Math.max(y - row * cellHeight, (row + 1) * cellHeight - y);
+	return dx * dx + dy * dy;
+    }
+
+    /**
+     * Tests whether a position lies within the bounds of a cell. An entity
+     * outside the space is binned into a cell at the edge, or into another
+     * row altogether, and does not lie within it.
+     * @param index the index of the cell
+     * @param x the x-coordinate of the position
+     * @param y the y-coordinate of the position
+     * @return true if the position lies within the cell
+     */
+    private boolean isWithinCell(int index, float x, float y) {
+	int column = index % numberCellsX;
+	int row = index / numberCellsX;
+	x -= originX;
+	y -= originY;
+	return x >= column * cellWidth && x < (column + 1) * cellWidth &&
+	    y >= row * cellHeight && y < (row + 1) * cellHeight;
+    }
+
+
+    /**
+     * The ring search of the partition, which walks the chain of members
+     * of each cell.
+     */
+    private class NearestSearch extends RingSearch {
+	NearestSearch() {
+	    super(true);
+	}
+
+	@Override
+	int searchCell(int column, int row, float targetX, float targetY,
+		       float maxRadiusSq, NearestHeap nearest) {
+	    float[] px = store.px;
+	    float[] py = store.py;
+	    float offsetX = RingSearch.wrapOffset(column, numberCellsX, spaceWidth) - targetX;
+	    float offsetY = RingSearch.wrapOffset(row, numberCellsY, spaceHeight) - targetY;
+	    int index = rowColumnToIndex(row, column);
+	    for (int member = cellHeads[index]; member != NONE; member = nextMembers[member]) {
+		float dx = px[member] + offsetX;
+		float dy = py[member] + offsetY;
+		float distanceSq = dx * dx + dy * dy;
+		if (distanceSq < maxRadiusSq) {
+		    nearest.offer(member, dx, dy, distanceSq);
+		}
+	    }
+	    return cellSizes[index];
 	}
     }
 
@@ -0,0 +1,19 @@
+// CellVisitor.java
+// Callback for walking the members of one cell of a spatial index.
+package org.jbromley.flocking;
+
+
+/**
+ * A callback that receives each entity binned in one cell of a spatial
+ * index, in the order the index keeps them.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public interface CellVisitor {
+
+    /**
+     * Visits one entity of the cell.
+     * @param id the id of the entity
+     */
+    public void visit(int id);
+
+}
@@ -0,0 +1,465 @@
+// CompactGrid.java
+// Grid of cells that is rebuilt from scratch every step with a counting
+// sort.
+package org.jbromley.flocking;
+
+
+import java.util.Arrays;
+
+
+/**
+ * This class divides a geometric space into cells like a
+ * {@link CellSpacePartition}, but instead of keeping a list per cell and
+ * moving entities between lists as they move, it is rebuilt once per step
+ * with a counting sort. All entity ids are kept in a single array sorted
+ * by cell, and cell <code>c</code> holds the ids in
+ * <code>sortedIds[cellStart[c]]</code> up to
+ * <code>sortedIds[cellStart[c + 1]]</code>. Iterating a cell is a walk
+ * over contiguous memory, and nothing is allocated once the arrays have
+ * grown to the size of the flock.
+ * <p>
+ * Cell membership reflects the positions at the last {@link #rebuild()};
+ * {@link #addEntity(int)} and {@link #updateEntity(int, float, float)}
+ * only mark the grid as stale.
+ * <p>
+ * With packing turned on, a rebuild also copies the positions and
+ * velocities into arrays in the same order as the sorted ids, so that a
+ * {@link SteeringKernel} can load the members of a cell with contiguous
+ * vector loads instead of gathers.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class CompactGrid implements SpatialIndex {
+
+    /**
+     * The number of unused slots kept after the packed state, so that a
+     * SIMD kernel can load a full vector at any position of a run.
+     */
+    static final int PADDING = 64;
+
+    private BoidStore store;
+    private float spaceWidth;
+    private float spaceHeight;
+    private int numberCellsX;
+    private int numberCellsY;
+    private float cellWidth;
+    private float cellHeight;
+    private float originX;
+    private float originY;
+    private boolean wrapMode;
+    private RingSearch rings;
+
+    private int[] cellStart;
+    private int[] cellCursor;
+    private int[] cellOf;
+    private int[] sortedIds;
+    private int numberIds;
+
+    private boolean packing;
+    private float[] packedX;
+    private float[] packedY;
+    private float[] packedVx;
+    private float[] packedVy;
+    private int[] slotOf;
+
+    /**
+     * Creates a new, empty grid.
+     * @param store the store holding the entity positions
+     * @param width the width of the space to be divided
+     * @param height the height of the space to be divided
+     * @param cellsX the number of horizontal cells
+     * @param cellsY the number of vertical cells
+     */
+    public CompactGrid(BoidStore store, float width, float height,
+                       int cellsX, int cellsY) {
+        this.store = store;
+        spaceWidth = width;
+        spaceHeight = height;
+        numberCellsX = cellsX;
+        numberCellsY = cellsY;
+        originX = 0.0f;
+        originY = 0.0f;
+        wrapMode = false;
+
+        cellWidth = spaceWidth / numberCellsX;
+        cellHeight = spaceHeight / numberCellsY;
+        rings = new NearestSearch();
+        rings.setGrid(numberCellsX, numberCellsY, cellWidth, cellHeight, wrapMode);
+
+        cellStart = new int[numberCellsX * numberCellsY + 1];
+        cellCursor = new int[numberCellsX * numberCellsY];
+        cellOf = new int[store.size()];
+        sortedIds = new int[store.size()];
+        slotOf = new int[store.size()];
+        numberIds = 0;
+        packing = false;
+    }
+
+    public void addEntity(int id) {
+        // The entity is binned at the next rebuild.
+    }
+
+    public void updateEntity(int id, float oldX, float oldY) {
+        // The entity is re-binned at the next rebuild.
+    }
+
+    /**
+     * Sorts every entity of the store into its cell. This first counts the
+     * entities per cell, turns the counts into start offsets with a prefix
+     * sum and then scatters the ids into place, noting the slot of each
+     * id on the way.
+     */
+    public void rebuild() {
+        int count = store.size();
+        if (sortedIds.length < count) {
+            sortedIds = new int[Math.max(count, 2 * sortedIds.length)];
+            cellOf = new int[sortedIds.length];
+            slotOf = new int[sortedIds.length];
+        }
+        float[] px = store.px;
+        float[] py = store.py;
+
+        Arrays.fill(cellStart, 0);
+        for (int id = 0; id < count; ++id) {
+            int cell = positionToIndex(px[id], py[id]);
+            cellOf[id] = cell;
+            ++cellStart[cell + 1];
+        }
+        for (int cell = 0; cell < cellCursor.length; ++cell) {
+            cellStart[cell + 1] += cellStart[cell];
+            cellCursor[cell] = cellStart[cell];
+        }
+        for (int id = 0; id < count; ++id) {
+            int slot = cellCursor[cellOf[id]]++;
+            sortedIds[slot] = id;
+            slotOf[id] = slot;
+        }
+        numberIds = count;
+        if (packing) {
+            pack();
+        }
+    }
+
+    /**
+     * Copies the positions and velocities into sorted order.
+     */
+    private void pack() {
+        int count = numberIds;
+        if (packedX == null || packedX.length < count + PADDING) {
+            int length = sortedIds.length + PADDING;
+            packedX = new float[length];
+            packedY = new float[length];
+            packedVx = new float[length];
+            packedVy = new float[length];
+        }
+        float[] px = store.px;
+        float[] py = store.py;
+        float[] vx = store.vx;
+        float[] vy = store.vy;
+        for (int slot = 0; slot < count; ++slot) {
+            int id = sortedIds[slot];
+            packedX[slot] = px[id];
+            packedY[slot] = py[id];
+            packedVx[slot] = vx[id];
+            packedVy[slot] = vy[id];
+        }
+    }
+
+    /**
+     * Turns the packed copy of the positions and velocities on or off.
+     * The copy costs a pass over the flock at every rebuild and is only
+     * needed by {@link #findCellRuns(int, float, float, float, CellRuns)}.
+     * @param usePacking true to pack the state at every rebuild
+     */
+    void setPacking(boolean usePacking) {
+        packing = usePacking;
+        if (packing) {
+            pack();
+        }
+    }
+
+    public IntList getNeighborList(float targetX, float targetY,
+                                   float queryRadius) {
+        IntList neighbors = new IntList();
+        getNeighborList(targetX, targetY, queryRadius, neighbors);
+        return neighbors;
+    }
+
+    public void getNeighborList(float targetX, float targetY,
+                                float queryRadius, IntList neighbors) {
+        neighbors.clear();
+        float[] px = store.px;
+        float[] py = store.py;
+        float radiusSq = queryRadius * queryRadius;
+
+        // Find the cell range of the region of interest. This will depend on
+        // the wrap mode.
+        int leftIndex = columnIndex(targetX - queryRadius);
+        int topIndex = rowIndex(targetY - queryRadius);
+        int rightIndex = columnIndex(targetX + queryRadius);
+        int bottomIndex = rowIndex(targetY + queryRadius);
+
+        for (int rowIndex = topIndex; rowIndex <= bottomIndex; ++rowIndex) {
+            float offsetY = RingSearch.wrapOffset(rowIndex, numberCellsY, spaceHeight) - targetY;
+            for (int colIndex = leftIndex; colIndex <= rightIndex; ++colIndex) {
+                float offsetX = RingSearch.wrapOffset(colIndex, numberCellsX, spaceWidth) - targetX;
+                int cell = rowColumnToIndex(rowIndex, colIndex);
+                int end = cellStart[cell + 1];
+                for (int i = cellStart[cell]; i < end; ++i) {
+                    int member = sortedIds[i];
+                    float dx = px[member] + offsetX;
+                    float dy = py[member] + offsetY;
+                    if (dx * dx + dy * dy < radiusSq) {
+                        neighbors.add(member);
+                    }
+                }
+            }
+        }
+    }
+
+    public void forEachNeighbor(float targetX, float targetY,
+                                float queryRadius, NeighborVisitor visitor) {
+        float[] px = store.px;
+        float[] py = store.py;
+        float radiusSq = queryRadius * queryRadius;
+
+        int leftIndex = columnIndex(targetX - queryRadius);
+        int topIndex = rowIndex(targetY - queryRadius);
+        int rightIndex = columnIndex(targetX + queryRadius);
+        int bottomIndex = rowIndex(targetY + queryRadius);
+
+        for (int rowIndex = topIndex; rowIndex <= bottomIndex; ++rowIndex) {
+            float offsetY = RingSearch.wrapOffset(rowIndex, numberCellsY, spaceHeight) - targetY;
+            for (int colIndex = leftIndex; colIndex <= rightIndex; ++colIndex) {
+                float offsetX = RingSearch.wrapOffset(colIndex, numberCellsX, spaceWidth) - targetX;
+                int cell = rowColumnToIndex(rowIndex, colIndex);
+                int end = cellStart[cell + 1];
+                for (int i = cellStart[cell]; i < end; ++i) {
+                    int member = sortedIds[i];
+                    float dx = px[member] + offsetX;
+                    float dy = py[member] + offsetY;
+                    float distanceSq = dx * dx + dy * dy;
+                    if (distanceSq < radiusSq &&
+                        !visitor.visit(member, dx, dy, distanceSq)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the cells covered by a neighbor query as runs of the packed
+     * state, for a {@link SteeringKernel} to sweep. The runs hold every
+     * entity within the radius of the point, and also entities just
+     * outside it, which the kernel must reject by distance. The packed
+     * state was copied at the last rebuild, so the kernel sees the
+     * positions and velocities at the start of the step, as the parallel
+     * step does. Packing must be turned on.
+     * @param id the entity at the query point, which the kernel skips
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param queryRadius the radius of the query
+     * @param runs the list that is cleared and receives the runs
+     */
+    void findCellRuns(int id, float targetX, float targetY, float queryRadius,
+                      CellRuns runs) {
+        runs.clear(packedX, packedY, packedVx, packedVy,
+                   id < numberIds ? slotOf[id] : -1);
+        int leftIndex = columnIndex(targetX - queryRadius);
+        int topIndex = rowIndex(targetY - queryRadius);
+        int rightIndex = columnIndex(targetX + queryRadius);
+        int bottomIndex = rowIndex(targetY + queryRadius);
+
+        for (int rowIndex = topIndex; rowIndex <= bottomIndex; ++rowIndex) {
+            float offsetY = RingSearch.wrapOffset(rowIndex, numberCellsY, spaceHeight) - targetY;
+            for (int colIndex = leftIndex; colIndex <= rightIndex; ++colIndex) {
+                float offsetX = RingSearch.wrapOffset(colIndex, numberCellsX, spaceWidth) - targetX;
+                int cell = rowColumnToIndex(rowIndex, colIndex);
+                runs.add(cellStart[cell], cellStart[cell + 1], offsetX, offsetY);
+            }
+        }
+    }
+
+    /**
+     * Finds the entities nearest to a point. The cells are searched in
+     * square rings of growing size around the cell holding the point.
+     * Once the heap is full, cells that lie farther away than the farthest
+     * entity kept are skipped. The search stops as soon as the heap is full
+     * and no cell outside the rings searched so far can hold a nearer
+     * entity, or the rings reach the maximum radius or cover the whole
+     * grid.
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param maxRadius the distance beyond which entities are ignored
+     * @param nearest the heap, already reset, that receives the entities
+     */
+    public void findNearest(float targetX, float targetY, float maxRadius,
+                            NearestHeap nearest) {
+        rings.findNearest(targetX, targetY, columnIndex(targetX), rowIndex(targetY),
+                          maxRadius, numberIds, nearest);
+    }
+
+    public void setWrapMode(boolean useWrapping) {
+        wrapMode = useWrapping;
+        rings.setGrid(numberCellsX, numberCellsY, cellWidth, cellHeight, wrapMode);
+    }
+
+    public boolean getWrapMode() {
+        return wrapMode;
+    }
+
+    public void setOrigin(float x, float y) {
+        originX = x;
+        originY = y;
+        rings.setOrigin(originX, originY);
+        rebuild();
+    }
+
+    /**
+     * Divides the space into a new number of cells and sorts every entity
+     * into them.
+     * @param cellsX the number of horizontal cells
+     * @param cellsY the number of vertical cells
+     */
+    public void resize(int cellsX, int cellsY) {
+        numberCellsX = cellsX;
+        numberCellsY = cellsY;
+        cellWidth = spaceWidth / numberCellsX;
+        cellHeight = spaceHeight / numberCellsY;
+        rings.setGrid(numberCellsX, numberCellsY, cellWidth, cellHeight, wrapMode);
+        cellStart = new int[numberCellsX * numberCellsY + 1];
+        cellCursor = new int[numberCellsX * numberCellsY];
+        rebuild();
+    }
+
+    /**
+     * Removes all entites from the cells of the grid.
+     */
+    public void clear() {
+        Arrays.fill(cellStart, 0);
+        numberIds = 0;
+    }
+
+    public int getCellCount() {
+        return cellCursor.length;
+    }
+
+    public int getCellSize(int cell) {
+        return cellStart[cell + 1] - cellStart[cell];
+    }
+
+    public void forEachCellMember(int cell, CellVisitor visitor) {
+        int end = cellStart[cell + 1];
+        for (int i = cellStart[cell]; i < end; ++i) {
+            visitor.visit(sortedIds[i]);
+        }
+    }
+
+    /**
+     * Returns the number of entities binned at the last rebuild.
+     * @return the number of entities in the grid
+     */
+    public int size() {
+        return numberIds;
+    }
+
+    /**
+     * Converts the given position into an index into the grid.
+     * @param x the x-coordinate of the position to index
+     * @param y the y-coordinate of the position to index
+     * @return the index of the cell in the grid containing the position
+     */
+    private int positionToIndex(float x, float y) {
+        // Positions outside the space, as in the margins of a wrapped
+        // space, are clamped into the nearest cell along each axis, so that
+        // queries still find them in the row and column they are next to.
+        int column = Math.min(numberCellsX - 1,
+                              Math.max(0, (int) Math.floor((x - originX) / cellWidth)));
+        int row = Math.min(numberCellsY - 1,
+                           Math.max(0, (int) Math.floor((y - originY) / cellHeight)));
+        return column + row * numberCellsX;
+    }
+
+    /**
+     * Converts an x-coordinate into a column index. Outside of wrap mode the
+     * coordinate is first clamped to the space.
+     * @param x the x-coordinate to convert
+     * @return the column index, which may lie outside the grid in wrap mode
+     */
+    private int columnIndex(float x) {
+        x -= originX;
+        if (!wrapMode) {
+            x = Math.min(spaceWidth - 1, Math.max(0.0f, x));
+        }
+        return (int) (Math.floor(x / cellWidth));
+    }
+
+    /**
+     * Converts a y-coordinate into a row index. Outside of wrap mode the
+     * coordinate is first clamped to the space.
+     * @param y the y-coordinate to convert
+     * @return the row index, which may lie outside the grid in wrap mode
+     */
+    private int rowIndex(float y) {
+        y -= originY;
+        if (!wrapMode) {
+            y = Math.min(spaceHeight - 1, Math.max(0.0f, y));
+        }
+        return (int) (Math.floor(y / cellHeight));
+    }
+
+    /**
+     * Converts a matrix row and column into an index into the grid,
+     * wrapping rows and columns that are outside of it.
+     * @param row the matrix row of the desired element
+     * @param column the matrix column of the desired element
+     * @return the index to the desired element
+     */
+    private int rowColumnToIndex(int row, int column) {
+        if (row < 0){
+            row += numberCellsY;
+        } else if (row >= numberCellsY) {
+            row %= numberCellsY;
+        }
+        if (column < 0) {
+            column += numberCellsX;
+        } else if (column >= numberCellsX) {
+            column %= numberCellsX;
+        }
+        return column + row * numberCellsX;
+    }
+
+
+    /**
+     * The ring search of the grid, which searches a cell by scanning its
+     * run of the sorted ids.
+     */
+    private class NearestSearch extends RingSearch {
+        NearestSearch() {
+            super(true);
+        }
+
+        @Override
+        int searchCell(int column, int row, float targetX, float targetY,
+                       float maxRadiusSq, NearestHeap nearest) {
+            float[] px = store.px;
+            float[] py = store.py;
+            float offsetX = RingSearch.wrapOffset(column, numberCellsX, spaceWidth) - targetX;
+            float offsetY = RingSearch.wrapOffset(row, numberCellsY, spaceHeight) - targetY;
+            int cell = rowColumnToIndex(row, column);
+            int start = cellStart[cell];
+            int end = cellStart[cell + 1];
+            for (int i = start; i < end; ++i) {
+                int member = sortedIds[i];
+                float dx = px[member] + offsetX;
+                float dy = py[member] + offsetY;
+                float distanceSq = dx * dx + dy * dy;
+                if (distanceSq < maxRadiusSq) {
+                    nearest.offer(member, dx, dy, distanceSq);
+                }
+            }
+            return end - start;
+        }
+    }
+
+}
@@ -0,0 +1,469 @@
+// DomainWorker.java
+// Simulates one strip of a world split between several workers.
+package org.jbromley.flocking;
+
+
+import java.awt.geom.Line2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Random;
+
+
+/**
+ * This class simulates the boids in one vertical strip of a world that is
+ * split between several workers, each stepping its own
+ * {@link FlockSimulation}, so that a flock too large for one process can
+ * be spread over several. The strips are of equal width and numbered from
+ * the left. Every worker knows the size of the whole world, but it only
+ * holds the boids in its own strip and copies of those near its edges,
+ * and its spatial index only covers the strip and a band as wide as the
+ * interaction radius on either side of it.
+ * <p>
+ * Before every step each worker sends one message to each neighboring
+ * strip over a {@link HaloTransport}. The message holds the boids that
+ * have moved into that strip, which the neighbor takes over, and ghost
+ * copies of the boids within the interaction radius of that strip, which
+ * the neighbor only reads during the step. A worker also keeps the boids
+ * it has just handed over as ghosts for one more step, since they are
+ * still near its edge. In a wrapped world, ghosts from across the edge of
+ * the world are moved by its width to the side of the strip they are
+ * next to, so that they land in the band. Each boid carries its own random sequence, so its
+ * trajectory does not depend on which worker steps it. In a wrapped world
+ * the first and last strips are neighbors.
+ * <p>
+ * Each message is little-endian: the long step number, the int number of
+ * boids handed over and their states, then the int number of ghosts and
+ * their states, each state being {@link BoidStore#STATE_BYTES} bytes. The
+ * strips must be at least as wide as the interaction radius, so that a
+ * boid only ever steers, or moves into, the strips next to it.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class DomainWorker {
+
+    private FlockSimulation simulation;
+    private HaloTransport transport;
+    private int rank;
+    private int workers;
+    private float left;
+    private float right;
+    /** The width of the band kept on either side of the strip by the index. */
+    private float band;
+    /** The workers to the left and right, or -1 at the edge of the world. */
+    private int leftRank;
+    private int rightRank;
+    /** The distinct neighboring workers, at most two. */
+    private int[] neighbors;
+    private ByteBuffer[] messages;
+    private ByteBuffer[] received;
+    private int[] counts;
+    private IntList leaving;
+
+    /**
+     * Creates the worker for one strip. The simulation should only hold
+     * boids in the strip, and must already be set to wrap or not.
+     * @param simulation the simulation of the whole world that holds the
+     *                   boids of this strip
+     * @param transport the link to the other workers
+     * @param rank the number of this worker, which is also the number of
+     *             its strip
+     * @param workers the number of workers
+     */
+    public DomainWorker(FlockSimulation simulation, HaloTransport transport,
+                        int rank, int workers) {
+        this.simulation = simulation;
+        this.transport = transport;
+        this.rank = rank;
+        this.workers = workers;
+        left = stripEdge(rank);
+        right = stripEdge(rank + 1);
+        band = 0.0f;
+        fitIndex(Boid.getInteractionRadius());
+        leaving = new IntList();
+        findNeighbors();
+        messages = new ByteBuffer[neighbors.length];
+        for (int i = 0; i < neighbors.length; ++i) {
+            messages[i] = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        received = new ByteBuffer[neighbors.length];
+        counts = new int[neighbors.length];
+    }
+
+    /**
+     * Finds the workers next to this one. Outside a wrapped world the end
+     * strips have only one neighbor, and with two strips in a wrapped
+     * world both neighbors are the same worker.
+     */
+    private void findNeighbors() {
+        boolean wrap = !simulation.getUseWalls();
+        leftRank = rank > 0 ? rank - 1 : wrap ? workers - 1 : -1;
+        rightRank = rank < workers - 1 ? rank + 1 : wrap ? 0 : -1;
+        IntList found = new IntList(2);
+        if (leftRank >= 0 && leftRank != rank) {
+            found.add(leftRank);
+        }
+        if (rightRank >= 0 && rightRank != rank && rightRank != leftRank) {
+            found.add(rightRank);
+        }
+        neighbors = new int[found.size()];
+        for (int i = 0; i < neighbors.length; ++i) {
+            neighbors[i] = found.get(i);
+        }
+    }
+
+    /**
+     * Limits the spatial index of the simulation to the strip and a band on
+     * either side of it wide enough for the ghosts and for the queries of
+     * the boids of the strip. Boids of the end strips may stand past the
+     * edge of a wrapped world by their radius, so the band is a little
+     * wider than the interaction radius. The index is only replaced when
+     * the band changes.
+     * @param halo the interaction radius
+     */
+    private void fitIndex(float halo) {
+        float wanted = halo + 2.0f * Boid.START_RADIUS;
+        if (wanted != band) {
+            band = wanted;
+            simulation.setIndexRegion(left - band, 0.0f, right - left + 2.0f * band,
+                                      simulation.getHeight());
+        }
+    }
+
+    /**
+     * Returns the x-coordinate of the left edge of a strip.
+     * @param strip the number of the strip, or the number of strips for the
+     *              right edge of the world
+     * @return the x-coordinate of the edge
+     */
+    private float stripEdge(int strip) {
+        return simulation.getWidth() * strip / workers;
+    }
+
+    /**
+     * Returns the strip that owns a position. Boids past the edges of the
+     * world belong to the end strips.
+     * @param x the x-coordinate of the position
+     * @return the number of the strip
+     */
+    private int stripOf(float x) {
+        int strip = (int) Math.floor(x * workers / simulation.getWidth());
+        return Math.max(0, Math.min(workers - 1, strip));
+    }
+
+    /**
+     * Exchanges boids and ghosts with the neighboring workers and advances
+     * the strip by one step.
+     * @throws IOException if the exchange fails
+     */
+    public void step() throws IOException {
+        float halo = Boid.getInteractionRadius();
+        if (workers > 1 && right - left < halo) {
+            throw new IllegalStateException(String.format("strips %1$.1f wide are narrower " +
+                                                          "than the interaction radius %2$.1f",
+                                                          right - left, halo));
+        }
+        fitIndex(halo);
+        BoidStore store = simulation.getStore();
+        long step = simulation.getStepCount();
+        for (int i = 0; i < neighbors.length; ++i) {
+            messages[i].clear();
+            messages[i].putLong(step);
+        }
+        writeLeaving(store);
+        writeGhosts(store, halo);
+        for (int i = 0; i < neighbors.length; ++i) {
+            messages[i].flip();
+            transport.send(neighbors[i], messages[i]);
+        }
+
+        for (int i = 0; i < neighbors.length; ++i) {
+            received[i] = transport.receive(neighbors[i]);
+            long sent = received[i].getLong();
+            if (sent != step) {
+                throw new IOException("worker " + neighbors[i] + " sent step " + sent +
+                                      " during step " + step);
+            }
+        }
+
+        // The boids of the strip must all be in place before any ghost.
+        for (int i = leaving.size() - 1; i >= 0; --i) {
+            simulation.removeBoid(leaving.get(i));
+        }
+        for (int i = 0; i < neighbors.length; ++i) {
+            int arriving = received[i].getInt();
+            for (int j = 0; j < arriving; ++j) {
+                simulation.addBoid(received[i]);
+            }
+        }
+        for (int i = 0; i < neighbors.length; ++i) {
+            // Skip the step number; the boids that left are still near.
+            messages[i].position(8);
+            readGhosts(messages[i]);
+        }
+        for (int i = 0; i < neighbors.length; ++i) {
+            readGhosts(received[i]);
+            transport.release(neighbors[i]);
+        }
+
+        simulation.step();
+    }
+
+    /**
+     * Finds the boids that have left the strip and writes them to the
+     * messages for the strips they have moved into.
+     * @param store the store holding the boids of the strip
+     */
+    private void writeLeaving(BoidStore store) {
+        for (int i = 0; i < neighbors.length; ++i) {
+            messages[i].putInt(0);
+            counts[i] = 0;
+        }
+        leaving.clear();
+        for (int id = 0; id < store.size(); ++id) {
+            int strip = stripOf(store.px[id]);
+            if (strip == rank) {
+                continue;
+            }
+            int i = neighborIndex(strip);
+            if (i < 0) {
+                throw new IllegalStateException("boid " + id + " jumped from strip " + rank +
+                                                " to strip " + strip);
+            }
+            messages[i] = ensureRoom(messages[i]);
+            store.writeState(id, messages[i]);
+            ++counts[i];
+            leaving.add(id);
+        }
+        for (int i = 0; i < neighbors.length; ++i) {
+            messages[i].putInt(8, counts[i]);
+        }
+    }
+
+    /**
+     * Writes ghost copies of the boids near the edges of the strip to the
+     * messages for the strips they are near. The boids that are leaving
+     * are not copied, since they are handed over whole.
+     * @param store the store holding the boids of the strip
+     * @param halo the interaction radius
+     */
+    private void writeGhosts(BoidStore store, float halo) {
+        for (int i = 0; i < neighbors.length; ++i) {
+            messages[i].putInt(0);
+            counts[i] = 0;
+        }
+        int next = 0;
+        for (int id = 0; id < store.size(); ++id) {
+            if (next < leaving.size() && leaving.get(next) == id) {
+                ++next;
+                continue;
+            }
+            float x = store.px[id];
+            int nearLeft = x - left < halo ? neighborIndex(leftRank) : -1;
+            int nearRight = right - x < halo ? neighborIndex(rightRank) : -1;
+            if (nearLeft >= 0) {
+                messages[nearLeft] = ensureRoom(messages[nearLeft]);
+                store.writeState(id, messages[nearLeft]);
+                ++counts[nearLeft];
+            }
+            if (nearRight >= 0 && nearRight != nearLeft) {
+                messages[nearRight] = ensureRoom(messages[nearRight]);
+                store.writeState(id, messages[nearRight]);
+                ++counts[nearRight];
+            }
+        }
+        // The ghosts follow the boids handed over, whose number is known.
+        for (int i = 0; i < neighbors.length; ++i) {
+            messages[i].putInt(12 + BoidStore.STATE_BYTES * messages[i].getInt(8), counts[i]);
+        }
+    }
+
+    /**
+     * Reads a block of ghosts from a message into the simulation. In a
+     * wrapped world a ghost from across the edge of the world is moved by
+     * the width of the world to the side of the strip it is next to.
+     * @param message the message, positioned at the number of ghosts or
+     *                of boids handed over
+     */
+    private void readGhosts(ByteBuffer message) {
+        int count = message.getInt();
+        boolean wrap = !simulation.getUseWalls();
+        float width = simulation.getWidth();
+        float center = 0.5f * (left + right);
+        BoidStore store = simulation.getStore();
+        for (int j = 0; j < count; ++j) {
+            simulation.addGhost(message);
+            int id = store.size() - 1;
+            float offset = store.px[id] - center;
+            if (wrap && offset > 0.5f * width) {
+                store.px[id] -= width;
+            } else if (wrap && offset < -0.5f * width) {
+                store.px[id] += width;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of a worker among the neighbors.
+     * @param other the number of the worker
+     * @return its index in the neighbors, or -1 if it is not a neighbor
+     */
+    private int neighborIndex(int other) {
+        for (int i = 0; i < neighbors.length; ++i) {
+            if (neighbors[i] == other) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes sure a message has room for one more boid, doubling it if not.
+     * @param message the message being written
+     * @return the message, or a larger copy of it
+     */
+    private static ByteBuffer ensureRoom(ByteBuffer message) {
+        if (message.remaining() >= BoidStore.STATE_BYTES) {
+            return message;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(2 * message.capacity());
+        larger.order(ByteOrder.LITTLE_ENDIAN);
+        message.flip();
+        larger.put(message);
+        return larger;
+    }
+
+    public FlockSimulation getSimulation() {
+        return simulation;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public float getLeft() {
+        return left;
+    }
+
+    public float getRight() {
+        return right;
+    }
+
+    /**
+     * Creates the worker for one strip of a wrapped world made of strips
+     * 1920 wide and 1200 high, filled with boids placed at random.
+     * @param transport the link to the other workers
+     * @param rank the number of this worker
+     * @param workers the number of workers
+     * @param count the number of boids in the strip
+     * @param seed the seed of the world; each strip adds its number to it
+     * @param kind the kind of spatial index to use
+     * @return the worker
+     */
+    private static DomainWorker createStrip(HaloTransport transport, int rank, int workers,
+                                            int count, long seed,
+                                            FlockSimulation.GridKind kind) {
+        float width = 1920.0f * workers;
+        float height = 1200.0f;
+        Random random = new Random(seed + rank);
+        FlockSimulation simulation =
+            new FlockSimulation(width, height, new ArrayList<Line2D.Float>(),
+                                random, 1.0f / 60.0f);
+        simulation.setUseWalls(false);
+        simulation.setGridKind(kind);
+        DomainWorker worker = new DomainWorker(simulation, transport, rank, workers);
+        for (int i = 0; i < count; ++i) {
+            simulation.addBoid(worker.left + random.nextFloat() * (worker.right - worker.left),
+                               random.nextFloat() * height,
+                               1.0f + 2.0f * random.nextFloat(), 0.10f);
+        }
+        return worker;
+    }
+
+    /**
+     * Runs a worker for a number of steps and reports its step rate and
+     * the checksum of its strip.
+     * @param worker the worker
+     * @param steps the number of steps to run
+     * @throws IOException if an exchange fails
+     */
+    private static void run(DomainWorker worker, int steps) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; ++i) {
+            worker.step();
+        }
+        double seconds = (System.nanoTime() - start) / 1.0e9;
+        FlockSimulation simulation = worker.getSimulation();
+        System.out.println(String.format("worker %1$d: %2$d boids, %3$d steps: " +
+                                         "%4$.1f steps/s, checksum %5$016x",
+                                         worker.getRank(), simulation.size(), steps,
+                                         steps / seconds, simulation.checksum()));
+    }
+
+    /**
+     * Runs a split flock without a window. Given "local" first, every
+     * worker runs on its own thread in this process, linked by a
+     * {@link LocalHaloTransport}. Given a directory first, this process
+     * runs one worker, linked to the others through a
+     * {@link MappedHaloTransport} on files in that directory, which must be
+     * empty; start one process for each worker.
+     * @param args "local" or the shared directory and the number of this
+     *             worker, then the number of workers, the number of boids
+     *             per worker, the number of steps, the random seed and the
+     *             kind of grid
+     * @throws Exception if a worker fails
+     */
+    public static void main(String args[]) throws Exception {
+        final boolean local = args[0].equals("local");
+        int next = local ? 1 : 2;
+        final int workers = Integer.parseInt(args[next]);
+        final int count = args.length > next + 1 ? Integer.parseInt(args[next + 1]) : 5000;
+        final int steps = args.length > next + 2 ? Integer.parseInt(args[next + 2]) : 1000;
+        final long seed = args.length > next + 3 ? Long.parseLong(args[next + 3]) : 0L;
+        final FlockSimulation.GridKind kind = args.length > next + 4 ?
+            FlockSimulation.GridKind.valueOf(args[next + 4].toUpperCase()) :
+            FlockSimulation.GridKind.PARTITION;
+
+        if (!local) {
+            int rank = Integer.parseInt(args[1]);
+            MappedHaloTransport transport =
+                new MappedHaloTransport(new File(args[0]), rank, workers);
+            try {
+                run(createStrip(transport, rank, workers, count, seed, kind), steps);
+            } finally {
+                transport.close();
+            }
+            return;
+        }
+
+        final LocalHaloTransport[] transports = LocalHaloTransport.create(workers);
+        final DomainWorker[] strips = new DomainWorker[workers];
+        final Exception[] failures = new Exception[workers];
+        Thread[] threads = new Thread[workers];
+        for (int rank = 0; rank < workers; ++rank) {
+            strips[rank] = createStrip(transports[rank], rank, workers, count, seed, kind);
+            final int worker = rank;
+            threads[rank] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        DomainWorker.run(strips[worker], steps);
+                    } catch (Exception e) {
+                        failures[worker] = e;
+                    }
+                }
+            }, "worker-" + rank);
+            threads[rank].start();
+        }
+        int total = 0;
+        for (int rank = 0; rank < workers; ++rank) {
+            threads[rank].join();
+            if (failures[rank] != null) {
+                throw failures[rank];
+            }
+            total += strips[rank].getSimulation().size();
+        }
+        System.out.println(String.format("%1$d workers: %2$d boids", workers, total));
+    }
+
+}
@@ -0,0 +1,231 @@
+// FlockExportReader.java
+// Follows the live state of a flock published by a FlockExporter.
+package org.jbromley.flocking;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * This class reads the latest frame from an export file, in the format
+ * described by {@link FlockExporter}, into a {@link BoidStore}, so that
+ * another process can follow a running flock. The file is mapped
+ * read-only and a frame is read with bulk copies straight from the
+ * mapping. The exporter does not wait for readers, so a frame may be
+ * overwritten while it is copied; the sequence number of its slot shows
+ * this, and the latest frame is then read again.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class FlockExportReader {
+
+    /** The most times a frame is read again before giving up until the next call. */
+    private static final int MAX_ATTEMPTS = 16;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int slots;
+    private int capacity;
+    private int slotSize;
+    private float width;
+    private float height;
+    private float timeStep;
+    /** Scratch space for reading the counts. */
+    private ByteBuffer word;
+
+    /** The number of the last frame read, counting from one. */
+    private long frame;
+    private long step;
+    private int flockSize;
+    private long torn;
+
+    /**
+     * Opens an export file and maps it.
+     * @param path the file written by the exporter
+     * @throws IOException if the file cannot be read or is not an export
+     *         file
+     */
+    public FlockExportReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            if (header.getInt() != FlockExporter.MAGIC) {
+                throw new IOException("not an export file");
+            }
+            int version = header.getInt();
+            if (version != FlockExporter.VERSION) {
+                throw new IOException("unsupported export version " + version);
+            }
+            slots = header.getInt();
+            capacity = header.getInt();
+            width = header.getFloat();
+            height = header.getFloat();
+            timeStep = header.getFloat();
+            slotSize = header.getInt();
+            if (channel.size() < FlockExporter.HEADER_SIZE + (long) slotSize * slots) {
+                throw new IOException("export file truncated");
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        word = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        frame = 0;
+        step = 0;
+        flockSize = 0;
+        torn = 0;
+    }
+
+    /**
+     * Reads the latest frame into a store, replacing its boids, if it is
+     * newer than the last frame read. Only the position and velocity of
+     * the boids are set. If every attempt to read the frame is overwritten
+     * by the exporter, the store may be left holding a mix of frames.
+     * @param store the store that receives the boids
+     * @return true if a new frame was read, false if there is none yet or
+     *         it could not be read whole
+     * @throws IOException if the counts cannot be read
+     */
+    public boolean readLatest(BoidStore store) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+            long latest = readCount(FlockExporter.PUBLISHED_OFFSET);
+            if (latest == 0 || latest == frame) {
+                return false;
+            }
+            int base = FlockExporter.HEADER_SIZE + (int) ((latest - 1) % slots) * slotSize;
+            long sequence = readCount(base);
+            if ((sequence & 1) == 0) {
+                ByteBuffer data = map.duplicate();
+                data.order(ByteOrder.LITTLE_ENDIAN);
+                long frameStep = data.getLong(base + 8);
+                int count = data.getInt(base + 16);
+                int size = data.getInt(base + 20);
+                if (count >= 0 && count <= capacity) {
+                    data.position(base + FlockExporter.SLOT_HEADER_SIZE);
+                    store.setSize(count);
+                    getFloats(data, store.px, count);
+                    getFloats(data, store.py, count);
+                    getFloats(data, store.vx, count);
+                    getFloats(data, store.vy, count);
+                    if (readCount(base) == sequence) {
+                        frame = latest;
+                        step = frameStep;
+                        flockSize = size;
+                        return true;
+                    }
+                }
+            }
+            ++torn;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the simulation step of the last frame read.
+     * @return the step number
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * Returns the number of boids in the flock at the last frame read,
+     * which is more than were read if the flock outgrew the capacity of
+     * the file.
+     * @return the number of boids
+     */
+    public int getFlockSize() {
+        return flockSize;
+    }
+
+    /**
+     * Returns the number of reads that were overwritten by the exporter
+     * and thrown away.
+     * @return the number of torn reads
+     */
+    public long getTornReads() {
+        return torn;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public float getWidth() {
+        return width;
+    }
+
+    public float getHeight() {
+        return height;
+    }
+
+    public float getTimeStep() {
+        return timeStep;
+    }
+
+    /**
+     * Closes the file. The mapping stays valid until it is garbage
+     * collected, but no frame may be read after closing.
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        map = null;
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * Reads a count through the file channel.
+     * @param offset the position of the count in the file
+     * @return the count
+     * @throws IOException if the count cannot be read
+     */
+    private long readCount(int offset) throws IOException {
+        word.clear();
+        while (word.hasRemaining()) {
+            if (channel.read(word, offset + word.position()) < 0) {
+                throw new IOException("export file truncated");
+            }
+        }
+        return word.getLong(0);
+    }
+
+    /**
+     * Fills a buffer from the file.
+     * @param buffer the buffer to fill
+     * @param position the position in the file to read from
+     * @throws IOException if the file ends before the buffer is full
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of export file");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Copies a block of floats out of a buffer in one bulk transfer.
+     * @param data the buffer, positioned at the block
+     * @param values the array that receives the floats
+     * @param count the number of floats
+     */
+    private static void getFloats(ByteBuffer data, float[] values, int count) {
+        data.asFloatBuffer().get(values, 0, count);
+        data.position(data.position() + 4 * count);
+    }
+
+}
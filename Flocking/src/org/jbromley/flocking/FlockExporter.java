@@ -0,0 +1,266 @@
+// FlockExporter.java
+// Publishes the live state of a flock through a memory-mapped file.
+package org.jbromley.flocking;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+
+/**
+ * This class publishes the position and velocity of every boid after
+ * every step into a ring of slots in a memory-mapped file, so that other
+ * processes on the same machine can follow the flock live by mapping the
+ * same file, for instance with a {@link FlockExportReader}. The state is
+ * copied from the store straight into the mapping, and the writer never
+ * waits for a reader: each step goes into the next slot of the ring,
+ * overwriting whatever was there, and a reader detects a slot that
+ * changed under it by the sequence number of the slot, as with a seqlock.
+ * <p>
+ * The file is little-endian. It starts with a header of
+ * {@link #HEADER_SIZE} bytes:
+ * <pre>
+ *   int   magic          MAGIC
+ *   int   version        VERSION
+ *   int   slots          the number of slots in the ring
+ *   int   capacity       the most boids a slot holds
+ *   float width          the size of the world
+ *   float height
+ *   float timeStep       the simulated time of a step in seconds
+ *   int   slotSize       the size of a slot in bytes
+ * </pre>
+ * followed at {@link #PUBLISHED_OFFSET} by the long number of frames
+ * published so far, on a cache line of its own. The latest frame is in
+ * slot (published - 1) % slots. The slots follow the header. Each has a
+ * header of {@link #SLOT_HEADER_SIZE} bytes holding the long sequence
+ * number of the slot, the long step number, the int number of boids
+ * <i>n</i> in the slot and the int number of boids in the flock, and then
+ * the blocks of <i>n</i> x-coordinates, y-coordinates, x-velocities and
+ * y-velocities as floats. A flock larger than the capacity has only its
+ * first boids exported.
+ * <p>
+ * The sequence number of a slot is odd while the slot is being written
+ * and even once it is whole. A reader reads it before and after copying
+ * the slot, and the copy is whole only if both reads return the same
+ * even number. As in {@link MappedHaloTransport}, the sequence numbers
+ * and the published count are written and read through the file channel
+ * rather than the mapping, since Java 8 has no ordered access to mapped
+ * memory, and those system calls are not reordered with the accesses to
+ * the mapping around them.
+ * <p>
+ * The file is set up under a temporary name and renamed, so a reader
+ * never maps a file that is only partly set up. An existing file is
+ * replaced; readers that still have it mapped see no new frames. Putting
+ * the file on a memory file system such as <code>/dev/shm</code> keeps
+ * the operating system from writing the pages back to disk.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class FlockExporter {
+
+    /** The magic number at the start of an export file, "FLKS" in ASCII. */
+    public static final int MAGIC = 0x534b4c46;
+    /** The version of the file format. */
+    public static final int VERSION = 1;
+    /** The size of the file header in bytes, including the published count. */
+    public static final int HEADER_SIZE = 128;
+    /** The position of the published count in the header. */
+    public static final int PUBLISHED_OFFSET = 64;
+    /** The size of a slot header in bytes. */
+    public static final int SLOT_HEADER_SIZE = 64;
+    /** The bytes per boid in a slot: four floats. */
+    public static final int BYTES_PER_BOID = 16;
+    /** The default number of slots, enough for a reader to lag by a few steps. */
+    public static final int DEFAULT_SLOTS = 4;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int slots;
+    private int capacity;
+    private int slotSize;
+    /** The frames published so far. */
+    private long published;
+    /** The sequence number of each slot. */
+    private long[] sequences;
+    /** Scratch space for writing the counts. */
+    private ByteBuffer word;
+    private long clipped;
+    private IOException failure;
+
+    /**
+     * Creates an export file and maps it.
+     * @param path the file to export to
+     * @param width the width of the world
+     * @param height the height of the world
+     * @param timeStep the simulated time covered by one step in seconds
+     * @param capacity the most boids exported per step
+     * @param slotCount the number of slots in the ring, at least two
+     * @throws IOException if the file cannot be created or would be too
+     *         large to map
+     */
+    public FlockExporter(File path, float width, float height, float timeStep,
+                         int capacity, int slotCount) throws IOException {
+        if (slotCount < 2) {
+            throw new IllegalArgumentException("an export ring needs at least 2 slots, not " +
+                                               slotCount);
+        }
+        long size = ((SLOT_HEADER_SIZE + (long) BYTES_PER_BOID * capacity + 63) & ~63L);
+        if (capacity < 0 || HEADER_SIZE + size * slotCount > Integer.MAX_VALUE) {
+            throw new IOException("cannot map " + slotCount + " slots of " + capacity + " boids");
+        }
+        this.capacity = capacity;
+        slots = slotCount;
+        slotSize = (int) size;
+
+        File temporary = new File(path.getPath() + ".tmp");
+        file = new RandomAccessFile(temporary, "rw");
+        channel = file.getChannel();
+        try {
+            file.setLength(0);
+            file.setLength(HEADER_SIZE + (long) slotSize * slots);
+            ByteBuffer header = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(capacity);
+            header.putFloat(width).putFloat(height).putFloat(timeStep).putInt(slotSize);
+            header.flip();
+            channel.write(header, 0);
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            Files.move(temporary.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            channel.close();
+            file.close();
+            temporary.delete();
+            throw e;
+        }
+        published = 0;
+        sequences = new long[slots];
+        word = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        clipped = 0;
+        failure = null;
+    }
+
+    /**
+     * Creates an export file with the default number of slots.
+     * @param path the file to export to
+     * @param width the width of the world
+     * @param height the height of the world
+     * @param timeStep the simulated time covered by one step in seconds
+     * @param capacity the most boids exported per step
+     * @throws IOException if the file cannot be created
+     */
+    public FlockExporter(File path, float width, float height, float timeStep,
+                         int capacity) throws IOException {
+        this(path, width, height, timeStep, capacity, DEFAULT_SLOTS);
+    }
+
+    /**
+     * Publishes the current state of a flock as the latest frame. This
+     * copies the state into the next slot of the ring and returns; it never
+     * waits for a reader.
+     * @param store the store holding the boids
+     * @param step the number of the step the state belongs to
+     * @return true if the frame was published, false if writing the file
+     *         has failed
+     */
+    public boolean export(BoidStore store, long step) {
+        if (failure != null) {
+            return false;
+        }
+        int slot = (int) (published % slots);
+        int base = HEADER_SIZE + slot * slotSize;
+        int count = Math.min(store.size(), capacity);
+        if (count < store.size()) {
+            ++clipped;
+        }
+        try {
+            writeCount(base, ++sequences[slot]);
+            map.putLong(base + 8, step);
+            map.putInt(base + 16, count);
+            map.putInt(base + 20, store.size());
+            map.position(base + SLOT_HEADER_SIZE);
+            putFloats(store.px, count);
+            putFloats(store.py, count);
+            putFloats(store.vx, count);
+            putFloats(store.vy, count);
+            writeCount(base, ++sequences[slot]);
+            writeCount(PUBLISHED_OFFSET, ++published);
+        } catch (IOException e) {
+            // The slot is left with an odd sequence number, so readers
+            // never take it for a whole frame.
+            failure = e;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of frames published so far.
+     * @return the number of frames
+     */
+    public long getPublishedCount() {
+        return published;
+    }
+
+    /**
+     * Returns the number of frames that left out boids because the flock
+     * was larger than the capacity.
+     * @return the number of frames clipped
+     */
+    public long getClippedFrames() {
+        return clipped;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Closes the file, which stays behind with the last frames in it.
+     * @throws IOException if a frame could not be written or the file
+     *         cannot be closed
+     */
+    public void close() throws IOException {
+        map = null;
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            channel.close();
+            file.close();
+        }
+    }
+
+    /**
+     * Writes a count through the file channel.
+     * @param offset the position of the count in the file
+     * @param value the count
+     * @throws IOException if the count cannot be written
+     */
+    private void writeCount(int offset, long value) throws IOException {
+        word.clear();
+        word.putLong(0, value);
+        while (word.hasRemaining()) {
+            channel.write(word, offset + word.position());
+        }
+    }
+
+    /**
+     * Copies a block of floats into the mapping in one bulk transfer.
+     * @param values the floats to copy
+     * @param count the number of floats
+     */
+    private void putFloats(float[] values, int count) {
+        map.asFloatBuffer().put(values, 0, count);
+        map.position(map.position() + 4 * count);
+    }
+
+}
@@ -0,0 +1,1140 @@
+// FlockSimulation.java
+// Headless simulation of a flock.
+package org.jbromley.flocking;
+
+
+import java.awt.geom.Line2D;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * This class simulates a flock of boids. It allows the flock to be updated
+ * en mass and the addition of new boids. The simulation does not depend on
+ * a PApplet: the world bounds, walls, random number generator and time
+ * step are all given explicitly, so a flock can be stepped from plain Java
+ * and drawn by whatever renderer is watching it.
+ * <p>
+ * Nothing in a step reads the wall clock or a shared random number
+ * generator: time advances by the fixed time step and every boid draws
+ * from its own seeded generator. Two simulations created with the same
+ * seed and driven by the same calls therefore follow bit-identical
+ * trajectories, however many steps are run per rendered frame and however
+ * many threads run the parallel update. {@link #checksum()} summarizes the
+ * state so that runs can be compared.
+ * <p>
+ * When the world is split between several simulations, each holds ghost
+ * copies of the boids of its neighbors near its edges. Ghosts sit in the
+ * store after the boids of the flock, are found by the neighbor queries
+ * of the next step but are not stepped, and are dropped at the end of
+ * that step.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class FlockSimulation {
+
+    /** The size of a cell of the wall grid. */
+    private static final float WALL_CELL_SIZE = 32.0f;
+    /** The size of a cell of the wall field. */
+    private static final float WALL_FIELD_CELL_SIZE = 4.0f;
+    /**
+     * The distance to the walls kept by the wall field, beyond the longest
+     * feeler of a boid at the usual top speed.
+     */
+    private static final float WALL_FIELD_RANGE = 32.0f;
+
+    /** The number of cells below which a parallel step task stops splitting. */
+    private static final int CELLS_PER_TASK = 8;
+
+    /** The relative change in cell size or query radius that forces a re-grid. */
+    private static final float REGRID_TOLERANCE = 0.25f;
+    /** The number of steps between measurements of the cell occupancy. */
+    private static final int OCCUPANCY_INTERVAL = 60;
+    /** The mean number of boids wanted in a non-empty cell. */
+    private static final float TARGET_OCCUPANCY = 8.0f;
+    /** The most re-grids made when settling the grid of a flock that has not stepped. */
+    private static final int SETTLE_PASSES = 8;
+    /** The fewest cells along an axis, so a wrapped query never sees a cell twice. */
+    private static final int MIN_CELLS_ACROSS = 6;
+    /** The steps between checks of the order of the boids in the store. */
+    private static final int REORDER_INTERVAL = 30;
+    /** The fraction of boids out of curve order that triggers a reorder. */
+    private static final float REORDER_THRESHOLD = 0.1f;
+    /** The most cells along an axis of the curve that orders the boids. */
+    private static final int CURVE_CELLS = 1 << 15;
+    /** The most cells across the query radius when far-field sums are used. */
+    private static final float FAR_FIELD_CELLS_PER_RADIUS = 4.0f;
+    /**
+     * The SIMD steering kernel. It is compiled separately, against the
+     * incubating Vector API, and is only present when that was built.
+     */
+    private static final String VECTOR_KERNEL_CLASS =
+        "org.jbromley.flocking.VectorSteeringKernel";
+
+    private float width;
+    private float height;
+    private List<Line2D.Float> walls;
+    private WallGrid wallGrid;
+    private WallField wallField;
+    private Random random;
+    private float timeStep;
+    private double time;
+    private long stepCount;
+    private boolean useWalls;
+
+    private BoidStore store;
+    private SpatialIndex index;
+    private boolean indexStale;
+    /** The region of the world covered by the spatial index. */
+    private float indexX;
+    private float indexY;
+    private float indexWidth;
+    private float indexHeight;
+    private GridKind gridKind;
+    private float cellSize;
+    private float gridRadius;
+    private int stepsSinceOccupancy;
+    private ArrayList<Boid> boids;
+    private boolean parallel;
+    private ForkJoinPool pool;
+    private SteeringKernel steeringKernel;
+    private boolean farField;
+    private OverlapSolver overlapSolver;
+    private int overlapIterations;
+    private boolean reordering;
+    private int stepsSinceReorder;
+    private int reorders;
+    private long[] curveKeys;
+    private int[] order;
+    private TrajectoryRecorder recorder;
+    private FlockExporter exporter;
+    private Profiler profiler;
+    private Neighborhood neighbors;
+    private ThreadLocal<Neighborhood> workerNeighbors;
+
+    /**
+     * Creates an empty flock.
+     * @param width the width of the world
+     * @param height the height of the world
+     * @param walls the walls that contain the flock
+     * @param random the generator used to initialize new boids
+     * @param timeStep the simulated time covered by one step in seconds
+     */
+    public FlockSimulation(float width, float height, List<Line2D.Float> walls,
+                           Random random, float timeStep) {
+        this.width = width;
+        this.height = height;
+        this.walls = walls;
+        wallGrid = new WallGrid(walls, WALL_CELL_SIZE);
+        wallField = new WallField(wallGrid, WALL_FIELD_CELL_SIZE, WALL_FIELD_RANGE);
+        this.random = random;
+        this.timeStep = timeStep;
+        time = 0.0;
+        stepCount = 0;
+        useWalls = true;
+
+        store = new BoidStore();
+        boids = new ArrayList<Boid>();
+        parallel = false;
+        pool = null;
+        steeringKernel = null;
+        farField = false;
+        overlapSolver = new OverlapSolver(width, height);
+        overlapIterations = 0;
+        reordering = false;
+        stepsSinceReorder = 0;
+        reorders = 0;
+        curveKeys = new long[0];
+        order = new int[0];
+        recorder = null;
+        exporter = null;
+        profiler = new Profiler();
+        neighbors = new Neighborhood(profiler);
+        workerNeighbors = new ThreadLocal<Neighborhood>() {
+            @Override
+            protected Neighborhood initialValue() {
+                return new Neighborhood(profiler);
+            }
+        };
+
+        gridKind = GridKind.PARTITION;
+        indexX = 0.0f;
+        indexY = 0.0f;
+        indexWidth = width;
+        indexHeight = height;
+        stepsSinceOccupancy = 0;
+        gridRadius = Boid.getQueryRadius();
+        cellSize = clampCellSize(2.0f * gridRadius);
+        index = createIndex();
+        indexStale = false;
+    }
+
+    /**
+     * Creates an empty flock whose boids are initialized from a seeded
+     * generator.
+     * @param width the width of the world
+     * @param height the height of the world
+     * @param walls the walls that contain the flock
+     * @param seed the seed of the generator used to initialize new boids
+     * @param timeStep the simulated time covered by one step in seconds
+     */
+    public FlockSimulation(float width, float height, List<Line2D.Float> walls,
+                           long seed, float timeStep) {
+        this(width, height, walls, new Random(seed), timeStep);
+    }
+
+    /**
+     * Creates an empty spatial index of the kind currently selected over
+     * the region of the world it covers.
+     * @return the new index
+     */
+    private SpatialIndex createIndex() {
+        SpatialIndex created;
+        switch (gridKind) {
+        case COMPACT:
+            CompactGrid grid = new CompactGrid(store, indexWidth, indexHeight,
+                                               cellsAcross(indexWidth),
+                                               cellsAcross(indexHeight));
+            grid.setPacking(steeringKernel != null);
+            created = grid;
+            break;
+        case SPARSE:
+            created = new SparseGrid(store, indexWidth, indexHeight,
+                                     cellsAcross(indexWidth),
+                                     cellsAcross(indexHeight));
+            break;
+        default:
+            CellSpacePartition partition =
+                new CellSpacePartition(store, indexWidth, indexHeight,
+                                       cellsAcross(indexWidth),
+                                       cellsAcross(indexHeight));
+            partition.setAggregating(farField);
+            created = partition;
+            break;
+        }
+        if (indexX != 0.0f || indexY != 0.0f) {
+            created.setOrigin(indexX, indexY);
+        }
+        return created;
+    }
+
+    /**
+     * Limits the spatial index to a region of the world, as when the flock
+     * only holds the boids of one part of a larger world. Every boid must
+     * stay within the region, and the queries of the boids that step
+     * within the query radius of its edges, since the index no longer
+     * wraps around the world. The index is rebuilt at the start of the
+     * next step.
+     * @param x the x-coordinate of the left edge of the region
+     * @param y the y-coordinate of the top edge of the region
+     * @param regionWidth the width of the region
+     * @param regionHeight the height of the region
+     */
+    void setIndexRegion(float x, float y, float regionWidth, float regionHeight) {
+        indexX = x;
+        indexY = y;
+        indexWidth = regionWidth;
+        indexHeight = regionHeight;
+        cellSize = clampCellSize(cellSize);
+        boolean wrap = index.getWrapMode();
+        index = createIndex();
+        index.setWrapMode(wrap);
+        indexStale = true;
+    }
+
+
+    /**
+     * Returns the number of cells of the current size that fit along an
+     * axis of the world.
+     * @param size the size of the world along the axis
+     * @return the number of cells
+     */
+    private int cellsAcross(float size) {
+        return Math.max(MIN_CELLS_ACROSS, (int) (size / cellSize));
+    }
+
+    /**
+     * Limits a cell size to the range that keeps queries cheap and correct.
+     * Cells smaller than half the query radius make a query visit too many
+     * cells, and cells so large that fewer than {@link #MIN_CELLS_ACROSS}
+     * fit across the index could be visited twice by a wrapped query. A
+     * nearest-neighbor search stops as soon as it has enough neighbors, so
+     * in topological mode the cells may shrink down to the size of a boid.
+     * With far-field sums on the space partition most of the cells of a
+     * query are taken whole, so the cells may shrink to a fraction of the
+     * query radius; the other grids do not use the sums and keep their
+     * cells.
+     * @param size the wanted cell size
+     * @return the cell size to use
+     */
+    private float clampCellSize(float size) {
+        float radius = Math.max(1.0f, Boid.getQueryRadius());
+        float smallest = Boid.getTopologicalNeighbors() > 0 ? Boid.START_RADIUS :
+            farField && gridKind == GridKind.PARTITION ?
+            radius / FAR_FIELD_CELLS_PER_RADIUS : 0.5f * radius;
+        float largest = Math.min(indexWidth, indexHeight) / MIN_CELLS_ACROSS;
+        return Math.min(largest, Math.max(smallest, size));
+    }
+
+    /**
+     * Re-grids the spatial index when its cells no longer suit the flock.
+     * The cost of a query is the boids it tests plus the cells it visits,
+     * and it is lowest when a cell holds a handful of boids whatever the
+     * query radius. Every {@link #OCCUPANCY_INTERVAL} steps the mean
+     * occupancy of the non-empty cells is measured and the cell size is
+     * scaled towards {@link #TARGET_OCCUPANCY}; the same happens at once
+     * when the neighborhood size or separation distance is changed. The
+     * index is only rebuilt when the new size differs from the current one
+     * by more than the tolerance, so the rebuild stays off the per-step
+     * path.
+     */
+    private void updateGrid() {
+        float radius = Boid.getQueryRadius();
+        boolean radiusChanged =
+            Math.abs(radius - gridRadius) > REGRID_TOLERANCE * gridRadius;
+        if (++stepsSinceOccupancy < OCCUPANCY_INTERVAL && !radiusChanged) {
+            return;
+        }
+        stepsSinceOccupancy = 0;
+        gridRadius = radius;
+
+        // Occupancy grows with the area of a cell.
+        float occupancy = meanOccupancy();
+        float target = cellSize;
+        if (occupancy > 0.0f) {
+            target *= (float) Math.sqrt(TARGET_OCCUPANCY / occupancy);
+        }
+        target = clampCellSize(target);
+        if (Math.abs(target - cellSize) > REGRID_TOLERANCE * cellSize) {
+            cellSize = target;
+            index.resize(cellsAcross(indexWidth), cellsAcross(indexHeight));
+        }
+    }
+
+    /**
+     * Returns the mean number of boids in the non-empty cells of the index.
+     * @return the mean occupancy, or 0 if the flock is empty
+     */
+    private float meanOccupancy() {
+        int occupied = 0;
+        int total = 0;
+        for (int cell = 0; cell < index.getCellCount(); ++cell) {
+            int size = index.getCellSize(cell);
+            if (size > 0) {
+                ++occupied;
+                total += size;
+            }
+        }
+        return occupied > 0 ? (float) total / occupied : 0.0f;
+    }
+
+    /**
+     * Re-grids the spatial index until its cell size suits the flock as it
+     * stands, as the first steps would, without moving any boid. The
+     * benchmarks use this to size their indexes the way the flock does.
+     */
+    void settleGrid() {
+        for (int i = 0; i < SETTLE_PASSES; ++i) {
+            float size = cellSize;
+            index.rebuild();
+            stepsSinceOccupancy = OCCUPANCY_INTERVAL;
+            updateGrid();
+            if (cellSize == size) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the cells of the spatial index.
+     * @return the cell size
+     */
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Advances all boids in the flock by one time step.
+     */
+    public void step() {
+        boolean profiling = profiler.isEnabled();
+        long start = profiling ? System.nanoTime() : 0;
+        updateGrid();
+        if (reordering && ++stepsSinceReorder >= REORDER_INTERVAL) {
+            stepsSinceReorder = 0;
+            reorderIfDisordered();
+        }
+        if (gridKind != GridKind.PARTITION || indexStale) {
+            index.rebuild();
+            indexStale = false;
+        }
+        long rebin = profiling ? System.nanoTime() - start : 0;
+
+        if (parallel) {
+            rebin += stepParallel();
+        } else {
+            for (int id = 0; id < boids.size(); ++id) {
+                boids.get(id).update(index, neighbors);
+            }
+        }
+        if (profiling) {
+            profiler.record(Profiler.Phase.REBIN, rebin);
+        }
+        if (overlapIterations > 0) {
+            resolveOverlaps();
+        }
+        if (store.size() > boids.size()) {
+            store.setSize(boids.size());
+            indexStale = true;
+        }
+        profiler.endStep(store.size());
+        time += timeStep;
+        ++stepCount;
+        if (recorder != null) {
+            recorder.record(store, stepCount);
+        }
+        if (exporter != null) {
+            exporter.export(store, stepCount);
+        }
+    }
+
+    /**
+     * Pushes apart the boids that overlap at the end of a step, on the
+     * pool if the flock is stepped in parallel. Only the space partition
+     * follows the boids as they move, so the other indexes are rebuilt
+     * first.
+     */
+    private void resolveOverlaps() {
+        long start = profiler.isEnabled() ? System.nanoTime() : 0;
+        if (gridKind != GridKind.PARTITION) {
+            index.rebuild();
+        }
+        ForkJoinPool executor = null;
+        if (parallel) {
+            executor = pool != null ? pool : ForkJoinPool.commonPool();
+        }
+        overlapSolver.solve(store, index, boids.size(), useWalls ? wallField : null,
+                            overlapIterations, executor);
+        if (profiler.isEnabled()) {
+            profiler.record(Profiler.Phase.OVERLAP, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sorts the boids in the store along a Morton curve through the cells
+     * of the index if too many have drifted out of order, so that boids
+     * near each other in space are near each other in memory. The boids
+     * out of order are counted as those whose cell comes earlier on the
+     * curve than that of the boid before them. Ghosts are left where they
+     * are. The views of the boids follow them to their new ids.
+     */
+    private void reorderIfDisordered() {
+        int count = boids.size();
+        if (count < 2) {
+            return;
+        }
+        if (curveKeys.length < count) {
+            curveKeys = new long[Math.max(count, 2 * curveKeys.length)];
+            order = new int[curveKeys.length];
+        }
+        int disordered = 0;
+        long previous = 0;
+        for (int id = 0; id < count; ++id) {
+            long key = curveKey(store.px[id], store.py[id]);
+            if (key < previous) {
+                ++disordered;
+            }
+            previous = key;
+            // The id breaks ties, so boids in one cell keep their order.
+            curveKeys[id] = key << 32 | id;
+        }
+        if (disordered <= REORDER_THRESHOLD * count) {
+            return;
+        }
+
+        Arrays.sort(curveKeys, 0, count);
+        for (int i = 0; i < count; ++i) {
+            order[i] = (int) curveKeys[i];
+        }
+        store.permute(order, count);
+        Boid[] views = boids.toArray(new Boid[count]);
+        for (int i = 0; i < count; ++i) {
+            Boid b = views[order[i]];
+            b.setId(i);
+            boids.set(i, b);
+        }
+        indexStale = true;
+        ++reorders;
+    }
+
+    /**
+     * Returns the position on a Morton curve of the cell of the index that
+     * holds a point. The curve interleaves the bits of the column and row.
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @return the key of the cell, less than 2<sup>30</sup>
+     */
+    private long curveKey(float x, float y) {
+        int column = Math.max(0, Math.min(CURVE_CELLS - 1, (int) (x / cellSize)));
+        int row = Math.max(0, Math.min(CURVE_CELLS - 1, (int) (y / cellSize)));
+        return spreadBits(column) | spreadBits(row) << 1;
+    }
+
+    /**
+     * Spreads the low 16 bits of a number out to the even bits.
+     * @param value the number
+     * @return the number with a zero bit after each of its bits
+     */
+    private static long spreadBits(int value) {
+        long bits = value & 0xffff;
+        bits = (bits | bits << 8) & 0x00ff00ffL;
+        bits = (bits | bits << 4) & 0x0f0f0f0fL;
+        bits = (bits | bits << 2) & 0x33333333L;
+        bits = (bits | bits << 1) & 0x55555555L;
+        return bits;
+    }
+
+    /**
+     * Turns the reordering of the store on or off. With it, the order of
+     * the boids is checked every {@link #REORDER_INTERVAL} steps, and once
+     * enough have moved out of order the store is sorted along a Morton
+     * curve through the cells of the index. Boids that steer each other
+     * then sit close together in memory, and the sequential update walks
+     * through space rather than jumping about it. The boids are stepped in
+     * a different order after a sort, so a run with reordering is
+     * reproducible but does not follow the same trajectory as one
+     * without, and boids keep neither their ids nor their order in a
+     * recording.
+     * @param reorder true to keep the store in curve order
+     */
+    public void setReordering(boolean reorder) {
+        reordering = reorder;
+        stepsSinceReorder = 0;
+    }
+
+    public boolean getReordering() {
+        return reordering;
+    }
+
+    /**
+     * Returns the number of times the store has been reordered.
+     * @return the number of reorders
+     */
+    public int getReorderCount() {
+        return reorders;
+    }
+
+    /**
+     * Advances all boids by a number of time steps.
+     * @param steps the number of steps to run
+     */
+    public void step(int steps) {
+        for (int i = 0; i < steps; ++i) {
+            step();
+        }
+    }
+
+    /**
+     * Advances all boids in parallel. Every boid reads the frozen state of
+     * the previous step and writes its new state into the next-step
+     * buffers, with the work partitioned over the cells of the space
+     * partition. Once all cells are done the buffers are swapped and the
+     * boids are re-binned.
+     * @return the time taken by the re-binning in nanoseconds, or 0 if the
+     *         profiler is off
+     */
+    private long stepParallel() {
+        ForkJoinPool executor = pool != null ? pool : ForkJoinPool.commonPool();
+        executor.invoke(new StepTask(0, index.getCellCount()));
+        long start = profiler.isEnabled() ? System.nanoTime() : 0;
+        store.swapBuffers();
+
+        // After the swap the next-step buffers hold the previous positions.
+        // Ghosts were not stepped and are about to be dropped.
+        for (int id = 0; id < boids.size(); ++id) {
+            index.updateEntity(id, store.nextPx[id], store.nextPy[id]);
+        }
+        return profiler.isEnabled() ? System.nanoTime() - start : 0;
+    }
+
+    /**
+     * Turns the parallel, double-buffered update on or off.
+     * @param useParallel true to update the flock on multiple threads
+     */
+    public void setParallel(boolean useParallel) {
+        parallel = useParallel;
+    }
+
+    public boolean getParallel() {
+        return parallel;
+    }
+
+    /**
+     * Starts or stops recording the flock after every step. Starting
+     * records the current state at once, as the first frame. The recorder
+     * is not closed when recording stops.
+     * @param trajectory the recorder to hand the frames to, or null
+     */
+    public void setRecorder(TrajectoryRecorder trajectory) {
+        recorder = trajectory;
+        if (recorder != null) {
+            recorder.record(store, stepCount);
+        }
+    }
+
+    public TrajectoryRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Starts or stops publishing the flock to other processes after every
+     * step. Starting publishes the current state at once. The exporter is
+     * not closed when publishing stops.
+     * @param shared the exporter to publish through, or null
+     */
+    public void setExporter(FlockExporter shared) {
+        exporter = shared;
+        if (exporter != null) {
+            exporter.export(store, stepCount);
+        }
+    }
+
+    public FlockExporter getExporter() {
+        return exporter;
+    }
+
+    /**
+     * Turns the SIMD steering kernel on or off. The kernel only runs with a
+     * compact grid and outside topological mode; everywhere else the
+     * scalar neighbor visitor is used. The kernel reads a copy of the
+     * flock packed at the start of each step, so even the sequential step
+     * then sees the neighbors as they were at the start of the step. It needs the Vector API, so it can
+     * only be turned on when the kernel classes were built and the JVM was
+     * started with <code>--add-modules jdk.incubator.vector</code>.
+     * Otherwise the flock keeps whatever path it was using. The kernel
+     * adds the flocking sums in a different order, so a run with it is
+     * reproducible but does not follow the same trajectory as a run
+     * without it.
+     * @param useVector true to use the SIMD kernel if it is available
+     * @return true if the SIMD kernel is now in use
+     */
+    public boolean setUseVectorKernel(boolean useVector) {
+        if (!useVector) {
+            steeringKernel = null;
+        } else if (steeringKernel == null) {
+            SteeringKernel kernel = loadVectorKernel();
+            if (kernel != null) {
+                steeringKernel = kernel;
+            }
+        }
+        if (index instanceof CompactGrid) {
+            ((CompactGrid) index).setPacking(steeringKernel != null);
+        }
+        return steeringKernel != null;
+    }
+
+    public boolean getUseVectorKernel() {
+        return steeringKernel != null;
+    }
+
+    /**
+     * Returns the kernel that accumulates the flocking sums.
+     * @return the kernel, or null to use the scalar neighbor visitor
+     */
+    SteeringKernel getSteeringKernel() {
+        return steeringKernel;
+    }
+
+    /**
+     * Turns the far-field sums on or off. With them, the space partition
+     * keeps the count and the position and velocity sums of every cell,
+     * and the cells that lie wholly within the neighborhood of a boid add
+     * to its alignment and cohesion sums at once instead of a boid at a
+     * time. The cells of the partition may then be smaller, so it is
+     * re-measured on the next step. This turns a large neighborhood from a cost per
+     * neighbor into a cost per cell. It only applies to the space
+     * partition and outside topological mode. The sums are added in a
+     * different order, so a run with them is reproducible but does not
+     * follow the same trajectory as a run without them.
+     * @param useFarField true to use the per-cell sums
+     */
+    public void setUseFarField(boolean useFarField) {
+        if (useFarField == farField) {
+            return;
+        }
+        farField = useFarField;
+        if (index instanceof CellSpacePartition) {
+            ((CellSpacePartition) index).setAggregating(farField);
+        }
+        if (gridKind == GridKind.PARTITION) {
+            stepsSinceOccupancy = OCCUPANCY_INTERVAL;
+        }
+    }
+
+    public boolean getUseFarField() {
+        return farField;
+    }
+
+    /**
+     * Sets the budget of the non-overlap solver. With a budget, the boids
+     * that overlap at the end of each step are pushed apart by up to that
+     * many Jacobi iterations, which stop early once no boid overlaps the
+     * boids it was found touching. Each iteration costs about a pass over
+     * the boids in contact, so the budget bounds the cost of the solver.
+     * Pushing the boids apart changes their trajectories, so a run with the
+     * solver is reproducible but does not follow the same trajectory as one
+     * without it.
+     * @param iterations the most iterations per step, or 0 to let boids
+     *                   overlap
+     */
+    public void setOverlapIterations(int iterations) {
+        overlapIterations = Math.max(0, iterations);
+    }
+
+    public int getOverlapIterations() {
+        return overlapIterations;
+    }
+
+    /**
+     * Loads the SIMD steering kernel by name, so that this class neither
+     * needs the Vector API to compile nor to run.
+     * @return the kernel, or null if it or the Vector API is missing
+     */
+    private static SteeringKernel loadVectorKernel() {
+        try {
+            Class<?> kernelClass = Class.forName(VECTOR_KERNEL_CLASS);
+            return (SteeringKernel) kernelClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        } catch (LinkageError e) {
+            // The class was built but the Vector API module is not loaded.
+            return null;
+        }
+    }
+
+    /**
+     * Selects the spatial index used for neighbor queries.
+     * @param kind the kind of index to use
+     */
+    public void setGridKind(GridKind kind) {
+        if (kind != gridKind) {
+            gridKind = kind;
+            boolean wrap = index.getWrapMode();
+            index = createIndex();
+            index.setWrapMode(wrap);
+            index.rebuild();
+            if (farField) {
+                // Only the space partition uses the smaller far-field cells.
+                stepsSinceOccupancy = OCCUPANCY_INTERVAL;
+            }
+        }
+    }
+
+    public GridKind getGridKind() {
+        return gridKind;
+    }
+
+    /**
+     * Returns the spatial index the flock queries for neighbors.
+     * @return the index
+     */
+    SpatialIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Sets the pool that runs the parallel update.
+     * @param executor the pool to use, or null to use the common pool
+     */
+    public void setPool(ForkJoinPool executor) {
+        pool = executor;
+    }
+
+    /**
+     * Adds a new boid with a random velocity, color and wander target.
+     * @param x the initial x-coordinate of the boid
+     * @param y the initial y-coordinate of the boid
+     * @param maxSpeed the maximum speed for the boid
+     * @param maxForce the maximum force that can be applied to the boid
+     * @return a view onto the new boid
+     */
+    public Boid addBoid(float x, float y, float maxSpeed, float maxForce) {
+        int id = store.add(x, y, maxSpeed, maxForce, random.nextInt());
+        store.vx[id] = 2.0f * random.nextFloat() - 1.0f;
+        store.vy[id] = 2.0f * random.nextFloat() - 1.0f;
+        store.color[id] = 0xff000000 | (random.nextInt(256) << 16) |
+            (random.nextInt(256) << 8) | random.nextInt(256);
+        store.throbOffset[id] = random.nextInt(Boid.THROB_PERIOD);
+        double theta = random.nextDouble() * 2.0 * Math.PI;
+        store.wx[id] = Boid.WANDER_RADIUS * (float) StrictMath.cos(theta);
+        store.wy[id] = Boid.WANDER_RADIUS * (float) StrictMath.sin(theta);
+
+        Boid b = new Boid(this, id);
+        boids.add(b);
+        index.addEntity(id);
+        return b;
+    }
+
+    /**
+     * Adds a boid whose whole state was written by
+     * {@link BoidStore#writeState}, as when it moves in from a neighboring
+     * part of the world. The index is rebuilt at the start of the next
+     * step.
+     * @param state the buffer holding the state of the boid
+     * @return a view onto the new boid
+     */
+    Boid addBoid(ByteBuffer state) {
+        if (store.size() > boids.size()) {
+            throw new IllegalStateException("boids must be added before ghosts");
+        }
+        Boid b = new Boid(this, store.readState(state));
+        boids.add(b);
+        indexStale = true;
+        return b;
+    }
+
+    /**
+     * Adds a ghost whose whole state was written by
+     * {@link BoidStore#writeState}. The ghost steers the boids near it
+     * during the next step and is then dropped.
+     * @param state the buffer holding the state of the ghost
+     */
+    void addGhost(ByteBuffer state) {
+        store.readState(state);
+        indexStale = true;
+    }
+
+    /**
+     * Removes a boid from the flock, as when it moves out to a
+     * neighboring part of the world. The last boid takes over its id, so
+     * boids being removed together should be removed from the highest id
+     * down. The index is rebuilt at the start of the next step.
+     * @param id the boid to remove
+     */
+    void removeBoid(int id) {
+        if (store.size() > boids.size()) {
+            throw new IllegalStateException("boids cannot be removed while there are ghosts");
+        }
+        store.remove(id);
+        boids.remove(boids.size() - 1);
+        indexStale = true;
+    }
+
+    /**
+     * Returns the profiler that times the phases of every step.
+     * @return the profiler
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Returns the store holding the state of every boid in the flock.
+     * @return the boid store
+     */
+    public BoidStore getStore() {
+        return store;
+    }
+
+    /**
+     * Returns the number of boids in the flock.
+     * @return the number of boids
+     */
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Turns the walls on or off. Without walls the world wraps around at
+     * its edges. Turning the walls on moves any boid outside them back in.
+     * @param walled true if the flock should be contained by the walls
+     */
+    public void setUseWalls(boolean walled) {
+        useWalls = walled;
+        index.setWrapMode(!walled);
+        if (walled) {
+            ensureContainment();
+        }
+    }
+
+    public boolean getUseWalls() {
+        return useWalls;
+    }
+
+    /**
+     * Returns the list of walls.
+     * @return a List of wall segments
+     */
+    public List<Line2D.Float> getWalls() {
+        return walls;
+    }
+
+    /**
+     * Replaces the walls of the world and rebuilds the wall grid and field. Changes
+     * made directly to the list returned by {@link #getWalls()} are not
+     * seen until this is called.
+     * @param newWalls the wall segments
+     */
+    public void setWalls(List<Line2D.Float> newWalls) {
+        walls = newWalls;
+        wallGrid = new WallGrid(walls, WALL_CELL_SIZE);
+        wallField = new WallField(wallGrid, WALL_FIELD_CELL_SIZE, WALL_FIELD_RANGE);
+        if (useWalls) {
+            ensureContainment();
+        }
+    }
+
+    /**
+     * Returns the grid used to find the walls near a point.
+     * @return the wall grid
+     */
+    public WallGrid getWallGrid() {
+        return wallGrid;
+    }
+
+    /**
+     * Returns the field that tells whether a point is inside the walls and
+     * how far it is from them.
+     * @return the wall field
+     */
+    public WallField getWallField() {
+        return wallField;
+    }
+
+    public float getWidth() {
+        return width;
+    }
+
+    public float getHeight() {
+        return height;
+    }
+
+    /**
+     * Sets the simulated time covered by one step.
+     * @param seconds the time step in seconds
+     */
+    public void setTimeStep(float seconds) {
+        timeStep = seconds;
+    }
+
+    public float getTimeStep() {
+        return timeStep;
+    }
+
+    /**
+     * Returns the simulated time since the simulation was created.
+     * @return the simulated time in seconds
+     */
+    public double getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the number of steps run since the simulation was created.
+     * @return the number of steps
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Computes a hash of the position and velocity of every boid. The hash
+     * is taken over the exact bit patterns, so two runs agree only if their
+     * trajectories are bit-identical.
+     * @return the hash of the flock state
+     */
+    public long checksum() {
+        long hash = 1125899906842597L;
+        for (int id = 0; id < store.size(); ++id) {
+            hash = 31 * hash + Float.floatToRawIntBits(store.px[id]);
+            hash = 31 * hash + Float.floatToRawIntBits(store.py[id]);
+            hash = 31 * hash + Float.floatToRawIntBits(store.vx[id]);
+            hash = 31 * hash + Float.floatToRawIntBits(store.vy[id]);
+        }
+        return hash;
+    }
+
+    /**
+     * Ensures all boids are inside the walls, moving any boid outside them
+     * to the center of the world. Once inside, a boid is kept from
+     * crossing the walls as it moves.
+     */
+    public void ensureContainment() {
+        for (int id = 0; id < store.size(); ++id) {
+            float x = store.px[id];
+            float y = store.py[id];
+            if (!wallField.contains(x, y)) {
+                store.px[id] = width / 2.0f;
+                store.py[id] = height / 2.0f;
+                index.updateEntity(id, x, y);
+            }
+        }
+    }
+
+    /**
+     * Runs a flock without a window and reports the step rate and the
+     * checksum of the final state.
+     * Given a file name as well, the phases of every step are profiled and
+     * written to that file as CSV, and their percentiles are reported.
+     * Setting the system property <code>flocking.vector</code> to true
+     * steps the flock with the SIMD steering kernel if it is available,
+     * setting <code>flocking.farfield</code> to true uses the far-field
+     * sums, setting <code>flocking.reorder</code> to true keeps the store
+     * in curve order, setting <code>flocking.overlap</code> to a number of
+     * iterations pushes overlapping boids apart, setting <code>flocking.record</code> to a file
+     * name records the trajectory of the flock to that file, and setting
+     * <code>flocking.export</code> to a file name publishes the flock
+     * through that file while it runs.
+     * @param args the number of boids, the number of steps to run, the
+     *             random seed, the kind of grid and the profile file
+     * @throws IOException if the profile file cannot be written
+     */
+    public static void main(String args[]) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 800;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 0L;
+        GridKind kind = args.length > 3 ?
+            GridKind.valueOf(args[3].toUpperCase()) : GridKind.PARTITION;
+        float width = 1920.0f;
+        float height = 1200.0f;
+
+        Random random = new Random(seed);
+        FlockSimulation simulation =
+            new FlockSimulation(width, height, new ArrayList<Line2D.Float>(),
+                                random, 1.0f / 60.0f);
+        simulation.setUseWalls(false);
+        simulation.setGridKind(kind);
+        if (Boolean.getBoolean("flocking.vector") &&
+            !simulation.setUseVectorKernel(true)) {
+            System.out.println("SIMD steering kernel unavailable, using the scalar path");
+        }
+        simulation.setUseFarField(Boolean.getBoolean("flocking.farfield"));
+        simulation.setReordering(Boolean.getBoolean("flocking.reorder"));
+        simulation.setOverlapIterations(Integer.getInteger("flocking.overlap", 0));
+        PrintWriter csv = null;
+        if (args.length > 4) {
+            csv = new PrintWriter(new FileWriter(args[4]));
+            simulation.getProfiler().setEnabled(true);
+            simulation.getProfiler().setCsvWriter(csv);
+        }
+        for (int i = 0; i < count; ++i) {
+            simulation.addBoid(random.nextFloat() * width,
+                               random.nextFloat() * height,
+                               1.0f + 2.0f * random.nextFloat(), 0.10f);
+        }
+
+        TrajectoryRecorder trajectory = null;
+        if (System.getProperty("flocking.record") != null) {
+            trajectory = new TrajectoryRecorder(new File(System.getProperty("flocking.record")),
+                                                width, height, simulation.getTimeStep());
+            simulation.setRecorder(trajectory);
+        }
+        FlockExporter shared = null;
+        if (System.getProperty("flocking.export") != null) {
+            shared = new FlockExporter(new File(System.getProperty("flocking.export")),
+                                       width, height, simulation.getTimeStep(), count);
+            simulation.setExporter(shared);
+        }
+
+        long start = System.nanoTime();
+        simulation.step(steps);
+        double seconds = (System.nanoTime() - start) / 1.0e9;
+        System.out.println(String.format("%1$d boids, %2$d steps: %3$.1f steps/s, " +
+                                         "checksum %4$016x",
+                                         count, steps, steps / seconds,
+                                         simulation.checksum()));
+        if (trajectory != null) {
+            trajectory.close();
+            System.out.println(String.format("recorded %1$d frames, dropped %2$d",
+                                             steps + 1 - trajectory.getDroppedFrames(),
+                                             trajectory.getDroppedFrames()));
+        }
+        if (shared != null) {
+            shared.close();
+            System.out.println(String.format("exported %1$d frames",
+                                             shared.getPublishedCount()));
+        }
+        if (csv != null) {
+            for (Profiler.Phase phase : Profiler.Phase.values()) {
+                if (phase == Profiler.Phase.RENDER) {
+                    continue;
+                }
+                Profiler profiler = simulation.getProfiler();
+                System.out.println(String.format("%1$-10s p50 %2$8.3f ms  p99 %3$8.3f ms",
+                                                 phase.name().toLowerCase(),
+                                                 profiler.getPercentile(phase, 0.5) / 1.0e6,
+                                                 profiler.getPercentile(phase, 0.99) / 1.0e6));
+            }
+            csv.close();
+        }
+    }
+
+
+    /**
+     * The kinds of spatial index that the flock can use.
+     */
+    public enum GridKind {
+        /** A cell space partition, updated as each boid moves. */
+        PARTITION,
+        /** A compact grid, rebuilt with a counting sort every step. */
+        COMPACT,
+        /** A sparse hashed grid, rebuilt every step, for very large worlds. */
+        SPARSE
+    }
+
+
+    /**
+     * This task steps all boids in a range of cells of the space partition,
+     * splitting the range in half until it is small enough to run directly.
+     */
+    private class StepTask extends RecursiveAction implements CellVisitor {
+        private static final long serialVersionUID = 1L;
+
+        private int firstCell;
+        private int lastCell;
+        private Neighborhood neighbors;
+
+        /**
+         * Creates a task for the cells in [first, last).
+         * @param first the index of the first cell
+         * @param last one past the index of the last cell
+         */
+        public StepTask(int first, int last) {
+            firstCell = first;
+            lastCell = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastCell - firstCell <= CELLS_PER_TASK) {
+                neighbors = workerNeighbors.get();
+                for (int cell = firstCell; cell < lastCell; ++cell) {
+                    index.forEachCellMember(cell, this);
+                }
+            } else {
+                int middle = (firstCell + lastCell) >>> 1;
+                invokeAll(new StepTask(firstCell, middle),
+                          new StepTask(middle, lastCell));
+            }
+        }
+
+        /**
+         * Steps one boid of the cells of this task.
+         * @param id the id of the boid
+         */
+        public void visit(int id) {
+            if (id < boids.size()) {
+                boids.get(id).updateNext(index, neighbors);
+            }
+        }
+    }
+
+}
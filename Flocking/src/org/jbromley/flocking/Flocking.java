@@ -4,22 +4,52 @@ package org.jbromley.flocking;
 
 import processing.core.PApplet;
 import processing.core.PFont;
-import processing.core.PVector;
+import processing.core.PShape;
 import java.awt.geom.Line2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Random;
 
 
 public class Flocking extends PApplet {
     private static final long serialVersionUID = 9221726134245604843L;
     private static final int INITIAL_BOIDS = 800;
+    private static final float TIME_STEP = 1.0f / 60.0f;
+    private static final int MAX_STEPS_PER_FRAME = 8;
+    private static final long DEFAULT_SEED = 20100101L;
+    private static final int TOPOLOGICAL_NEIGHBORS = 7;
+    private static final int OVERLAP_ITERATIONS = 4;
+    private static final String PROFILE_FILE = "flocking-profile.csv";
+    private static final String TRAJECTORY_FILE = "flocking-trajectory.bin";
+    private static final String EXPORT_FILE = "flocking-export.bin";
+    private static final int EXPORT_CAPACITY = 16384;
         
-    private Flock flock = null;
+    private FlockSimulation flock = null;
+    private BoidMesh mesh = new BoidMesh();
+    private PShape boidShape = null;
     private ArrayList<Line2D.Float> walls = null;
     private PFont font = null;
         
+    // The animation thread owns these; the simulation is only told of a
+    // change to the walls.
     private boolean useWalls = true;
     private boolean showWalls = false;
     private boolean showInfo = true;
+
+    private long seed = DEFAULT_SEED;
+    private FrameRing frames = new FrameRing();
+    private SimulationRunner runner = null;
+    private long lastDrawnStep = 0;
+    private int stepsPerFrame = 0;
+    private PrintWriter profileWriter = null;
+    private TrajectoryRecorder recorder = null;
+    private FlockExporter exporter = null;
+    private TrajectoryPlayer player = null;
+    private BoidStore replayStore = new BoidStore();
+    private int replayFrame = 0;
+    private boolean replayPaused = false;
         
     public void settings()
     {
@@ -27,9 +57,20 @@ public class Flocking extends PApplet {
     }
 
     /**
-     * Creates the flock boids demo. 
+     * Creates the flock boids demo. The flock is created from a fixed seed,
+     * which may be overridden by passing a number as the first sketch
+     * argument. A trajectory file given as the second argument is replayed
+     * instead of running the flock.
      */
     public void setup() {
+        if (args != null && args.length > 0) {
+            seed = Long.parseLong(args[0]);
+        }
+        if (args != null && args.length > 1) {
+            startReplay(new File(args[1]));
+        }
+
+
         // Create walls
         float d = width / 8.0f;
         walls = new ArrayList<Line2D.Float>();
@@ -42,25 +83,48 @@ public class Flocking extends PApplet {
         walls.add(new Line2D.Float(1, height - d, 1, d));
         walls.add(new Line2D.Float(1, d, d, 1));
                 
-        flock = new Flock(this);
+        Random random = new Random(seed);
+        flock = new FlockSimulation(width, height, walls, random, TIME_STEP);
         float rMax = Math.min(width, height) / 8.0f;
         for (int i = 0; i < INITIAL_BOIDS; ++i) {
-            float r = rMax * (float) Math.sqrt(random(1.0f));
-            float theta = random(TWO_PI);
-            float x = (float) (width / 2.0f + r * Math.cos(theta));
-            float y = (float) (height / 2.0f + r * Math.sin(theta));
-            flock.addBoid(new Boid(new PVector(x, y), random(1.0f, 3.0f), 0.10f, this));
+            float r = rMax * (float) Math.sqrt(random.nextFloat());
+            float theta = TWO_PI * random.nextFloat();
+            float x = (float) (width / 2.0f + r * StrictMath.cos(theta));
+            float y = (float) (height / 2.0f + r * StrictMath.sin(theta));
+            flock.addBoid(x, y, 1.0f + 2.0f * random.nextFloat(), 0.10f);
         }
                 
         font = createFont("Helvetica", 12);
+        runner = new SimulationRunner(flock, frames, MAX_STEPS_PER_FRAME);
+        runner.setPaused(player != null);
+        runner.start();
     }
         
     /**
-     * Causes the flock to be drawn.
+     * Causes the flock to be drawn. The latest snapshot published by the
+     * simulation thread is drawn while that thread computes the next steps.
      */
     public void draw() {
         background(0);
-        flock.update();
+        BoidStore store;
+        if (player != null) {
+            if (!replayPaused && replayFrame < player.getFrameCount() - 1) {
+                ++replayFrame;
+            }
+            player.readFrame(replayFrame, replayStore);
+            store = replayStore;
+        } else {
+            FrameRing.Frame frame = frames.takeLatest();
+            store = frame.getStore();
+            stepsPerFrame = (int) (frame.getStep() - lastDrawnStep);
+            lastDrawnStep = frame.getStep();
+        }
+
+        // Only the time spent issuing the drawing is measured; the renderer
+        // may finish the work later.
+        Profiler profiler = flock.getProfiler();
+        long renderStart = System.nanoTime();
+        drawBoids(store);
                 
         if (showWalls) {
             stroke(255);
@@ -68,30 +132,310 @@ public class Flocking extends PApplet {
                 line(wall.x1, wall.y1, wall.x2, wall.y2);
             }
         }
+        profiler.record(Profiler.Phase.RENDER, System.nanoTime() - renderStart);
+        profiler.endFrame();
                 
-        if (showInfo) {
+        if (showInfo && player != null) {
+            String info = String.format("%1$4.1f fps  replay frame: %2$d/%3$d  step: %4$d  " +
+                                        "boids: %5$d%6$s", frameRate,
+                                        replayFrame + 1, player.getFrameCount(),
+                                        player.getStep(replayFrame),
+                                        player.getBoidCount(replayFrame),
+                                        replayPaused ? "  paused" : "");
+            fill(255);
+            textFont(font);
+            text(info, 16, 36);
+        } else if (showInfo) {
             String info = String.format("%1$4.1f fps  alignment: %2$4.1f  " +
                                         "cohesion: %3$4.1f  separation: %4$4.1f  " +
-                                        "neighborhood: %5$4.1f  separation: %6$4.1f", frameRate,
+                                        "neighborhood: %5$4.1f  separation: %6$4.1f  " +
+                                        "steps/frame: %7$d  seed: %8$d  cell: %9$4.1f  grid: %10$s  " +
+                                        "nearest: %11$d  simd: %12$s  far: %13$s  order: %14$s  " +
+                                        "overlap: %15$d  export: %16$s",
+                                        frameRate,
                                         Boid.getAlignment(), Boid.getCohesion(), 
                                         Boid.getSeparation(), Boid.getNeighborhoodSize(), 
-                                        Boid.getSeparationDistance());
+                                        Boid.getSeparationDistance(), stepsPerFrame,
+                                        seed, flock.getCellSize(),
+                                        flock.getGridKind(),
+                                        Boid.getTopologicalNeighbors(),
+                                        flock.getUseVectorKernel() ? "on" : "off",
+                                        flock.getUseFarField() ? "on" : "off",
+                                        flock.getReordering() ? "on" : "off",
+                                        flock.getOverlapIterations(),
+                                        flock.getExporter() != null ? "on" : "off");
             fill(255);
             textFont(font);
             text(info, 16, 36);
+            if (profiler.isEnabled()) {
+                drawProfile(profiler, 16, 56);
+            }
+        }
+    }
+
+    /**
+     * Draws the percentiles of the recent times of every phase of a step.
+     * @param profiler the profiler holding the times
+     * @param x the x-coordinate of the table
+     * @param y the y-coordinate of the first line of the table
+     */
+    private void drawProfile(Profiler profiler, float x, float y) {
+        for (Profiler.Phase phase : Profiler.Phase.values()) {
+            String line = String.format("%1$-10s p50 %2$6.2f ms  p90 %3$6.2f ms  " +
+                                        "p99 %4$6.2f ms",
+                                        phase.name().toLowerCase(),
+                                        profiler.getPercentile(phase, 0.5) / 1.0e6,
+                                        profiler.getPercentile(phase, 0.9) / 1.0e6,
+                                        profiler.getPercentile(phase, 0.99) / 1.0e6);
+            text(line, x, y);
+            y += 16;
+        }
+    }
+
+    /**
+     * Starts or stops writing the profile of every step to a CSV file in
+     * the sketch folder. Starting also turns the profiler on.
+     */
+    private void toggleProfileFile() {
+        Profiler profiler = flock.getProfiler();
+        if (profileWriter == null) {
+            profileWriter = createWriter(PROFILE_FILE);
+            profiler.setEnabled(true);
+            profiler.setCsvWriter(profileWriter);
+        } else {
+            profiler.setCsvWriter(null);
+            profileWriter.close();
+            profileWriter = null;
+        }
+    }
+        
+    /**
+     * Starts or stops recording the trajectory of the flock to a file in
+     * the sketch folder.
+     */
+    private void toggleRecording() {
+        try {
+            if (recorder == null) {
+                recorder = new TrajectoryRecorder(new File(sketchPath(TRAJECTORY_FILE)),
+                                                  flock.getWidth(), flock.getHeight(),
+                                                  flock.getTimeStep());
+                flock.setRecorder(recorder);
+            } else {
+                flock.setRecorder(null);
+                recorder.close();
+                recorder = null;
+            }
+        } catch (IOException e) {
+            println("Cannot record the trajectory: " + e.getMessage());
+            recorder = null;
+        }
+    }
+
+    /**
+     * Starts or stops publishing the flock through a file in the sketch
+     * folder, which other processes can map to follow the flock live.
+     */
+    private void toggleExport() {
+        try {
+            if (exporter == null) {
+                exporter = new FlockExporter(new File(sketchPath(EXPORT_FILE)),
+                                             flock.getWidth(), flock.getHeight(),
+                                             flock.getTimeStep(), EXPORT_CAPACITY);
+                flock.setExporter(exporter);
+            } else {
+                flock.setExporter(null);
+                exporter.close();
+                exporter = null;
+            }
+        } catch (IOException e) {
+            println("Cannot export the flock: " + e.getMessage());
+            exporter = null;
+        }
+    }
+
+    /**
+     * Replays a trajectory file from its first frame. The flock stays
+     * where it is until the replay stops.
+     * @param file the trajectory file to replay
+     */
+    private void startReplay(File file) {
+        try {
+            player = new TrajectoryPlayer(file);
+            replayFrame = 0;
+            replayPaused = false;
+            if (runner != null) {
+                runner.setPaused(true);
+            }
+            if (player.getFrameCount() == 0) {
+                stopReplay();
+            }
+        } catch (IOException e) {
+            println("Cannot replay " + file + ": " + e.getMessage());
+            player = null;
+        }
+    }
+
+    /**
+     * Stops replaying and resumes the flock.
+     */
+    private void stopReplay() {
+        try {
+            player.close();
+        } catch (IOException e) {
+            println("Cannot close the trajectory: " + e.getMessage());
+        }
+        player = null;
+        if (runner != null) {
+            runner.setPaused(false);
+        }
+    }
+
+    /**
+     * Moves the replay to the frame under the mouse, so that dragging
+     * across the window scrubs through the whole recording.
+     */
+    private void scrubReplay() {
+        int last = player.getFrameCount() - 1;
+        replayFrame = Math.max(0, Math.min(last, Math.round((float) mouseX / width * last)));
+    }
+
+    /**
+     * Draws every boid as a triangle rotated in the direction of its
+     * velocity. The triangles are built on the CPU and copied into a
+     * retained shape, which is only created again when the number of boids
+     * changes, and the shape is drawn with a single call.
+     * @param store the store holding the boids to draw
+     */
+    private void drawBoids(BoidStore store) {
+        mesh.build(store);
+        int count = mesh.size();
+        if (boidShape == null || boidShape.getVertexCount() != 3 * count) {
+            boidShape = createBoidShape(count);
+        }
+        float[] vertices = mesh.getVertices();
+        int[] fills = mesh.getFillColors();
+        int[] strokes = mesh.getStrokeColors();
+        for (int i = 0; i < count; ++i) {
+            int base = BoidMesh.FLOATS_PER_BOID * i;
+            for (int corner = 0; corner < 3; ++corner) {
+                int vertex = 3 * i + corner;
+                boidShape.setVertex(vertex, vertices[base + 2 * corner],
+                                    vertices[base + 2 * corner + 1]);
+                boidShape.setFill(vertex, fills[i]);
+                boidShape.setStroke(vertex, strokes[i]);
+            }
+        }
+        shape(boidShape);
+    }
+
+    /**
+     * Creates the retained shape that holds the triangles of a number of
+     * boids. The vertices are placed by {@link #drawBoids(BoidStore)}.
+     * @param count the number of boids
+     * @return the new shape
+     */
+    private PShape createBoidShape(int count) {
+        PShape shape = createShape();
+        shape.beginShape(TRIANGLES);
+        shape.fill(255);
+        shape.stroke(255);
+        for (int i = 0; i < 3 * count; ++i) {
+            shape.vertex(0.0f, 0.0f);
         }
+        shape.endShape();
+        return shape;
     }
         
     /**
      * Handles mouse clicks. In this sketch, clicking a mouse button creates a
-     * new boid at the position of the mouse.
+     * new boid at the position of the mouse. During a replay it moves the
+     * replay to the frame under the mouse instead.
      */
     public void mousePressed() {
-        flock.addBoid(new Boid(new PVector(mouseX, mouseY), 2.0f, 0.05f, this));
+        if (player != null) {
+            scrubReplay();
+        } else {
+            final float x = mouseX;
+            final float y = mouseY;
+            runner.submit(new Runnable() {
+                public void run() {
+                    flock.addBoid(x, y, 2.0f, 0.05f);
+                }
+            });
+        }
+    }
+
+    /**
+     * Handles mouse drags, which scrub through a replay.
+     */
+    public void mouseDragged() {
+        if (player != null) {
+            scrubReplay();
+        }
     }
         
+    /**
+     * Handles key presses. The keys that only change what is drawn take
+     * effect at once; those that change the flock are handed to the
+     * simulation thread, which applies them between steps.
+     */
     public void keyPressed() {
-        switch (key) {
+        final char pressed = key;
+        switch (pressed) {
+        case 'l':
+            if (player != null) {
+                stopReplay();
+            } else {
+                // The recording must be closed before it can be replayed.
+                runner.submitAndWait(new Runnable() {
+                    public void run() {
+                        if (recorder != null) {
+                            toggleRecording();
+                        }
+                    }
+                });
+                startReplay(new File(sketchPath(TRAJECTORY_FILE)));
+            }
+            break;
+        case ' ': replayPaused = !replayPaused; break;
+        case ',': replayFrame = Math.max(0, replayFrame - 1); break;
+        case '.':
+            if (player != null) {
+                replayFrame = Math.min(player.getFrameCount() - 1, replayFrame + 1);
+            }
+            break;
+        case 'w':
+            useWalls = !useWalls;
+            if (!useWalls) {
+                showWalls = false;
+            }
+            final boolean walled = useWalls;
+            runner.submit(new Runnable() {
+                public void run() {
+                    flock.setUseWalls(walled);
+                }
+            });
+            break;
+        case 'q': showWalls = !showWalls; break;
+        case 'i': showInfo = !showInfo; break;
+
+        default:
+            runner.submit(new Runnable() {
+                public void run() {
+                    changeFlock(pressed);
+                }
+            });
+            break;
+        }
+    }
+
+    /**
+     * Applies a key that changes the flock. This runs on the simulation
+     * thread.
+     * @param pressed the key
+     */
+    private void changeFlock(char pressed) {
+        switch (pressed) {
         case 'Z': Boid.setAlignment(Boid.getAlignment() - 1.0f); break;
         case 'z': Boid.setAlignment(Boid.getAlignment() - 0.1f); break;
         case 'a': Boid.setAlignment(Boid.getAlignment() + 0.1f); break;
@@ -119,19 +463,26 @@ public class Flocking extends PApplet {
         case 'j':
         case 'J': Boid.setSeparationDistance(Boid.getSeparationDistance() + 1.0f); break;
                         
-        case 'w': 
-            useWalls = !useWalls;
-            if (useWalls) {
-                flock.setWrapMode(false);
-                flock.ensureContainment();
-            } else {
-                flock.setWrapMode(true);
-                showWalls = false;
-            }
+        case 'g':
+            FlockSimulation.GridKind[] kinds = FlockSimulation.GridKind.values();
+            flock.setGridKind(kinds[(flock.getGridKind().ordinal() + 1) % kinds.length]);
             break;
-
-        case 'q': showWalls = !showWalls; break;
-        case 'i': showInfo = !showInfo; break;
+        case 'p': flock.setParallel(!flock.getParallel()); break;
+        case 't':
+            Boid.setTopologicalNeighbors(Boid.getTopologicalNeighbors() > 0 ?
+                                         0 : TOPOLOGICAL_NEIGHBORS);
+            break;
+        case 'f': flock.getProfiler().setEnabled(!flock.getProfiler().isEnabled()); break;
+        case 'v': toggleProfileFile(); break;
+        case 'k': flock.setUseVectorKernel(!flock.getUseVectorKernel()); break;
+        case 'e': flock.setUseFarField(!flock.getUseFarField()); break;
+        case 'o': flock.setReordering(!flock.getReordering()); break;
+        case 'b':
+            flock.setOverlapIterations(flock.getOverlapIterations() > 0 ?
+                                       0 : OVERLAP_ITERATIONS);
+            break;
+        case 'r': toggleRecording(); break;
+        case 'E': toggleExport(); break;
 
         default: break;
         }
@@ -149,8 +500,31 @@ public class Flocking extends PApplet {
         return walls;
     }
 
+    /**
+     * Stops the simulation thread when the sketch closes, and then closes
+     * the recording, the profile file and the export that it was writing.
+     */
+    public void dispose() {
+        if (runner != null) {
+            runner.stop();
+        }
+        if (recorder != null) {
+            toggleRecording();
+        }
+        if (profileWriter != null) {
+            toggleProfileFile();
+        }
+        if (exporter != null) {
+            toggleExport();
+        }
+        super.dispose();
+    }
+
     public static void main(String args[]) {
-	PApplet.main(new String[] {"org.jbromley.flocking.Flocking"});
+	String[] sketchArgs = new String[args.length + 1];
+	sketchArgs[0] = "org.jbromley.flocking.Flocking";
+	System.arraycopy(args, 0, sketchArgs, 1, args.length);
+	PApplet.main(sketchArgs);
     }
 
 }
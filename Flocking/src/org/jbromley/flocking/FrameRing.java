@@ -0,0 +1,159 @@
+// FrameRing.java
+// Ring of flock snapshots handed from the simulation to the renderer.
+package org.jbromley.flocking;
+
+
+/**
+ * This class hands snapshots of a flock from the thread that steps it to
+ * the thread that draws it. The snapshots live in a small ring of slots
+ * that are reused from frame to frame. The simulation claims a slot,
+ * copies the flock into it and publishes it; the renderer takes the latest
+ * published snapshot and keeps it until it takes the next one. A slot is
+ * only claimed if it holds neither the latest snapshot nor the one being
+ * drawn, so with at least three slots the simulation never waits for the
+ * renderer and the renderer never sees a snapshot being written. Snapshots
+ * that the renderer was too slow to take are overwritten.
+ * <p>
+ * Every method is synchronized on the ring, so everything the simulation
+ * writes into a snapshot before publishing it is seen by the renderer
+ * that takes it.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class FrameRing {
+
+    /** The default number of slots: one being written, one latest, one being drawn. */
+    public static final int DEFAULT_SLOTS = 3;
+
+    private Frame[] frames;
+    private int next;
+    private int writing;
+    private int latest;
+    private int reading;
+    private long published;
+
+    /**
+     * Creates a ring of empty slots.
+     * @param slots the number of slots, at least three
+     */
+    public FrameRing(int slots) {
+        if (slots < 3) {
+            throw new IllegalArgumentException("a frame ring needs at least 3 slots, not " + slots);
+        }
+        frames = new Frame[slots];
+        for (int i = 0; i < slots; ++i) {
+            frames[i] = new Frame();
+        }
+        next = 0;
+        writing = -1;
+        latest = -1;
+        reading = -1;
+        published = 0;
+    }
+
+    /**
+     * Creates a ring with the default number of slots.
+     */
+    public FrameRing() {
+        this(DEFAULT_SLOTS);
+    }
+
+    /**
+     * Copies the state of a flock into a free slot and publishes it as the
+     * latest snapshot.
+     * @param store the store holding the boids
+     * @param step the number of the step the state belongs to
+     */
+    public void publish(BoidStore store, long step) {
+        Frame frame = claim();
+        frame.copy(store, step);
+        commit();
+    }
+
+    /**
+     * Claims the oldest slot that holds neither the latest snapshot nor the
+     * one being drawn.
+     * @return the slot to write
+     */
+    private synchronized Frame claim() {
+        while (next == latest || next == reading) {
+            next = (next + 1) % frames.length;
+        }
+        writing = next;
+        next = (next + 1) % frames.length;
+        return frames[writing];
+    }
+
+    /**
+     * Publishes the claimed slot as the latest snapshot.
+     */
+    private synchronized void commit() {
+        latest = writing;
+        writing = -1;
+        ++published;
+    }
+
+    /**
+     * Takes the latest snapshot for drawing, giving back the one taken
+     * before. The snapshot stays unchanged until the next call.
+     * @return the latest snapshot, or null if none has been published
+     */
+    public synchronized Frame takeLatest() {
+        reading = latest;
+        return latest < 0 ? null : frames[latest];
+    }
+
+    /**
+     * Returns the number of snapshots published so far.
+     * @return the number of snapshots
+     */
+    public synchronized long getPublishedCount() {
+        return published;
+    }
+
+
+    /**
+     * One snapshot of the flock: the state needed to draw every boid and
+     * the step it was taken at. A snapshot that has been taken for drawing
+     * must not be modified.
+     */
+    public static class Frame {
+        private BoidStore store;
+        private long step;
+
+        Frame() {
+            store = new BoidStore();
+            step = 0;
+        }
+
+        /**
+         * Copies the drawable state of a flock into this snapshot.
+         * @param source the store holding the boids
+         * @param stepNumber the number of the step the state belongs to
+         */
+        void copy(BoidStore source, long stepNumber) {
+            int count = source.size();
+            store.setSize(count);
+            System.arraycopy(source.px, 0, store.px, 0, count);
+            System.arraycopy(source.py, 0, store.py, 0, count);
+            System.arraycopy(source.vx, 0, store.vx, 0, count);
+            System.arraycopy(source.vy, 0, store.vy, 0, count);
+            System.arraycopy(source.radius, 0, store.radius, 0, count);
+            System.arraycopy(source.color, 0, store.color, 0, count);
+            step = stepNumber;
+        }
+
+        /**
+         * Returns the boids of the snapshot. Only the positions,
+         * velocities, radii and colors are filled in.
+         * @return the store holding the boids
+         */
+        public BoidStore getStore() {
+            return store;
+        }
+
+        public long getStep() {
+            return step;
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+// HaloTransport.java
+// Carries the messages exchanged by the workers of a split flock.
+package org.jbromley.flocking;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The link between the workers that each simulate a part of the world
+ * with a {@link DomainWorker}. Workers are numbered from 0 and every step
+ * each of them sends exactly one message to each of its neighbors and
+ * receives exactly one from each, so a link never holds more than one
+ * message. A sender waits until the previous message on its link has
+ * been released by the receiver before handing over the next.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public interface HaloTransport {
+
+    /**
+     * Sends a message to another worker. The message is copied, so the
+     * buffer may be reused as soon as this returns.
+     * @param to the number of the worker to send to
+     * @param message the message, from its position to its limit
+     * @throws IOException if the message cannot be sent or the previous
+     *         one was not released in time
+     */
+    public void send(int to, ByteBuffer message) throws IOException;
+
+    /**
+     * Waits for the next message from another worker.
+     * @param from the number of the worker to receive from
+     * @return the message, in little-endian order, which stays valid
+     *         until it is released
+     * @throws IOException if no message arrives in time
+     */
+    public ByteBuffer receive(int from) throws IOException;
+
+    /**
+     * Releases the message last received from a worker, so that the
+     * worker may send its next one.
+     * @param from the number of the worker the message came from
+     * @throws IOException if the link cannot be updated
+     */
+    public void release(int from) throws IOException;
+
+    /**
+     * Closes the links of this worker.
+     * @throws IOException if a link cannot be closed
+     */
+    public void close() throws IOException;
+
+}
@@ -0,0 +1,74 @@
+// IntList.java
+// Growable list of primitive ints.
+package org.jbromley.flocking;
+
+
+import java.util.Arrays;
+
+
+/**
+ * A minimal growable array of ints. This is used instead of a
+ * collection of boxed integers wherever boid ids are stored.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class IntList {
+
+    private int[] elements;
+    private int size;
+
+    /**
+     * Creates an empty list.
+     */
+    public IntList() {
+        this(8);
+    }
+
+    /**
+     * Creates an empty list with the given initial capacity.
+     * @param capacity the initial capacity
+     */
+    public IntList(int capacity) {
+        elements = new int[Math.max(1, capacity)];
+        size = 0;
+    }
+
+    public void add(int value) {
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, 2 * elements.length);
+        }
+        elements[size++] = value;
+    }
+
+    public int get(int index) {
+        return elements[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Removes the first occurrence of a value. The last element is moved
+     * into the hole, so the order of the list is not preserved.
+     * @param value the value to remove
+     * @return true if the value was found and removed
+     */
+    public boolean removeValue(int value) {
+        for (int i = 0; i < size; ++i) {
+            if (elements[i] == value) {
+                elements[i] = elements[--size];
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
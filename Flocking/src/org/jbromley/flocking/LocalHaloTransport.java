@@ -0,0 +1,154 @@
+// LocalHaloTransport.java
+// Links workers that run on threads of the same process.
+package org.jbromley.flocking;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * This class links workers that run on threads of one process. Each link
+ * between two workers is a single buffer guarded by its monitor. It lets
+ * a split flock be run and checked on one machine, exchanging the same
+ * messages that would cross between processes, without any files.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class LocalHaloTransport implements HaloTransport {
+
+    /** How long to wait for another worker before giving up. */
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private Link[][] links;
+    private int rank;
+
+    /**
+     * Creates the ends of the links of one worker.
+     * @param links the links between every pair of workers
+     * @param rank the number of this worker
+     */
+    private LocalHaloTransport(Link[][] links, int rank) {
+        this.links = links;
+        this.rank = rank;
+    }
+
+    /**
+     * Creates linked transports for a number of workers.
+     * @param workers the number of workers
+     * @return the transport of each worker, indexed by its number
+     */
+    public static LocalHaloTransport[] create(int workers) {
+        Link[][] links = new Link[workers][workers];
+        for (int from = 0; from < workers; ++from) {
+            for (int to = 0; to < workers; ++to) {
+                links[from][to] = new Link(from, to);
+            }
+        }
+        LocalHaloTransport[] transports = new LocalHaloTransport[workers];
+        for (int rank = 0; rank < workers; ++rank) {
+            transports[rank] = new LocalHaloTransport(links, rank);
+        }
+        return transports;
+    }
+
+    public void send(int to, ByteBuffer message) throws IOException {
+        links[rank][to].put(message);
+    }
+
+    public ByteBuffer receive(int from) throws IOException {
+        return links[from][rank].take();
+    }
+
+    public void release(int from) {
+        links[from][rank].release();
+    }
+
+    public void close() {
+    }
+
+
+    /**
+     * A one-way link that holds at most one message.
+     */
+    private static class Link {
+        private int from;
+        private int to;
+        private ByteBuffer buffer;
+        private boolean full;
+
+        /**
+         * Creates an empty link.
+         * @param sender the number of the worker that sends on the link
+         * @param receiver the number of the worker that receives on it
+         */
+        Link(int sender, int receiver) {
+            from = sender;
+            to = receiver;
+            buffer = ByteBuffer.allocate(0);
+            full = false;
+        }
+
+        /**
+         * Copies a message into the link once the previous one has been
+         * released, growing the buffer if needed.
+         * @param message the message to copy
+         * @throws IOException if the previous message is not released in
+         *         time or the thread is interrupted
+         */
+        synchronized void put(ByteBuffer message) throws IOException {
+            await(false);
+            if (buffer.capacity() < message.remaining()) {
+                buffer = ByteBuffer.allocate(Math.max(message.remaining(),
+                                                      2 * buffer.capacity()));
+            }
+            buffer.clear();
+            buffer.put(message.duplicate());
+            buffer.flip();
+            full = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for a message.
+         * @return a view of the message in little-endian order
+         * @throws IOException if no message arrives in time or the thread
+         *         is interrupted
+         */
+        synchronized ByteBuffer take() throws IOException {
+            await(true);
+            return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Empties the link.
+         */
+        synchronized void release() {
+            full = false;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the link is full or empty.
+         * @param wanted true to wait for a message, false to wait for room
+         * @throws IOException if the wait times out or is interrupted
+         */
+        private void await(boolean wanted) throws IOException {
+            int other = wanted ? from : to;
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (full != wanted) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("timed out waiting for worker " + other);
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted waiting for worker " + other);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,323 @@
+// MappedHaloTransport.java
+// Links workers in separate processes through memory-mapped files.
+package org.jbromley.flocking;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * This class links workers in separate processes on one machine through
+ * files in a shared directory, one file for each direction of each link,
+ * which both workers map into memory. A message is copied straight into
+ * the mapping by the sender and read straight out of it by the receiver.
+ * <p>
+ * Each file is little-endian. It starts with a header of
+ * {@link #PAYLOAD_OFFSET} bytes holding the int {@link #MAGIC} and the
+ * int capacity of the link, the long number of messages published by the
+ * sender at {@link #PUBLISHED_OFFSET} and the long number released by the
+ * receiver at {@link #RELEASED_OFFSET}. The counts are on separate cache
+ * lines since each is written by a different process. The message follows
+ * as an int length and the bytes of the message.
+ * <p>
+ * Java 8 has no ordered access to mapped memory, so the counts are not
+ * written or polled through the mapping but through the file channel.
+ * Those system calls cannot be reordered with the accesses to the mapping
+ * around them, and the operating system keeps the mapping and the file
+ * coherent, so a receiver that sees a new count also sees the message it
+ * publishes. A worker waiting for a count spins briefly and then parks
+ * between polls.
+ * <p>
+ * The sender creates each file under a temporary name and renames it
+ * once it is set up, and the receiver waits for it to appear, so the
+ * workers may start in any order. The directory must not hold the files
+ * of an earlier run; they are deleted when the transports are closed.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class MappedHaloTransport implements HaloTransport {
+
+    /** The magic number at the start of a link file, "FLKH" in ASCII. */
+    public static final int MAGIC = 0x484b4c46;
+    /** The default largest message in bytes. */
+    public static final int DEFAULT_CAPACITY = 16 << 20;
+
+    /** The offsets of the counts and of the message in a link file. */
+    static final int PUBLISHED_OFFSET = 64;
+    static final int RELEASED_OFFSET = 128;
+    static final int PAYLOAD_OFFSET = 192;
+
+    /** How long to wait for another worker before giving up. */
+    private static final long TIMEOUT_NANOS = 60000000000L;
+    /** The polls made before a waiting worker starts to park. */
+    private static final int SPIN_POLLS = 1000;
+    /** How long a waiting worker parks between polls. */
+    private static final long PARK_NANOS = 50000;
+
+    private File directory;
+    private int rank;
+    private int capacity;
+    private Link[] outgoing;
+    private Link[] incoming;
+
+    /**
+     * Creates the ends of the links of one worker. The links are opened
+     * the first time they are used.
+     * @param directory the directory shared by the workers
+     * @param rank the number of this worker
+     * @param workers the number of workers
+     * @param capacity the largest message, in bytes, that this worker sends
+     */
+    public MappedHaloTransport(File directory, int rank, int workers, int capacity) {
+        this.directory = directory;
+        this.rank = rank;
+        this.capacity = capacity;
+        outgoing = new Link[workers];
+        incoming = new Link[workers];
+    }
+
+    /**
+     * Creates the ends of the links of one worker with the default
+     * capacity.
+     * @param directory the directory shared by the workers
+     * @param rank the number of this worker
+     * @param workers the number of workers
+     */
+    public MappedHaloTransport(File directory, int rank, int workers) {
+        this(directory, rank, workers, DEFAULT_CAPACITY);
+    }
+
+    public void send(int to, ByteBuffer message) throws IOException {
+        if (outgoing[to] == null) {
+            outgoing[to] = createLink(to);
+        }
+        Link link = outgoing[to];
+        int length = message.remaining();
+        if (length > link.capacity) {
+            throw new IOException("message of " + length + " bytes exceeds the link capacity of " +
+                                  link.capacity);
+        }
+        awaitCount(link, RELEASED_OFFSET, link.count, to);
+        link.map.position(PAYLOAD_OFFSET);
+        link.map.putInt(length);
+        link.map.put(message.duplicate());
+        writeCount(link, PUBLISHED_OFFSET, ++link.count);
+    }
+
+    public ByteBuffer receive(int from) throws IOException {
+        if (incoming[from] == null) {
+            incoming[from] = openLink(from);
+        }
+        Link link = incoming[from];
+        awaitCount(link, PUBLISHED_OFFSET, link.count + 1, from);
+        ++link.count;
+        ByteBuffer message = link.map.duplicate();
+        message.order(ByteOrder.LITTLE_ENDIAN);
+        int length = message.getInt(PAYLOAD_OFFSET);
+        message.limit(PAYLOAD_OFFSET + 4 + length);
+        message.position(PAYLOAD_OFFSET + 4);
+        return message.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public void release(int from) throws IOException {
+        Link link = incoming[from];
+        writeCount(link, RELEASED_OFFSET, link.count);
+    }
+
+    /**
+     * Closes every link and deletes the files this worker sent on.
+     * @throws IOException if a link cannot be closed
+     */
+    public void close() throws IOException {
+        for (int other = 0; other < outgoing.length; ++other) {
+            if (outgoing[other] != null) {
+                outgoing[other].close();
+                // A receiver that still has the file mapped keeps it alive.
+                linkFile(rank, other).delete();
+                outgoing[other] = null;
+            }
+            if (incoming[other] != null) {
+                incoming[other].close();
+                incoming[other] = null;
+            }
+        }
+    }
+
+    /**
+     * Creates and maps the file of a link this worker sends on.
+     * @param to the number of the worker at the other end
+     * @return the link
+     * @throws IOException if the file exists already or cannot be created
+     */
+    private Link createLink(int to) throws IOException {
+        File file = linkFile(rank, to);
+        if (file.exists()) {
+            throw new IOException(file + " is left over from an earlier run");
+        }
+        File temporary = new File(directory, file.getName() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(PAYLOAD_OFFSET + 4 + capacity);
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(capacity).flip();
+            raf.getChannel().write(header, 0);
+        } finally {
+            raf.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return new Link(file);
+    }
+
+    /**
+     * Waits for the file of a link this worker receives on and maps it.
+     * @param from the number of the worker at the other end
+     * @return the link
+     * @throws IOException if the file does not appear in time or is not a
+     *         link file
+     */
+    private Link openLink(int from) throws IOException {
+        File file = linkFile(from, rank);
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (!file.exists()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("timed out waiting for worker " + from + " to create " + file);
+            }
+            park();
+        }
+        return new Link(file);
+    }
+
+    /**
+     * Returns the file of the link from one worker to another.
+     * @param from the number of the sender
+     * @param to the number of the receiver
+     * @return the file
+     */
+    private File linkFile(int from, int to) {
+        return new File(directory, "halo-" + from + "-" + to + ".bin");
+    }
+
+    /**
+     * Waits until a count in the header of a link reaches a value.
+     * @param link the link
+     * @param offset the offset of the count
+     * @param value the value to wait for
+     * @param other the number of the worker at the other end
+     * @throws IOException if the count cannot be read or does not reach
+     *         the value in time
+     */
+    private static void awaitCount(Link link, int offset, long value,
+                                   int other) throws IOException {
+        long deadline = 0;
+        for (int polls = 0; readCount(link, offset) < value; ++polls) {
+            if (polls < SPIN_POLLS) {
+                continue;
+            }
+            if (polls == SPIN_POLLS) {
+                deadline = System.nanoTime() + TIMEOUT_NANOS;
+            } else if (System.nanoTime() - deadline > 0) {
+                throw new IOException("timed out waiting for worker " + other);
+            }
+            park();
+        }
+    }
+
+    /**
+     * Reads a count from the header of a link through its channel.
+     * @param link the link
+     * @param offset the offset of the count
+     * @return the count
+     * @throws IOException if the count cannot be read
+     */
+    private static long readCount(Link link, int offset) throws IOException {
+        link.word.clear();
+        while (link.word.hasRemaining()) {
+            if (link.channel.read(link.word, offset + link.word.position()) < 0) {
+                throw new IOException("link file truncated");
+            }
+        }
+        return link.word.getLong(0);
+    }
+
+    /**
+     * Writes a count to the header of a link through its channel.
+     * @param link the link
+     * @param offset the offset of the count
+     * @param value the count
+     * @throws IOException if the count cannot be written
+     */
+    private static void writeCount(Link link, int offset, long value) throws IOException {
+        link.word.clear();
+        link.word.putLong(0, value);
+        while (link.word.hasRemaining()) {
+            link.channel.write(link.word, offset + link.word.position());
+        }
+    }
+
+    /**
+     * Parks the thread between polls.
+     * @throws InterruptedIOException if the thread is interrupted
+     */
+    private static void park() throws InterruptedIOException {
+        LockSupport.parkNanos(PARK_NANOS);
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("interrupted waiting for another worker");
+        }
+    }
+
+
+    /**
+     * One direction of a link, mapped by this worker.
+     */
+    private static class Link {
+        RandomAccessFile file;
+        FileChannel channel;
+        MappedByteBuffer map;
+        int capacity;
+        /** The messages sent or received on the link so far. */
+        long count;
+        /** Scratch space for reading and writing the counts. */
+        ByteBuffer word;
+
+        /**
+         * Opens and maps a link file that has been set up by its sender.
+         * @param path the link file
+         * @throws IOException if the file cannot be mapped or is not a
+         *         link file
+         */
+        Link(File path) throws IOException {
+            file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.capacity() < PAYLOAD_OFFSET || map.getInt(0) != MAGIC) {
+                close();
+                throw new IOException(path + " is not a link file");
+            }
+            capacity = map.getInt(4);
+            count = 0;
+            word = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Closes the link file. The mapping stays valid until it is
+         * garbage collected.
+         * @throws IOException if the file cannot be closed
+         */
+        void close() throws IOException {
+            channel.close();
+            file.close();
+        }
+    }
+
+}
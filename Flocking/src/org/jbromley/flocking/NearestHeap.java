@@ -0,0 +1,167 @@
+// NearestHeap.java
+// Bounded max-heap that keeps the nearest entities seen by a query.
+package org.jbromley.flocking;
+
+
+/**
+ * This class collects the k entities nearest to a query point. It is a
+ * max-heap on squared distance bounded to k entries: while it has room
+ * every entity offered is kept, and once it is full an entity is only
+ * kept if it is nearer than the farthest one held, which it replaces. The
+ * entries are kept in primitive arrays, so a heap can be reused for every
+ * query without allocating.
+ * <p>
+ * The entries are not sorted; entry 0 is the farthest one held.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class NearestHeap {
+
+    private int[] ids;
+    private float[] offsetsX;
+    private float[] offsetsY;
+    private float[] distancesSq;
+    private int capacity;
+    private int count;
+    private int exclude;
+
+    /**
+     * Creates an empty heap with room for one entity.
+     */
+    public NearestHeap() {
+        ids = new int[1];
+        offsetsX = new float[1];
+        offsetsY = new float[1];
+        distancesSq = new float[1];
+        reset(1, -1);
+    }
+
+    /**
+     * Empties the heap before a query.
+     * @param k the number of nearest entities to keep
+     * @param excludedId an id that is never kept, usually the entity at
+     *                   the query point, or -1 to keep every id
+     */
+    public void reset(int k, int excludedId) {
+        if (ids.length < k) {
+            ids = new int[k];
+            offsetsX = new float[k];
+            offsetsY = new float[k];
+            distancesSq = new float[k];
+        }
+        capacity = k;
+        count = 0;
+        exclude = excludedId;
+    }
+
+    /**
+     * Offers an entity to the heap.
+     * @param id the id of the entity
+     * @param dx the x-offset from the query point to the entity
+     * @param dy the y-offset from the query point to the entity
+     * @param distanceSq the squared distance from the query point
+     */
+    public void offer(int id, float dx, float dy, float distanceSq) {
+        if (id == exclude) {
+            return;
+        }
+        if (count < capacity) {
+            // Sift the new entry up from the end.
+            int i = count++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (distancesSq[parent] >= distanceSq) {
+                    break;
+                }
+                set(i, parent);
+                i = parent;
+            }
+            put(i, id, dx, dy, distanceSq);
+        } else if (distanceSq < distancesSq[0]) {
+            // Replace the farthest entry and sift down from the root.
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= count) {
+                    break;
+                }
+                if (child + 1 < count && distancesSq[child + 1] > distancesSq[child]) {
+                    ++child;
+                }
+                if (distancesSq[child] <= distanceSq) {
+                    break;
+                }
+                set(i, child);
+                i = child;
+            }
+            put(i, id, dx, dy, distanceSq);
+        }
+    }
+
+    /**
+     * Returns the number of entities held.
+     * @return the number of entities
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Tests whether the heap holds k entities.
+     * @return true if no more entities can be added without replacing one
+     */
+    public boolean isFull() {
+        return count == capacity;
+    }
+
+    /**
+     * Returns the squared distance of the farthest entity held.
+     * @return the largest squared distance, or infinity if the heap is empty
+     */
+    public float getMaxDistanceSq() {
+        return count > 0 ? distancesSq[0] : Float.POSITIVE_INFINITY;
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    public float getOffsetX(int i) {
+        return offsetsX[i];
+    }
+
+    public float getOffsetY(int i) {
+        return offsetsY[i];
+    }
+
+    public float getDistanceSq(int i) {
+        return distancesSq[i];
+    }
+
+    /**
+     * Calls a visitor for every entity held.
+     * @param visitor the callback that receives each entity
+     */
+    public void forEach(NeighborVisitor visitor) {
+        for (int i = 0; i < count; ++i) {
+            if (!visitor.visit(ids[i], offsetsX[i], offsetsY[i],
+                               distancesSq[i])) {
+                return;
+            }
+        }
+    }
+
+    private void set(int to, int from) {
+        ids[to] = ids[from];
+        offsetsX[to] = offsetsX[from];
+        offsetsY[to] = offsetsY[from];
+        distancesSq[to] = distancesSq[from];
+    }
+
+    private void put(int i, int id, float dx, float dy, float distanceSq) {
+        ids[i] = id;
+        offsetsX[i] = dx;
+        offsetsY[i] = dy;
+        distancesSq[i] = distanceSq;
+    }
+
+}
@@ -0,0 +1,25 @@
+// NeighborVisitor.java
+// Callback for neighbor queries on a spatial index.
+package org.jbromley.flocking;
+
+
+/**
+ * A callback that receives each entity found by a neighbor query. The
+ * offset is measured from the query point to the entity and already
+ * accounts for wrapping, so it is the shortest offset across the edges of
+ * a wrapped space.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public interface NeighborVisitor {
+
+    /**
+     * Visits one entity within the query radius.
+     * @param id the id of the entity
+     * @param dx the x-offset from the query point to the entity
+     * @param dy the y-offset from the query point to the entity
+     * @param distanceSq the squared distance from the query point
+     * @return true to continue the query, false to stop it
+     */
+    public boolean visit(int id, float dx, float dy, float distanceSq);
+
+}
@@ -0,0 +1,106 @@
+// Neighborhood.java
+// Accumulates the flocking sums over the neighbors of one boid.
+package org.jbromley.flocking;
+
+
+/**
+ * This class visits the neighbors of a boid and accumulates the sums
+ * needed by the separation, alignment and cohesion behaviors in a single
+ * pass. One instance is reused for every boid stepped by a thread.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+class Neighborhood implements NeighborVisitor {
+
+    private Profiler profiler;
+    private Profiler.Timer timer;
+    private BoidStore store;
+    private int self;
+    /** The squared radii of the neighborhood and of separation. */
+    float neighborhoodSq;
+    float separationSq;
+
+    /** Sum of the neighbor offsets scaled by their inverse squared distance. */
+    float separateX;
+    float separateY;
+    /** Sum of the velocities of the neighbors in the neighborhood. */
+    float velocityX;
+    float velocityY;
+    /** Sum of the offsets to the neighbors in the neighborhood. */
+    float offsetX;
+    float offsetY;
+    /** The number of neighbors in the neighborhood. */
+    int count;
+    /** Scratch heap for the topological neighbor query. */
+    final NearestHeap nearest = new NearestHeap();
+    /** Scratch cell runs for the steering kernel. */
+    final CellRuns runs = new CellRuns();
+
+    /**
+     * Creates an accumulator for one thread.
+     * @param profiler the profiler that times sampled boids
+     */
+    Neighborhood(Profiler profiler) {
+        this.profiler = profiler;
+        timer = null;
+    }
+
+    /**
+     * Returns the timer to use for a boid.
+     * @param id the id of the boid about to be stepped
+     * @return this thread's timer if the boid is sampled, otherwise null
+     */
+    Profiler.Timer timerFor(int id) {
+        if (!profiler.isSampled(id)) {
+            return null;
+        }
+        if (timer == null) {
+            timer = profiler.createTimer();
+        }
+        return timer;
+    }
+
+    /**
+     * Clears the sums before visiting the neighbors of a boid.
+     * @param boids the store holding the boids
+     * @param id the boid whose neighbors are visited
+     * @param neighborhood the radius for alignment and cohesion
+     * @param separation the radius for separation
+     */
+    void reset(BoidStore boids, int id, float neighborhood, float separation) {
+        store = boids;
+        self = id;
+        neighborhoodSq = neighborhood * neighborhood;
+        separationSq = separation * separation;
+        separateX = 0.0f;
+        separateY = 0.0f;
+        velocityX = 0.0f;
+        velocityY = 0.0f;
+        offsetX = 0.0f;
+        offsetY = 0.0f;
+        count = 0;
+    }
+
+    public boolean visit(int id, float dx, float dy, float distanceSq) {
+        if (id == self) {
+            return true;
+        }
+
+        // Separation: a vector pointing away from the neighbor, scaled by
+        // the inverse of the distance.
+        if (distanceSq < separationSq && distanceSq > 0.0f) {
+            separateX -= dx / distanceSq;
+            separateY -= dy / distanceSq;
+        }
+
+        // Alignment and cohesion: the velocity and offset sums.
+        if (distanceSq < neighborhoodSq) {
+            velocityX += store.vx[id];
+            velocityY += store.vy[id];
+            offsetX += dx;
+            offsetY += dy;
+            ++count;
+        }
+        return true;
+    }
+
+}
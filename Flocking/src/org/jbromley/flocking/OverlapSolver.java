@@ -0,0 +1,365 @@
+// OverlapSolver.java
+// Pushes overlapping boids apart after a step.
+package org.jbromley.flocking;
+
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * This class enforces the non-overlap condition between boids. After a
+ * step, one pass over the spatial index finds the contacts of every boid,
+ * the boids whose circles overlap its own. A fixed budget of Jacobi
+ * iterations then corrects the positions: in each iteration every boid
+ * in contact sums a push away from each boid it still overlaps, of half
+ * the overlap, reading only the positions left by the previous iteration
+ * and writing only its own push, and once all pushes are summed every
+ * boid is moved by its own. Each boid writes to its own slots alone, so
+ * both halves of an iteration can run on many threads without locks, and
+ * the result does not depend on the number of threads or the order in
+ * which the boids are visited.
+ * <p>
+ * A boid's push is averaged over the boids it overlaps, so a boid crowded
+ * from several sides is never pushed further than half its deepest
+ * overlap in one iteration. The contacts are only found once per step,
+ * so pairs that the pushes bring together are left for the next step.
+ * Ghosts push the boids they overlap but are not pushed themselves, and a
+ * push that would carry a boid through a wall is dropped.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+class OverlapSolver {
+
+    /** The boids handled by one parallel task. */
+    private static final int BOIDS_PER_TASK = 512;
+
+    private static final int FIND_CONTACTS = 0;
+    private static final int SUM_PUSHES = 1;
+    private static final int APPLY_PUSHES = 2;
+
+    private float width;
+    private float height;
+
+    private int[][] contacts;
+    private int[] counts;
+    /** The push on each boid from the current iteration. */
+    private float[] pushX;
+    private float[] pushY;
+    /** Where each boid in contact was before it was pushed. */
+    private float[] startX;
+    private float[] startY;
+    /** The boids in contact with another, which are the only ones pushed. */
+    private IntList touching;
+
+    private BoidStore store;
+    private SpatialIndex index;
+    private WallField walls;
+    private boolean wrapping;
+    private float largestRadius;
+    private ThreadLocal<ContactCollector> collectors;
+
+    /**
+     * Creates a solver for a world.
+     * @param width the width of the world
+     * @param height the height of the world
+     */
+    OverlapSolver(float width, float height) {
+        this.width = width;
+        this.height = height;
+        contacts = new int[0][];
+        counts = new int[0];
+        pushX = new float[0];
+        pushY = new float[0];
+        startX = new float[0];
+        startY = new float[0];
+        touching = new IntList();
+        collectors = new ThreadLocal<ContactCollector>() {
+            @Override
+            protected ContactCollector initialValue() {
+                return new ContactCollector();
+            }
+        };
+    }
+
+    /**
+     * Pushes the overlapping boids of a flock apart and re-bins the boids
+     * that moved. The index must hold the current positions of the boids.
+     * @param boids the store holding the boids
+     * @param boidIndex the index holding the boids
+     * @param count the number of boids of the flock, before any ghosts
+     * @param wallField the walls to keep the boids inside, or null if the
+     *                  world wraps around
+     * @param iterations the most iterations to run
+     * @param executor the pool to run on, or null to run on this thread
+     * @return the number of iterations run, fewer than the budget if the
+     *         boids stopped overlapping
+     */
+    int solve(BoidStore boids, SpatialIndex boidIndex, int count, WallField wallField,
+              int iterations, ForkJoinPool executor) {
+        store = boids;
+        index = boidIndex;
+        walls = wallField;
+        wrapping = wallField == null;
+        ensureCapacity(count);
+        largestRadius = 0.0f;
+        for (int id = 0; id < store.size(); ++id) {
+            largestRadius = Math.max(largestRadius, store.radius[id]);
+        }
+
+        run(FIND_CONTACTS, count, executor);
+        touching.clear();
+        for (int id = 0; id < count; ++id) {
+            if (counts[id] > 0) {
+                touching.add(id);
+                startX[id] = store.px[id];
+                startY[id] = store.py[id];
+            }
+        }
+
+        int iteration = 0;
+        while (iteration < iterations && !touching.isEmpty()) {
+            run(SUM_PUSHES, touching.size(), executor);
+            if (!anyPushed()) {
+                break;
+            }
+            run(APPLY_PUSHES, touching.size(), executor);
+            ++iteration;
+        }
+
+        for (int i = 0; i < touching.size(); ++i) {
+            int id = touching.get(i);
+            index.updateEntity(id, startX[id], startY[id]);
+        }
+        store = null;
+        index = null;
+        walls = null;
+        return iteration;
+    }
+
+    /**
+     * Runs one phase of the solver over a range of boids, on the pool if
+     * there is one and the range is large enough to split.
+     * @param phase the phase to run
+     * @param count the number of boids, or of boids in contact
+     * @param executor the pool to run on, or null
+     */
+    private void run(int phase, int count, ForkJoinPool executor) {
+        if (executor != null && count > BOIDS_PER_TASK) {
+            executor.invoke(new PhaseTask(phase, 0, count));
+        } else {
+            runRange(phase, 0, count);
+        }
+    }
+
+    /**
+     * Runs one phase of the solver over a range of boids on this thread.
+     * The contacts are found for the boids with ids in the range, while
+     * the pushes are summed and applied for the boids in the range of the
+     * list of boids in contact.
+     * @param phase the phase to run
+     * @param first the first boid of the range
+     * @param last one past the last boid of the range
+     */
+    private void runRange(int phase, int first, int last) {
+        switch (phase) {
+        case FIND_CONTACTS:
+            ContactCollector collector = collectors.get();
+            for (int id = first; id < last; ++id) {
+                findContacts(id, collector);
+            }
+            break;
+        case SUM_PUSHES:
+            for (int i = first; i < last; ++i) {
+                sumPush(touching.get(i));
+            }
+            break;
+        default:
+            for (int i = first; i < last; ++i) {
+                applyPush(touching.get(i));
+            }
+            break;
+        }
+    }
+
+    /**
+     * Finds the boids overlapping a boid with one query of the index.
+     * @param id the boid
+     * @param collector this thread's scratch collector
+     */
+    private void findContacts(int id, ContactCollector collector) {
+        collector.start(store, id, contacts[id]);
+        index.forEachNeighbor(store.px[id], store.py[id],
+                              store.radius[id] + largestRadius, collector);
+        contacts[id] = collector.list;
+        counts[id] = collector.count;
+    }
+
+    /**
+     * Sums the push on a boid away from the boids it still overlaps.
+     * @param id the boid
+     */
+    private void sumPush(int id) {
+        float[] px = store.px;
+        float[] py = store.py;
+        float[] radius = store.radius;
+        float x = px[id];
+        float y = py[id];
+        float sumX = 0.0f;
+        float sumY = 0.0f;
+        int overlaps = 0;
+        int[] list = contacts[id];
+        for (int i = 0; i < counts[id]; ++i) {
+            int other = list[i];
+            float dx = x - px[other];
+            float dy = y - py[other];
+            if (wrapping) {
+                dx = RingSearch.shortestWrapped(dx, width);
+                dy = RingSearch.shortestWrapped(dy, height);
+            }
+            float reach = radius[id] + radius[other];
+            float distanceSq = dx * dx + dy * dy;
+            if (distanceSq >= reach * reach) {
+                continue;
+            }
+            if (distanceSq > 0.0f) {
+                float distance = (float) Math.sqrt(distanceSq);
+                float scale = 0.5f * (reach - distance) / distance;
+                sumX += dx * scale;
+                sumY += dy * scale;
+            } else {
+                // Boids at the same point are split along x by their ids.
+                sumX += id < other ? -0.5f * reach : 0.5f * reach;
+            }
+            ++overlaps;
+        }
+        if (overlaps > 1) {
+            sumX /= overlaps;
+            sumY /= overlaps;
+        }
+        pushX[id] = sumX;
+        pushY[id] = sumY;
+    }
+
+    /**
+     * Moves a boid by its push unless that would carry it through a wall.
+     * @param id the boid
+     */
+    private void applyPush(int id) {
+        float x = store.px[id] + pushX[id];
+        float y = store.py[id] + pushY[id];
+        if (walls != null && !walls.contains(x, y) && walls.contains(store.px[id], store.py[id])) {
+            return;
+        }
+        store.px[id] = x;
+        store.py[id] = y;
+    }
+
+    /**
+     * Tests whether the last iteration pushed any boid.
+     * @return true if a boid has a push to apply
+     */
+    private boolean anyPushed() {
+        for (int i = 0; i < touching.size(); ++i) {
+            int id = touching.get(i);
+            if (pushX[id] != 0.0f || pushY[id] != 0.0f) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Grows the per-boid arrays to hold a flock.
+     * @param count the number of boids
+     */
+    private void ensureCapacity(int count) {
+        if (counts.length >= count) {
+            return;
+        }
+        int capacity = Math.max(count, 2 * counts.length);
+        contacts = Arrays.copyOf(contacts, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        pushX = Arrays.copyOf(pushX, capacity);
+        pushY = Arrays.copyOf(pushY, capacity);
+        startX = Arrays.copyOf(startX, capacity);
+        startY = Arrays.copyOf(startY, capacity);
+    }
+
+
+    /**
+     * A fork/join task that runs one phase of the solver over a range of
+     * boids, splitting the range in half until it is small enough to run
+     * directly.
+     */
+    private class PhaseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int phase;
+        private int first;
+        private int last;
+
+        /**
+         * Creates a task for the boids in [first, last).
+         * @param phase the phase to run
+         * @param first the first boid of the range
+         * @param last one past the last boid of the range
+         */
+        public PhaseTask(int phase, int first, int last) {
+            this.phase = phase;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first <= BOIDS_PER_TASK) {
+                runRange(phase, first, last);
+            } else {
+                int middle = (first + last) >>> 1;
+                invokeAll(new PhaseTask(phase, first, middle),
+                          new PhaseTask(phase, middle, last));
+            }
+        }
+    }
+
+
+    /**
+     * Gathers the boids whose circles overlap that of one boid into its
+     * list of contacts, growing the list as needed. One instance is reused
+     * for every boid handled by a thread.
+     */
+    private static class ContactCollector implements NeighborVisitor {
+        int[] list;
+        int count;
+        private BoidStore store;
+        private int self;
+        private float radius;
+
+        /**
+         * Starts gathering the contacts of a boid.
+         * @param boids the store holding the boids
+         * @param id the boid, which is left off its own list
+         * @param reuse the boid's previous list, or null
+         */
+        void start(BoidStore boids, int id, int[] reuse) {
+            store = boids;
+            self = id;
+            radius = boids.radius[id];
+            list = reuse != null ? reuse : new int[4];
+            count = 0;
+        }
+
+        public boolean visit(int id, float dx, float dy, float distanceSq) {
+            float reach = radius + store.radius[id];
+            if (id != self && distanceSq < reach * reach) {
+                if (count == list.length) {
+                    list = Arrays.copyOf(list, 2 * count);
+                }
+                list[count++] = id;
+            }
+            return true;
+        }
+    }
+
+}
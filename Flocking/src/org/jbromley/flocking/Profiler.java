@@ -0,0 +1,291 @@
+// Profiler.java
+// Low-overhead timers around the phases of a flock step.
+package org.jbromley.flocking;
+
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class measures how long each phase of a flock step takes. The
+ * phases inside the per-boid kernel are timed on a sample of the boids
+ * only, one boid in {@link #getSampleInterval()} with the sample rotating
+ * from step to step, and the sampled times are scaled up to the whole
+ * flock. This keeps the cost of the clock reads to a fraction of a
+ * percent of the step. Phases that run once per step or frame are timed
+ * directly with {@link #record(Phase, long)}.
+ * <p>
+ * At the end of every step the estimated time of each phase goes into a
+ * {@link RollingHistogram} of recent steps, from which the overlay reads
+ * percentiles, and optionally into a CSV stream with one row per step.
+ * In parallel mode the per-boid phases are summed over all threads, so
+ * they measure work rather than elapsed time.
+ * <p>
+ * Steps and frames may end on different threads, and the overlay is read
+ * on the thread that draws it, so the histograms are only touched under
+ * the lock that also guards the timers.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class Profiler {
+
+    /** The number of steps kept in each histogram. */
+    public static final int WINDOW = 240;
+    /** The default number of boids per sampled boid. */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 16;
+
+    /**
+     * The phases of a step.
+     */
+    public enum Phase {
+        /** The neighbor query, which also accumulates the flocking sums. */
+        NEIGHBORS,
+        /** Turning the flocking sums and wandering into steering forces. */
+        STEERING,
+        /** Wall avoidance. */
+        WALLS,
+        /** Integrating the motion of the boid. */
+        MOTION,
+        /**
+         * Keeping the spatial index up to date: re-gridding it, reordering
+         * the store along with it, and rebuilding or re-binning it. Nothing
+         * else is timed here.
+         */
+        REBIN,
+        /** Pushing overlapping boids apart. */
+        OVERLAP,
+        /** Drawing the flock. */
+        RENDER
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private volatile boolean enabled;
+    private int sampleInterval;
+    private long stepNumber;
+    private ArrayList<Timer> timers;
+    private long[] recorded;
+    private long frameRender;
+    /** The render time of the frames drawn since the last step. */
+    private AtomicLong renderSinceStep;
+    private RollingHistogram[] histograms;
+    private PrintWriter csv;
+
+    /**
+     * Creates a disabled profiler.
+     */
+    public Profiler() {
+        enabled = false;
+        sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+        stepNumber = 0;
+        timers = new ArrayList<Timer>();
+        recorded = new long[PHASES.length];
+        frameRender = 0;
+        renderSinceStep = new AtomicLong();
+        histograms = new RollingHistogram[PHASES.length];
+        for (int i = 0; i < PHASES.length; ++i) {
+            histograms[i] = new RollingHistogram(WINDOW);
+        }
+    }
+
+    /**
+     * Turns the profiler on or off. Turning it on clears the histograms.
+     * @param on true to time the phases of every step
+     */
+    public void setEnabled(boolean on) {
+        synchronized (timers) {
+            if (on && !enabled) {
+                for (RollingHistogram histogram : histograms) {
+                    histogram.clear();
+                }
+            }
+            enabled = on;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets how many boids there are per sampled boid.
+     * @param interval the sampling interval, where 1 times every boid
+     */
+    public void setSampleInterval(int interval) {
+        sampleInterval = Math.max(1, interval);
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Starts streaming one CSV row per step, after a header row. Passing
+     * null stops the stream; the writer is flushed but not closed.
+     * @param writer the writer that receives the rows, or null
+     */
+    public void setCsvWriter(PrintWriter writer) {
+        if (csv != null) {
+            csv.flush();
+        }
+        csv = writer;
+        if (csv != null) {
+            csv.print("step,boids");
+            for (Phase phase : PHASES) {
+                csv.print(',');
+                csv.print(phase.name().toLowerCase());
+            }
+            csv.println();
+        }
+    }
+
+    /**
+     * Tests whether a boid is timed in the current step.
+     * @param id the id of the boid
+     * @return true if the phases of the boid should be timed
+     */
+    boolean isSampled(int id) {
+        return enabled && (id + stepNumber) % sampleInterval == 0;
+    }
+
+    /**
+     * Creates a timer for the boids stepped by one thread.
+     * @return a new timer registered with this profiler
+     */
+    Timer createTimer() {
+        Timer timer = new Timer();
+        synchronized (timers) {
+            timers.add(timer);
+        }
+        return timer;
+    }
+
+    /**
+     * Adds time to a phase that is timed as a whole rather than per boid.
+     * @param phase the phase
+     * @param nanos the time taken in nanoseconds
+     */
+    public void record(Phase phase, long nanos) {
+        if (enabled) {
+            if (phase == Phase.RENDER) {
+                frameRender += nanos;
+            } else {
+                recorded[phase.ordinal()] += nanos;
+            }
+        }
+    }
+
+    /**
+     * Ends a step. The sampled per-boid times are scaled up to the size of
+     * the flock, added to the directly recorded times and entered into the
+     * histograms. Rendering is entered separately by {@link #endFrame()},
+     * since a frame may run several steps; the CSV row of a step holds the
+     * render time of the frames ended since the previous step.
+     * @param boids the number of boids in the flock
+     */
+    void endStep(int boids) {
+        if (!enabled) {
+            return;
+        }
+        long samples = 0;
+        synchronized (timers) {
+            for (Timer timer : timers) {
+                samples += timer.samples;
+            }
+            for (int i = 0; i < Phase.RENDER.ordinal(); ++i) {
+                long sum = 0;
+                for (Timer timer : timers) {
+                    sum += timer.nanos[i];
+                    timer.nanos[i] = 0;
+                }
+                if (samples > 0) {
+                    sum = sum * boids / samples;
+                }
+                recorded[i] += sum;
+            }
+            for (Timer timer : timers) {
+                timer.samples = 0;
+            }
+            for (int i = 0; i < Phase.RENDER.ordinal(); ++i) {
+                histograms[i].add(recorded[i]);
+            }
+        }
+
+        recorded[Phase.RENDER.ordinal()] = renderSinceStep.getAndSet(0);
+        if (csv != null) {
+            csv.print(stepNumber);
+            csv.print(',');
+            csv.print(boids);
+            for (int i = 0; i < PHASES.length; ++i) {
+                csv.print(',');
+                csv.print(recorded[i]);
+            }
+            csv.println();
+        }
+        for (int i = 0; i < PHASES.length; ++i) {
+            recorded[i] = 0;
+        }
+        ++stepNumber;
+    }
+
+    /**
+     * Ends a rendered frame, entering the render time recorded since the
+     * last frame into its histogram. Frames may be drawn on another thread
+     * than the one stepping the flock, so the time is handed to the CSV
+     * row of the next step through an atomic counter.
+     */
+    public void endFrame() {
+        if (enabled) {
+            synchronized (timers) {
+                histograms[Phase.RENDER.ordinal()].add(frameRender);
+            }
+            renderSinceStep.addAndGet(frameRender);
+            frameRender = 0;
+        }
+    }
+
+    /**
+     * Returns a percentile of the recent times of a phase.
+     * @param phase the phase
+     * @param fraction the percentile as a fraction between 0 and 1
+     * @return the percentile in nanoseconds, or 0 if the phase has no
+     *         recent times
+     */
+    public long getPercentile(Phase phase, double fraction) {
+        synchronized (timers) {
+            return histograms[phase.ordinal()].getPercentile(fraction);
+        }
+    }
+
+
+    /**
+     * Accumulates the sampled per-boid phase times of one thread. The
+     * thread starts the timer when it begins a sampled boid and marks the
+     * end of every phase with a lap.
+     */
+    static class Timer {
+        private long[] nanos = new long[PHASES.length];
+        private long samples;
+        private long last;
+
+        /**
+         * Starts timing a boid.
+         */
+        void start() {
+            ++samples;
+            last = System.nanoTime();
+        }
+
+        /**
+         * Ends a phase and charges the time since the last lap to it.
+         * @param phase the phase that has just ended
+         */
+        void lap(Phase phase) {
+            long now = System.nanoTime();
+            nanos[phase.ordinal()] += now - last;
+            last = now;
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+// RingSearch.java
+// The k-nearest search over the cells of a uniform grid.
+package org.jbromley.flocking;
+
+
+/**
+ * This class finds the entities nearest to a point in a uniform grid. The
+ * cells are searched in square rings of growing size around the cell
+ * holding the point. Once the heap is full, cells that lie farther away
+ * than the farthest entity kept are skipped. The search stops as soon as
+ * the heap is full and no cell outside the rings searched so far can hold
+ * a nearer entity, the rings reach the maximum radius, every entity in
+ * the grid has been seen, or the rings cover the whole grid.
+ * <p>
+ * Each grid keeps one instance and tells it its geometry whenever its
+ * cells, its origin or its wrap mode change. The grid supplies the search of a single
+ * cell, the only part that depends on how it stores its cells. The query
+ * is passed to every call rather than kept in fields, so one instance
+ * serves queries from many threads at once.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+abstract class RingSearch {
+
+    private boolean bounded;
+    private int numberCellsX;
+    private int numberCellsY;
+    private float cellWidth;
+    private float cellHeight;
+    private float originX;
+    private float originY;
+    private boolean wrapMode;
+
+    /**
+     * Creates a search for a grid.
+     * @param bounded true if the grid only has the cells that cover the
+     *                space, false if outside wrap mode it has cells
+     *                wherever there are entities
+     */
+    RingSearch(boolean bounded) {
+        this.bounded = bounded;
+    }
+
+    /**
+     * Sets the geometry of the grid.
+     * @param cellsX the number of cells across the space
+     * @param cellsY the number of cells down the space
+     * @param width the width of a cell
+     * @param height the height of a cell
+     * @param wrap true if the space wraps around
+     */
+    void setGrid(int cellsX, int cellsY, float width, float height, boolean wrap) {
+        numberCellsX = cellsX;
+        numberCellsY = cellsY;
+        cellWidth = width;
+        cellHeight = height;
+        wrapMode = wrap;
+    }
+
+    /**
+     * Sets the corner of the first cell of the grid.
+     * @param x the x-coordinate of the left edge of the grid
+     * @param y the y-coordinate of the top edge of the grid
+     */
+    void setOrigin(float x, float y) {
+        originX = x;
+        originY = y;
+    }
+
+    /**
+     * Finds the entities nearest to a point.
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param centerColumn the column of the cell holding the point
+     * @param centerRow the row of the cell holding the point
+     * @param maxRadius the distance beyond which entities are ignored
+     * @param entityCount the number of entities in the grid
+     * @param nearest the heap, already reset, that receives the entities
+     */
+    void findNearest(float targetX, float targetY, int centerColumn, int centerRow,
+                     float maxRadius, int entityCount, NearestHeap nearest) {
+        float maxRadiusSq = maxRadius * maxRadius;
+        int lastRing;
+        if (wrapMode) {
+            lastRing = Math.max(numberCellsX, numberCellsY) / 2;
+        } else if (bounded) {
+            lastRing = Math.max(Math.max(centerColumn, numberCellsX - 1 - centerColumn),
+                                Math.max(centerRow, numberCellsY - 1 - centerRow));
+        } else {
+            lastRing = Integer.MAX_VALUE;
+        }
+        int seen = 0;
+
+        for (int ring = 0; ring <= lastRing; ++ring) {
+            for (int rowIndex = centerRow - ring; rowIndex <= centerRow + ring; ++rowIndex) {
+                if (!isSearchable(rowIndex, centerRow, numberCellsY)) {
+                    continue;
+                }
+                // Rows inside the ring only contribute their two end cells.
+                boolean edgeRow = rowIndex == centerRow - ring || rowIndex == centerRow + ring;
+                int step = edgeRow ? 1 : 2 * ring;
+                for (int colIndex = centerColumn - ring; colIndex <= centerColumn + ring; colIndex += step) {
+                    if (!isSearchable(colIndex, centerColumn, numberCellsX) ||
+                        (nearest.isFull() &&
+                         cellDistanceSq(colIndex, rowIndex, targetX, targetY) >=
+                         nearest.getMaxDistanceSq())) {
+                        continue;
+                    }
+                    seen += searchCell(colIndex, rowIndex, targetX, targetY, maxRadiusSq, nearest);
+                }
+            }
+
+            // Every cell not yet searched lies at least this far away.
+            float x = targetX - originX;
+            float y = targetY - originY;
+            float reach = Math.min(Math.min(x - (centerColumn - ring) * cellWidth,
+                                            (centerColumn + ring + 1) * cellWidth - x),
+                                   Math.min(y - (centerRow - ring) * cellHeight,
+                                            (centerRow + ring + 1) * cellHeight - y));
+            reach = Math.max(0.0f, reach);
+            if (seen == entityCount || reach >= maxRadius ||
+                (nearest.isFull() && nearest.getMaxDistanceSq() <= reach * reach)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Offers the entities of one cell that lie within the maximum radius of
+     * the query point to the heap.
+     * @param column the unwrapped column index of the cell
+     * @param row the unwrapped row index of the cell
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param maxRadiusSq the squared distance beyond which entities are
+     *                    ignored
+     * @param nearest the heap that receives the entities
+     * @return the number of entities in the cell
+     */
+    abstract int searchCell(int column, int row, float targetX, float targetY,
+                            float maxRadiusSq, NearestHeap nearest);
+
+    /**
+     * Returns the squared distance from a point to the nearest point of a
+     * cell, which bounds the distance to every entity in the cell.
+     * @param column the unwrapped column index of the cell
+     * @param row the unwrapped row index of the cell
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @return the squared distance to the cell
+     */
+    float cellDistanceSq(int column, int row, float x, float y) {
+        x -= originX;
+        y -= originY;
+        float dx = Math.max(0.0f, Math.max(column * cellWidth - x,
+                                           x - (column + 1) * cellWidth));
+        float dy = Math.max(0.0f, Math.max(row * cellHeight - y,
+                                           y - (row + 1) * cellHeight));
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Tests whether a row or column may be searched by a ring search
+     * around another. In wrap mode it must lie within half the grid of the
+     * center, so that no cell is searched twice; otherwise it must lie in
+     * a bounded grid, while every row and column of an unbounded grid may
+     * be searched.
+     * @param index the unwrapped row or column index
+     * @param center the row or column index of the center of the search
+     * @param numberCells the number of cells along the axis
+     * @return true if the row or column should be searched
+     */
+    private boolean isSearchable(int index, int center, int numberCells) {
+        if (wrapMode) {
+            return index - center >= -(numberCells - 1) / 2 &&
+                index - center <= numberCells / 2;
+        }
+        return !bounded || (index >= 0 && index < numberCells);
+    }
+
+    /**
+     * Returns the amount by which a coordinate in a wrapped cell must be
+     * shifted so that it lies next to the query point.
+     * @param index the unwrapped row or column index of the cell
+     * @param numberCells the number of cells along the axis
+     * @param spaceSize the size of the space along the axis
+     * @return the coordinate offset
+     */
+    static float wrapOffset(int index, int numberCells, float spaceSize) {
+        if (index < 0) {
+            return -spaceSize;
+        } else if (index >= numberCells) {
+            return spaceSize;
+        }
+        return 0.0f;
+    }
+
+    /**
+     * Returns the shortest form of an offset across the edges of a
+     * wrapped space.
+     * @param offset the offset along one axis
+     * @param spaceSize the size of the space along that axis
+     * @return the offset, moved by the size if that makes it shorter
+     */
+    static float shortestWrapped(float offset, float spaceSize) {
+        if (offset > 0.5f * spaceSize) {
+            return offset - spaceSize;
+        } else if (offset < -0.5f * spaceSize) {
+            return offset + spaceSize;
+        }
+        return offset;
+    }
+
+}
@@ -0,0 +1,147 @@
+// RollingHistogram.java
+// Histogram over a sliding window of recent samples.
+package org.jbromley.flocking;
+
+
+import java.util.Arrays;
+
+
+/**
+ * This class keeps a histogram of the last few samples of a non-negative
+ * quantity, such as a time in nanoseconds, so that percentiles over the
+ * recent past can be read cheaply. The buckets are log-linear: every power
+ * of two is split into eight buckets, so a percentile is accurate to
+ * within an eighth of its value whatever its magnitude. The samples in
+ * the window are kept in a ring so the oldest one can be taken out of its
+ * bucket when a new one arrives, and nothing is allocated after
+ * construction.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class RollingHistogram {
+
+    /** Sub-buckets per power of two, as a power of two. */
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BITS + 1);
+
+    private long[] window;
+    private int next;
+    private int count;
+    private int[] buckets;
+    private long sum;
+
+    /**
+     * Creates an empty histogram.
+     * @param windowSize the number of recent samples kept
+     */
+    public RollingHistogram(int windowSize) {
+        window = new long[windowSize];
+        buckets = new int[BUCKETS];
+        clear();
+    }
+
+    /**
+     * Adds a sample, dropping the oldest one if the window is full.
+     * @param value the sample, which must not be negative
+     */
+    public void add(long value) {
+        if (count == window.length) {
+            long oldest = window[next];
+            --buckets[bucket(oldest)];
+            sum -= oldest;
+        } else {
+            ++count;
+        }
+        window[next] = value;
+        ++buckets[bucket(value)];
+        sum += value;
+        next = (next + 1) % window.length;
+    }
+
+    /**
+     * Returns a percentile of the samples in the window.
+     * @param fraction the percentile as a fraction between 0 and 1
+     * @return the upper bound of the bucket holding the percentile, or 0 if
+     *         there are no samples
+     */
+    public long getPercentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        int rank = Math.max(1, (int) Math.ceil(fraction * count));
+        int seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Returns the mean of the samples in the window.
+     * @return the mean, or 0 if there are no samples
+     */
+    public double getMean() {
+        return count > 0 ? (double) sum / count : 0.0;
+    }
+
+    /**
+     * Returns the most recent sample.
+     * @return the last sample added, or 0 if there are no samples
+     */
+    public long getLast() {
+        return count > 0 ? window[(next + window.length - 1) % window.length] : 0;
+    }
+
+    /**
+     * Returns the number of samples in the window.
+     * @return the number of samples
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Removes all samples.
+     */
+    public void clear() {
+        Arrays.fill(buckets, 0);
+        next = 0;
+        count = 0;
+        sum = 0;
+    }
+
+    /**
+     * Returns the bucket of a value. Values below the number of
+     * sub-buckets have a bucket each; above that the bucket is given by the
+     * position of the highest bit and the bits just below it.
+     * @param value the value
+     * @return the index of its bucket
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (exponent - SUB_BITS + 1) + sub;
+    }
+
+    /**
+     * Returns the largest value that falls in a bucket.
+     * @param bucket the index of the bucket
+     * @return the upper bound of the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+}
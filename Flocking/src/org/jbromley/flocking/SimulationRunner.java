@@ -0,0 +1,253 @@
+// SimulationRunner.java
+// Steps a flock in real time on its own thread.
+package org.jbromley.flocking;
+
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * This class steps a flock on a thread of its own, in step with real
+ * time, and publishes a snapshot of the flock into a {@link FrameRing}
+ * after every batch of steps. A renderer on another thread draws the
+ * latest snapshot while the next steps are computed, so the cost of a
+ * frame is the larger of the simulation and the drawing rather than their
+ * sum.
+ * <p>
+ * The flock belongs to the simulation thread once the runner starts. Any
+ * other thread that wants to change it, such as the animation thread of a
+ * sketch reacting to a key, submits a command that the runner runs
+ * between two batches of steps. Reading simple values for display, such as
+ * the settings of the flock, is harmless, but they may be a batch old.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class SimulationRunner implements Runnable {
+
+    /** The longest the runner sleeps before checking for commands. */
+    private static final long MAX_PARK_NANOS = 5000000L;
+
+    private FlockSimulation flock;
+    private FrameRing frames;
+    private int maxSteps;
+    private ConcurrentLinkedQueue<Runnable> commands;
+    private volatile boolean running;
+    private volatile boolean paused;
+    private volatile Thread thread;
+    /** The exception that ended the simulation thread, if one did. */
+    private volatile Throwable failure;
+
+    /**
+     * Creates a runner for a flock.
+     * @param simulation the flock to step
+     * @param ring the ring to publish snapshots into
+     * @param maxStepsPerBatch the most steps to run between two snapshots
+     */
+    public SimulationRunner(FlockSimulation simulation, FrameRing ring, int maxStepsPerBatch) {
+        flock = simulation;
+        frames = ring;
+        maxSteps = Math.max(1, maxStepsPerBatch);
+        commands = new ConcurrentLinkedQueue<Runnable>();
+        running = false;
+        paused = false;
+        thread = null;
+        failure = null;
+    }
+
+    /**
+     * Starts the simulation thread. A snapshot of the flock as it is now is
+     * published at once.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        frames.publish(flock.getStore(), flock.getStepCount());
+        running = true;
+        failure = null;
+        thread = new Thread(this, "flock-simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the simulation thread and waits for it to finish its batch.
+     * Commands that have not run yet are dropped.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * Queues a command to run on the simulation thread between batches.
+     * Commands run in the order they were submitted, and a snapshot is
+     * published after them, so their effect shows in the next frame even
+     * while the runner is paused.
+     * @param command the command
+     */
+    public void submit(Runnable command) {
+        commands.add(command);
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Runs a command on the simulation thread and waits for it to finish.
+     * If the runner has not started, the command runs on this thread. An
+     * exception thrown by the command is thrown again here, and does not
+     * stop the simulation thread.
+     * @param command the command
+     * @throws IllegalStateException if the simulation thread stops before
+     *         running the command, with the exception that stopped it as
+     *         the cause if it failed
+     */
+    public void submitAndWait(final Runnable command) {
+        Thread runnerThread = thread;
+        if (runnerThread == null || Thread.currentThread() == runnerThread) {
+            command.run();
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        final Throwable[] thrown = new Throwable[1];
+        submit(new Runnable() {
+            public void run() {
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    thrown[0] = e;
+                } catch (Error e) {
+                    thrown[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            // The command is dropped if the thread stops first, so check on
+            // it while waiting rather than waiting for good.
+            while (!done.await(MAX_PARK_NANOS, TimeUnit.NANOSECONDS)) {
+                if (!runnerThread.isAlive() && done.getCount() > 0) {
+                    throw new IllegalStateException("the simulation thread stopped before " +
+                                                    "running the command", failure);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (thrown[0] instanceof RuntimeException) {
+            throw (RuntimeException) thrown[0];
+        } else if (thrown[0] instanceof Error) {
+            throw (Error) thrown[0];
+        }
+    }
+
+    /**
+     * Returns the exception that ended the simulation thread.
+     * @return the exception, or null if the thread has not failed
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Pauses or resumes the stepping of the flock. Time that passes while
+     * paused is not caught up on.
+     * @param pause true to stop stepping the flock
+     */
+    public void setPaused(boolean pause) {
+        paused = pause;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Runs as many fixed time steps as fit in the real time elapsed since
+     * the last batch and publishes the result, then sleeps until the next
+     * step is due. The flock always moves by whole steps of the same
+     * length, so its trajectory does not depend on the frame rate; if the
+     * simulation falls behind, the time it cannot catch up on is dropped.
+     * An exception that escapes a step or a command ends the thread and is
+     * kept for {@link #getFailure()}.
+     */
+    public void run() {
+        try {
+            runBatches();
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (Error e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Runs batches of steps until the runner is stopped.
+     */
+    private void runBatches() {
+        double timeStep = flock.getTimeStep();
+        double pendingTime = 0.0;
+        long last = System.nanoTime();
+        while (running) {
+            boolean changed = runCommands();
+            long now = System.nanoTime();
+            if (paused) {
+                pendingTime = 0.0;
+            } else {
+                pendingTime += (now - last) / 1.0e9;
+            }
+            last = now;
+
+            int steps = 0;
+            while (pendingTime >= timeStep && steps < maxSteps) {
+                flock.step();
+                pendingTime -= timeStep;
+                ++steps;
+            }
+            if (steps == maxSteps) {
+                pendingTime = 0.0;
+            }
+            if (steps > 0 || changed) {
+                frames.publish(flock.getStore(), flock.getStepCount());
+            }
+            if (steps == 0) {
+                long wait = paused ? MAX_PARK_NANOS : (long) ((timeStep - pendingTime) * 1.0e9);
+                LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, Math.max(0L, wait)));
+            }
+        }
+    }
+
+    /**
+     * Runs the commands submitted so far.
+     * @return true if any command ran
+     */
+    private boolean runCommands() {
+        boolean ran = false;
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            command.run();
+            ran = true;
+        }
+        return ran;
+    }
+
+}
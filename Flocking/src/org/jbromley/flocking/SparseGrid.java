@@ -0,0 +1,433 @@
+// SparseGrid.java
+// Spatial hash that only stores the cells that hold entities.
+package org.jbromley.flocking;
+
+
+import java.util.Arrays;
+
+
+/**
+ * This class bins entities into square cells like a {@link CompactGrid},
+ * but it does not lay the cells out over the whole space. Each occupied
+ * cell is found through a hash table with open addressing, keyed by its
+ * column and row packed into a long, so the memory used grows with the
+ * number of occupied cells rather than with the size of the world, and
+ * positions far outside the nominal space, including negative ones, land
+ * in cells of their own instead of being clamped to the edge.
+ * <p>
+ * Like the compact grid it is rebuilt once per step. The ids are sorted
+ * by occupied cell, with occupied cell <code>c</code> holding the ids in
+ * <code>sortedIds[cellStart[c]]</code> up to
+ * <code>sortedIds[cellStart[c + 1]]</code>, and the cell numbers seen by
+ * {@link #getCellCount()} and {@link #forEachCellMember(int, CellVisitor)} only cover
+ * the occupied cells. In wrap mode the space is taken to be the given
+ * width and height, cells are wrapped into it and distances follow the
+ * shortest way around.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class SparseGrid implements SpatialIndex {
+
+    /** Marks an unused slot of the hash table. */
+    private static final int EMPTY = -1;
+
+    private BoidStore store;
+    private float spaceWidth;
+    private float spaceHeight;
+    private int numberCellsX;
+    private int numberCellsY;
+    private float cellWidth;
+    private float cellHeight;
+    private float originX;
+    private float originY;
+    private boolean wrapMode;
+    private RingSearch rings;
+
+    private long[] slotKeys;
+    private int[] slotCells;
+    private int slotMask;
+
+    private int[] cellStart;
+    private int[] cellCursor;
+    private int numberCells;
+    private int[] cellOf;
+    private int[] sortedIds;
+    private int numberIds;
+
+    /**
+     * Creates a new, empty grid. The width, height and number of cells
+     * only set the size of the cells and the space that wrap mode wraps
+     * around; no storage is allocated for empty cells.
+     * @param store the store holding the entity positions
+     * @param width the width of the space to be divided
+     * @param height the height of the space to be divided
+     * @param cellsX the number of horizontal cells
+     * @param cellsY the number of vertical cells
+     */
+    public SparseGrid(BoidStore store, float width, float height,
+                      int cellsX, int cellsY) {
+        this.store = store;
+        spaceWidth = width;
+        spaceHeight = height;
+        numberCellsX = cellsX;
+        numberCellsY = cellsY;
+        originX = 0.0f;
+        originY = 0.0f;
+        wrapMode = false;
+
+        cellWidth = spaceWidth / numberCellsX;
+        cellHeight = spaceHeight / numberCellsY;
+        rings = new NearestSearch();
+        rings.setGrid(numberCellsX, numberCellsY, cellWidth, cellHeight, wrapMode);
+
+        allocate(Math.max(1, store.size()));
+        Arrays.fill(slotCells, EMPTY);
+        numberCells = 0;
+        numberIds = 0;
+    }
+
+    public void addEntity(int id) {
+        // The entity is binned at the next rebuild.
+    }
+
+    public void updateEntity(int id, float oldX, float oldY) {
+        // The entity is re-binned at the next rebuild.
+    }
+
+    /**
+     * Sorts every entity of the store into its cell. The first pass finds
+     * or inserts the cell of each entity and counts its members, a prefix
+     * sum over the occupied cells turns the counts into start offsets and
+     * the ids are then scattered into place.
+     */
+    public void rebuild() {
+        int count = store.size();
+        if (sortedIds.length < count) {
+            allocate(Math.max(count, 2 * sortedIds.length));
+        }
+        float[] px = store.px;
+        float[] py = store.py;
+
+        Arrays.fill(slotCells, EMPTY);
+        numberCells = 0;
+        for (int id = 0; id < count; ++id) {
+            int cell = insertCell(key(column(px[id]), row(py[id])));
+            cellOf[id] = cell;
+            ++cellStart[cell + 1];
+        }
+        for (int cell = 0; cell < numberCells; ++cell) {
+            cellStart[cell + 1] += cellStart[cell];
+            cellCursor[cell] = cellStart[cell];
+        }
+        for (int id = 0; id < count; ++id) {
+            sortedIds[cellCursor[cellOf[id]]++] = id;
+        }
+        numberIds = count;
+    }
+
+    public IntList getNeighborList(float targetX, float targetY,
+                                   float queryRadius) {
+        IntList neighbors = new IntList();
+        getNeighborList(targetX, targetY, queryRadius, neighbors);
+        return neighbors;
+    }
+
+    public void getNeighborList(float targetX, float targetY,
+                                float queryRadius, IntList neighbors) {
+        neighbors.clear();
+        float[] px = store.px;
+        float[] py = store.py;
+        float radiusSq = queryRadius * queryRadius;
+
+        int leftIndex = column(targetX - queryRadius);
+        int topIndex = row(targetY - queryRadius);
+        int rightIndex = lastIndex(leftIndex, column(targetX + queryRadius),
+                                   numberCellsX);
+        int bottomIndex = lastIndex(topIndex, row(targetY + queryRadius),
+                                    numberCellsY);
+
+        for (int rowIndex = topIndex; rowIndex <= bottomIndex; ++rowIndex) {
+            for (int colIndex = leftIndex; colIndex <= rightIndex; ++colIndex) {
+                int cell = findCell(key(colIndex, rowIndex));
+                if (cell == EMPTY) {
+                    continue;
+                }
+                int end = cellStart[cell + 1];
+                for (int i = cellStart[cell]; i < end; ++i) {
+                    int member = sortedIds[i];
+                    float dx = shortest(px[member] - targetX, spaceWidth);
+                    float dy = shortest(py[member] - targetY, spaceHeight);
+                    if (dx * dx + dy * dy < radiusSq) {
+                        neighbors.add(member);
+                    }
+                }
+            }
+        }
+    }
+
+    public void forEachNeighbor(float targetX, float targetY,
+                                float queryRadius, NeighborVisitor visitor) {
+        float[] px = store.px;
+        float[] py = store.py;
+        float radiusSq = queryRadius * queryRadius;
+
+        int leftIndex = column(targetX - queryRadius);
+        int topIndex = row(targetY - queryRadius);
+        int rightIndex = lastIndex(leftIndex, column(targetX + queryRadius),
+                                   numberCellsX);
+        int bottomIndex = lastIndex(topIndex, row(targetY + queryRadius),
+                                    numberCellsY);
+
+        for (int rowIndex = topIndex; rowIndex <= bottomIndex; ++rowIndex) {
+            for (int colIndex = leftIndex; colIndex <= rightIndex; ++colIndex) {
+                int cell = findCell(key(colIndex, rowIndex));
+                if (cell == EMPTY) {
+                    continue;
+                }
+                int end = cellStart[cell + 1];
+                for (int i = cellStart[cell]; i < end; ++i) {
+                    int member = sortedIds[i];
+                    float dx = shortest(px[member] - targetX, spaceWidth);
+                    float dy = shortest(py[member] - targetY, spaceHeight);
+                    float distanceSq = dx * dx + dy * dy;
+                    if (distanceSq < radiusSq &&
+                        !visitor.visit(member, dx, dy, distanceSq)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the entities nearest to a point. The cells are searched in
+     * square rings of growing size around the cell holding the point.
+     * Once the heap is full, cells that lie farther away than the farthest
+     * entity kept are skipped. The search stops as soon as the heap is full
+     * and no cell outside the rings searched so far can hold a nearer
+     * entity, the rings reach the maximum radius, or every entity in the
+     * grid has been seen.
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param maxRadius the distance beyond which entities are ignored
+     * @param nearest the heap, already reset, that receives the entities
+     */
+    public void findNearest(float targetX, float targetY, float maxRadius,
+                            NearestHeap nearest) {
+        rings.findNearest(targetX, targetY, column(targetX), row(targetY),
+                          maxRadius, numberIds, nearest);
+    }
+
+    public void setWrapMode(boolean useWrapping) {
+        wrapMode = useWrapping;
+        rings.setGrid(numberCellsX, numberCellsY, cellWidth, cellHeight, wrapMode);
+    }
+
+    public boolean getWrapMode() {
+        return wrapMode;
+    }
+
+    public void setOrigin(float x, float y) {
+        originX = x;
+        originY = y;
+        rings.setOrigin(originX, originY);
+        rebuild();
+    }
+
+    /**
+     * Changes the size of the cells and sorts every entity into them.
+     * @param cellsX the number of horizontal cells across the space
+     * @param cellsY the number of vertical cells across the space
+     */
+    public void resize(int cellsX, int cellsY) {
+        numberCellsX = cellsX;
+        numberCellsY = cellsY;
+        cellWidth = spaceWidth / numberCellsX;
+        cellHeight = spaceHeight / numberCellsY;
+        rings.setGrid(numberCellsX, numberCellsY, cellWidth, cellHeight, wrapMode);
+        rebuild();
+    }
+
+    /**
+     * Removes all entites from the grid.
+     */
+    public void clear() {
+        Arrays.fill(slotCells, EMPTY);
+        numberCells = 0;
+        numberIds = 0;
+    }
+
+    /**
+     * Returns the number of occupied cells.
+     * @return the number of cells holding at least one entity
+     */
+    public int getCellCount() {
+        return numberCells;
+    }
+
+    public int getCellSize(int cell) {
+        return cellStart[cell + 1] - cellStart[cell];
+    }
+
+    public void forEachCellMember(int cell, CellVisitor visitor) {
+        int end = cellStart[cell + 1];
+        for (int i = cellStart[cell]; i < end; ++i) {
+            visitor.visit(sortedIds[i]);
+        }
+    }
+
+    /**
+     * Returns the number of entities binned at the last rebuild.
+     * @return the number of entities in the grid
+     */
+    public int size() {
+        return numberIds;
+    }
+
+    /**
+     * Sizes the arrays for a number of entities. There can be no more
+     * occupied cells than entities, and the hash table is kept at least
+     * twice that size so that probe sequences stay short.
+     * @param capacity the number of entities to make room for
+     */
+    private void allocate(int capacity) {
+        sortedIds = new int[capacity];
+        cellOf = new int[capacity];
+        cellStart = new int[capacity + 1];
+        cellCursor = new int[capacity];
+
+        int slots = Integer.highestOneBit(2 * capacity - 1) << 1;
+        slotKeys = new long[slots];
+        slotCells = new int[slots];
+        slotMask = slots - 1;
+        Arrays.fill(slotCells, EMPTY);
+    }
+
+    /**
+     * Finds the occupied cell with a key, adding it if it is new.
+     * @param key the packed column and row of the cell
+     * @return the number of the cell
+     */
+    private int insertCell(long key) {
+        int slot = hash(key);
+        while (slotCells[slot] != EMPTY) {
+            if (slotKeys[slot] == key) {
+                return slotCells[slot];
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        int cell = numberCells++;
+        slotKeys[slot] = key;
+        slotCells[slot] = cell;
+        cellStart[cell + 1] = 0;
+        return cell;
+    }
+
+    /**
+     * Finds the occupied cell with a key.
+     * @param key the packed column and row of the cell
+     * @return the number of the cell, or {@link #EMPTY} if it has no members
+     */
+    private int findCell(long key) {
+        int slot = hash(key);
+        while (slotCells[slot] != EMPTY) {
+            if (slotKeys[slot] == key) {
+                return slotCells[slot];
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Packs a column and row into a cell key. In wrap mode they are first
+     * wrapped into the space.
+     * @param column the column of the cell
+     * @param row the row of the cell
+     * @return the key of the cell
+     */
+    private long key(int column, int row) {
+        if (wrapMode) {
+            column = Math.floorMod(column, numberCellsX);
+            row = Math.floorMod(row, numberCellsY);
+        }
+        return ((long) column << 32) | (row & 0xffffffffL);
+    }
+
+    /**
+     * Spreads a key over the slots of the hash table.
+     * @param key the key of a cell
+     * @return the first slot to probe
+     */
+    private int hash(long key) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> 32) & slotMask;
+    }
+
+    private int column(float x) {
+        return (int) Math.floor((x - originX) / cellWidth);
+    }
+
+    private int row(float y) {
+        return (int) Math.floor((y - originY) / cellHeight);
+    }
+
+    /**
+     * Limits the last cell of a query range in wrap mode so that no cell
+     * is visited twice.
+     * @param first the first index of the range
+     * @param last the last index of the range
+     * @param numberCells the number of cells across the space
+     * @return the last index to visit
+     */
+    private int lastIndex(int first, int last, int numberCells) {
+        if (wrapMode && last - first >= numberCells) {
+            return first + numberCells - 1;
+        }
+        return last;
+    }
+
+    /**
+     * Returns the shortest offset along an axis. Outside of wrap mode this
+     * is the offset itself; in wrap mode it may go the other way around.
+     * @param offset the offset between two coordinates
+     * @param spaceSize the size of the space along the axis
+     * @return the shortest offset
+     */
+    private float shortest(float offset, float spaceSize) {
+        return wrapMode ? RingSearch.shortestWrapped(offset, spaceSize) : offset;
+    }
+
+
+    /**
+     * The ring search of the grid, which looks each cell up in the hash
+     * table and scans its run of the sorted ids.
+     */
+    private class NearestSearch extends RingSearch {
+        NearestSearch() {
+            super(false);
+        }
+
+        @Override
+        int searchCell(int column, int row, float targetX, float targetY,
+                       float maxRadiusSq, NearestHeap nearest) {
+            int cell = findCell(key(column, row));
+            if (cell == EMPTY) {
+                return 0;
+            }
+            float[] px = store.px;
+            float[] py = store.py;
+            int start = cellStart[cell];
+            int end = cellStart[cell + 1];
+            for (int i = start; i < end; ++i) {
+                int member = sortedIds[i];
+                float dx = shortest(px[member] - targetX, spaceWidth);
+                float dy = shortest(py[member] - targetY, spaceHeight);
+                float distanceSq = dx * dx + dy * dy;
+                if (distanceSq < maxRadiusSq) {
+                    nearest.offer(member, dx, dy, distanceSq);
+                }
+            }
+            return end - start;
+        }
+    }
+
+}
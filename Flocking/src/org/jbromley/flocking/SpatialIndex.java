@@ -0,0 +1,126 @@
+// SpatialIndex.java
+// Common interface of the structures that bin boids by position.
+package org.jbromley.flocking;
+
+
+/**
+ * A spatial index over the boids of a {@link BoidStore}. The space is
+ * divided into a grid of cells and every boid id is binned into the cell
+ * containing its position, which lets neighbor queries skip boids that
+ * are far away.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public interface SpatialIndex {
+
+    /**
+     * Adds an entity to the index.
+     * @param id the id of the entity to be added
+     */
+    public void addEntity(int id);
+
+    /**
+     * Updates an entity already in the index after it has moved.
+     * @param id the id of the entity to be updated
+     * @param oldX the previous x-coordinate of the entity
+     * @param oldY the previous y-coordinate of the entity
+     */
+    public void updateEntity(int id, float oldX, float oldY);
+
+    /**
+     * Re-bins every entity from its current position in the store.
+     */
+    public void rebuild();
+
+    /**
+     * Returns the ids of all entities within a radius of a point.
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param queryRadius the radius of the query
+     * @return the ids of the entities found
+     */
+    public IntList getNeighborList(float targetX, float targetY,
+                                   float queryRadius);
+
+    /**
+     * Finds all entities within a radius of a point without allocating.
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param queryRadius the radius of the query
+     * @param neighbors the list that is cleared and receives the ids found
+     */
+    public void getNeighborList(float targetX, float targetY,
+                                float queryRadius, IntList neighbors);
+
+    /**
+     * Calls a visitor for every entity within a radius of a point. Nothing
+     * is allocated, distances are compared squared and the visitor may end
+     * the query early.
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param queryRadius the radius of the query
+     * @param visitor the callback that receives each entity found
+     */
+    public void forEachNeighbor(float targetX, float targetY,
+                                float queryRadius, NeighborVisitor visitor);
+
+    /**
+     * Finds the entities nearest to a point, searching outward from the
+     * cell holding the point ring by ring until no nearer entity can be
+     * found.
+     * @param targetX the x-coordinate of the query point
+     * @param targetY the y-coordinate of the query point
+     * @param maxRadius the distance beyond which entities are ignored
+     * @param nearest the heap, already reset to the number of entities
+     *                wanted, that receives the entities found
+     */
+    public void findNearest(float targetX, float targetY, float maxRadius,
+                            NearestHeap nearest);
+
+    public void setWrapMode(boolean useWrapping);
+
+    /**
+     * Moves the space divided into cells so that its top left corner lies
+     * at a point, rather than at the origin, and re-bins every entity from
+     * its current position in the store. Positions stay in the coordinates
+     * of the world.
+     * @param x the x-coordinate of the left edge of the space
+     * @param y the y-coordinate of the top edge of the space
+     */
+    public void setOrigin(float x, float y);
+
+    public boolean getWrapMode();
+
+    /**
+     * Divides the space into a new number of cells and re-bins every
+     * entity from its current position in the store.
+     * @param cellsX the number of horizontal cells
+     * @param cellsY the number of vertical cells
+     */
+    public void resize(int cellsX, int cellsY);
+
+    /**
+     * Removes all entities from the index.
+     */
+    public void clear();
+
+    /**
+     * Returns the number of cells in the index.
+     * @return the number of cells
+     */
+    public int getCellCount();
+
+    /**
+     * Returns the number of entities in a cell.
+     * @param cell the index of the cell
+     * @return the number of entities binned in the cell
+     */
+    public int getCellSize(int cell);
+
+    /**
+     * Calls a visitor for every entity in a cell, walking the cell once.
+     * @param cell the index of the cell
+     * @param visitor the callback that receives each entity of the cell
+     */
+    public void forEachCellMember(int cell, CellVisitor visitor);
+
+}
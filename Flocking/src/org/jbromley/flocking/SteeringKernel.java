@@ -0,0 +1,24 @@
+// SteeringKernel.java
+// Batched accumulation of the flocking sums over runs of candidates.
+package org.jbromley.flocking;
+
+
+/**
+ * A kernel that accumulates the separation, alignment and cohesion sums
+ * of one boid over the candidates in a set of cell runs. It computes the
+ * same sums as visiting every candidate with a {@link Neighborhood}, but
+ * it is handed whole runs of ids, so an implementation can test and sum
+ * several candidates at once. The sums may differ from the visitor's in
+ * the last bits, since they are added in a different order.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+interface SteeringKernel {
+
+    /**
+     * Adds the neighbors found in a set of runs to the sums.
+     * @param runs the cells covered by the neighbor query
+     * @param sums the accumulator, already reset for the boid
+     */
+    public void accumulate(CellRuns runs, Neighborhood sums);
+
+}
@@ -0,0 +1,237 @@
+// TrajectoryPlayer.java
+// Replays a trajectory file written by a TrajectoryRecorder.
+package org.jbromley.flocking;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * This class reads the frames of a trajectory file, in the format
+ * described by {@link TrajectoryRecorder}, back into a {@link BoidStore}
+ * so that a recorded flock can be drawn without simulating it. Frames
+ * can be read in any order, which allows scrubbing back and forth.
+ * <p>
+ * Opening the file indexes its frames by following the frame headers,
+ * stopping at the first one that is missing or incomplete, so a file
+ * whose recording was cut short can still be replayed up to that point.
+ * The file is then mapped read-only in segments of whole frames, and a
+ * frame is read with bulk copies straight from the mapping.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class TrajectoryPlayer {
+
+    /** The largest segment of the file mapped at once. */
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private float width;
+    private float height;
+    private float timeStep;
+
+    private int frameCount;
+    private long[] frameSteps;
+    private int[] frameBoids;
+    private int[] frameSegments;
+    private int[] frameOffsets;
+    private MappedByteBuffer[] segments;
+
+    /**
+     * Opens a trajectory file and indexes its frames.
+     * @param path the file to replay
+     * @throws IOException if the file cannot be read or is not a
+     *         trajectory file
+     */
+    public TrajectoryPlayer(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        try {
+            readHeader();
+            indexFrames();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads and checks the file header.
+     * @throws IOException if the header cannot be read or is not valid
+     */
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(TrajectoryRecorder.HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, 0);
+        if (header.getInt() != TrajectoryRecorder.FILE_MAGIC) {
+            throw new IOException("not a trajectory file");
+        }
+        int version = header.getInt();
+        if (version != TrajectoryRecorder.VERSION) {
+            throw new IOException("unsupported trajectory version " + version);
+        }
+        width = header.getFloat();
+        height = header.getFloat();
+        timeStep = header.getFloat();
+    }
+
+    /**
+     * Finds every complete frame and maps the file in segments that each
+     * hold whole frames.
+     * @throws IOException if the file cannot be read or mapped
+     */
+    private void indexFrames() throws IOException {
+        long length = channel.size();
+        ByteBuffer frameHeader = ByteBuffer.allocate(TrajectoryRecorder.FRAME_HEADER_SIZE);
+        frameHeader.order(ByteOrder.LITTLE_ENDIAN);
+        ArrayList<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+        frameSteps = new long[16];
+        frameBoids = new int[16];
+        frameSegments = new int[16];
+        frameOffsets = new int[16];
+        frameCount = 0;
+
+        long segmentStart = TrajectoryRecorder.HEADER_SIZE;
+        long position = segmentStart;
+        while (position + TrajectoryRecorder.FRAME_HEADER_SIZE <= length) {
+            frameHeader.clear();
+            readFully(frameHeader, position);
+            int count = frameHeader.getInt(4);
+            long size = TrajectoryRecorder.FRAME_HEADER_SIZE +
+                (long) TrajectoryRecorder.BYTES_PER_BOID * count;
+            if (frameHeader.getInt(0) != TrajectoryRecorder.FRAME_MAGIC ||
+                count < 0 || position + size > length ||
+                size > SEGMENT_SIZE) {
+                break;
+            }
+            if (position + size - segmentStart > SEGMENT_SIZE) {
+                mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+                                       position - segmentStart));
+                segmentStart = position;
+            }
+            if (frameCount == frameSteps.length) {
+                frameSteps = Arrays.copyOf(frameSteps, 2 * frameCount);
+                frameBoids = Arrays.copyOf(frameBoids, 2 * frameCount);
+                frameSegments = Arrays.copyOf(frameSegments, 2 * frameCount);
+                frameOffsets = Arrays.copyOf(frameOffsets, 2 * frameCount);
+            }
+            frameSteps[frameCount] = frameHeader.getLong(8);
+            frameBoids[frameCount] = count;
+            frameSegments[frameCount] = mapped.size();
+            frameOffsets[frameCount] = (int) (position - segmentStart);
+            ++frameCount;
+            position += size;
+        }
+        if (position > segmentStart) {
+            mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+                                   position - segmentStart));
+        }
+        segments = mapped.toArray(new MappedByteBuffer[mapped.size()]);
+    }
+
+    /**
+     * Reads a frame into a store, replacing its boids. Only the state that
+     * was recorded is set: the position, velocity, radius and color.
+     * @param frame the index of the frame
+     * @param store the store that receives the boids
+     */
+    public void readFrame(int frame, BoidStore store) {
+        int count = frameBoids[frame];
+        ByteBuffer data = segments[frameSegments[frame]].duplicate();
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        data.position(frameOffsets[frame] + TrajectoryRecorder.FRAME_HEADER_SIZE);
+        store.setSize(count);
+        getFloats(data, store.px, count);
+        getFloats(data, store.py, count);
+        getFloats(data, store.vx, count);
+        getFloats(data, store.vy, count);
+        getFloats(data, store.radius, count);
+        data.asIntBuffer().get(store.color, 0, count);
+    }
+
+    /**
+     * Returns the number of complete frames in the file.
+     * @return the number of frames
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the simulation step at which a frame was recorded.
+     * @param frame the index of the frame
+     * @return the step number
+     */
+    public long getStep(int frame) {
+        return frameSteps[frame];
+    }
+
+    /**
+     * Returns the number of boids in a frame.
+     * @param frame the index of the frame
+     * @return the number of boids
+     */
+    public int getBoidCount(int frame) {
+        return frameBoids[frame];
+    }
+
+    public float getWidth() {
+        return width;
+    }
+
+    public float getHeight() {
+        return height;
+    }
+
+    public float getTimeStep() {
+        return timeStep;
+    }
+
+    /**
+     * Closes the file. The mapped segments stay valid until they are
+     * garbage collected, but no frame may be read after closing.
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        segments = null;
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * Fills a buffer from the file.
+     * @param buffer the buffer to fill
+     * @param position the position in the file to read from
+     * @throws IOException if the file ends before the buffer is full
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of trajectory file");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Copies a block of floats out of a buffer in one bulk transfer.
+     * @param data the buffer, positioned at the block
+     * @param values the array that receives the floats
+     * @param count the number of floats
+     */
+    private static void getFloats(ByteBuffer data, float[] values, int count) {
+        data.asFloatBuffer().get(values, 0, count);
+        data.position(data.position() + 4 * count);
+    }
+
+}
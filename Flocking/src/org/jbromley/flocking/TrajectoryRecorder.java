@@ -0,0 +1,307 @@
+// TrajectoryRecorder.java
+// Records the state of a flock at every step to a memory-mapped file.
+package org.jbromley.flocking;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+/**
+ * This class records the position, velocity, radius and color of every
+ * boid after every step into a binary trajectory file, which a
+ * {@link TrajectoryPlayer} can replay without running the simulation.
+ * <p>
+ * The simulation thread only copies the state of the flock into a frame
+ * taken from a fixed pool and hands it to a background thread, which
+ * writes it through a window of the file mapped into memory. If the
+ * writer falls so far behind that the pool is empty, the frame is
+ * dropped rather than stalling the simulation; {@link #getDroppedFrames()}
+ * reports how many were lost.
+ * <p>
+ * The file is little-endian. It starts with a header of
+ * {@link #HEADER_SIZE} bytes:
+ * <pre>
+ *   int   magic          FILE_MAGIC
+ *   int   version        VERSION
+ *   float width          the size of the world
+ *   float height
+ *   float timeStep       the simulated time of a step in seconds
+ *   int   frameCount     the number of frames, written on close
+ *   long  reserved
+ * </pre>
+ * It is followed by one frame per recorded step. Each frame has a header
+ * of {@link #FRAME_HEADER_SIZE} bytes, holding the int
+ * {@link #FRAME_MAGIC}, the int number of boids <i>n</i> and the long
+ * step number, and then the blocks of <i>n</i> x-coordinates,
+ * y-coordinates, x-velocities, y-velocities and radii as floats and
+ * <i>n</i> colors as ARGB ints. Frames may hold different numbers of
+ * boids, since boids can be added while recording.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class TrajectoryRecorder {
+
+    /** The magic number at the start of a file, "FLKT" in ASCII. */
+    public static final int FILE_MAGIC = 0x544b4c46;
+    /** The magic number at the start of every frame, "FRAM" in ASCII. */
+    public static final int FRAME_MAGIC = 0x4d415246;
+    /** The version of the file format. */
+    public static final int VERSION = 1;
+    /** The size of the file header in bytes. */
+    public static final int HEADER_SIZE = 32;
+    /** The size of a frame header in bytes. */
+    public static final int FRAME_HEADER_SIZE = 16;
+    /** The bytes per boid in a frame: five floats and an int. */
+    public static final int BYTES_PER_BOID = 24;
+    /** The default number of frames that may wait for the writer. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+    /** The position of the frame count in the header. */
+    static final int FRAME_COUNT_OFFSET = 20;
+    /** The size of the mapped window the writer fills. */
+    private static final int WINDOW_SIZE = 64 << 20;
+
+    /** The frame that tells the writer to stop. */
+    private static final Frame END = new Frame();
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long written;
+    private int frameCount;
+
+    private ArrayBlockingQueue<Frame> free;
+    private ArrayBlockingQueue<Frame> pending;
+    private int pooled;
+    private int capacity;
+    private long dropped;
+    private Thread writer;
+    private volatile IOException failure;
+
+    /**
+     * Creates a recorder and starts its writer thread. An existing file
+     * is overwritten.
+     * @param path the file to record to
+     * @param width the width of the world
+     * @param height the height of the world
+     * @param timeStep the simulated time covered by one step in seconds
+     * @param queueCapacity the number of frames that may wait for the
+     *                      writer before frames are dropped
+     * @throws IOException if the file cannot be created
+     */
+    public TrajectoryRecorder(File path, float width, float height,
+                              float timeStep, int queueCapacity) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(FILE_MAGIC).putInt(VERSION);
+        header.putFloat(width).putFloat(height).putFloat(timeStep);
+        header.putInt(0).putLong(0L);
+        header.flip();
+        channel.write(header, 0);
+        written = HEADER_SIZE;
+        window = null;
+        frameCount = 0;
+
+        capacity = Math.max(1, queueCapacity);
+        free = new ArrayBlockingQueue<Frame>(capacity);
+        // One more slot than there are frames, so the end marker always fits.
+        pending = new ArrayBlockingQueue<Frame>(capacity + 1);
+        pooled = 0;
+        dropped = 0;
+        failure = null;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeFrames();
+            }
+        }, "trajectory-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Creates a recorder with the default queue capacity.
+     * @param path the file to record to
+     * @param width the width of the world
+     * @param height the height of the world
+     * @param timeStep the simulated time covered by one step in seconds
+     * @throws IOException if the file cannot be created
+     */
+    public TrajectoryRecorder(File path, float width, float height,
+                              float timeStep) throws IOException {
+        this(path, width, height, timeStep, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Queues the current state of a flock for writing. This copies the
+     * state and returns without waiting for the writer.
+     * @param store the store holding the boids
+     * @param step the number of the step the state belongs to
+     * @return true if the frame was queued, false if it was dropped
+     *         because the writer is behind or has failed
+     */
+    public boolean record(BoidStore store, long step) {
+        Frame frame = failure == null ? free.poll() : null;
+        if (frame == null) {
+            if (pooled == capacity || failure != null) {
+                ++dropped;
+                return false;
+            }
+            frame = new Frame();
+            ++pooled;
+        }
+        frame.copy(store, step);
+        pending.add(frame);
+        return true;
+    }
+
+    /**
+     * Returns the number of frames dropped because the writer was behind.
+     * @return the number of frames dropped
+     */
+    public long getDroppedFrames() {
+        return dropped;
+    }
+
+    /**
+     * Writes every queued frame, stops the writer and closes the file.
+     * @throws IOException if a frame or the header could not be written
+     */
+    public void close() throws IOException {
+        pending.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            window = null;
+            ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            count.putInt(frameCount).flip();
+            channel.write(count, FRAME_COUNT_OFFSET);
+            try {
+                // Mapping extends the file to the end of the last window.
+                // Some platforms refuse to shrink a file that is still
+                // mapped; the player ignores the zeros left behind.
+                channel.truncate(written);
+            } catch (IOException e) {
+                // Keep the longer file.
+            }
+        } finally {
+            channel.close();
+            file.close();
+        }
+    }
+
+    /**
+     * Writes frames as they arrive until the end marker is seen. After a
+     * failure the remaining frames are discarded.
+     */
+    private void writeFrames() {
+        while (true) {
+            Frame frame;
+            try {
+                frame = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame == END) {
+                return;
+            }
+            if (failure == null) {
+                try {
+                    write(frame);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            free.add(frame);
+        }
+    }
+
+    /**
+     * Writes one frame at the end of the file, mapping a new window first
+     * if the frame does not fit in the current one.
+     * @param frame the frame to write
+     * @throws IOException if the file cannot be mapped
+     */
+    private void write(Frame frame) throws IOException {
+        int count = frame.count;
+        int size = FRAME_HEADER_SIZE + BYTES_PER_BOID * count;
+        if (window == null || window.remaining() < size) {
+            window = channel.map(FileChannel.MapMode.READ_WRITE, written,
+                                 Math.max(WINDOW_SIZE, size));
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        window.putInt(FRAME_MAGIC).putInt(count).putLong(frame.step);
+        putFloats(frame.px, count);
+        putFloats(frame.py, count);
+        putFloats(frame.vx, count);
+        putFloats(frame.vy, count);
+        putFloats(frame.radius, count);
+        window.asIntBuffer().put(frame.color, 0, count);
+        window.position(window.position() + 4 * count);
+        written += size;
+        ++frameCount;
+    }
+
+    /**
+     * Copies a block of floats into the window in one bulk transfer.
+     * @param values the floats to copy
+     * @param count the number of floats
+     */
+    private void putFloats(float[] values, int count) {
+        window.asFloatBuffer().put(values, 0, count);
+        window.position(window.position() + 4 * count);
+    }
+
+
+    /**
+     * The state of a flock at one step, waiting to be written.
+     */
+    private static class Frame {
+        long step;
+        int count;
+        float[] px = new float[0];
+        float[] py = new float[0];
+        float[] vx = new float[0];
+        float[] vy = new float[0];
+        float[] radius = new float[0];
+        int[] color = new int[0];
+
+        /**
+         * Copies the state of every boid, growing the arrays if needed.
+         * @param store the store holding the boids
+         * @param stepNumber the number of the step
+         */
+        void copy(BoidStore store, long stepNumber) {
+            step = stepNumber;
+            count = store.size();
+            if (px.length < count) {
+                px = new float[count];
+                py = new float[count];
+                vx = new float[count];
+                vy = new float[count];
+                radius = new float[count];
+                color = new int[count];
+            }
+            System.arraycopy(store.px, 0, px, 0, count);
+            System.arraycopy(store.py, 0, py, 0, count);
+            System.arraycopy(store.vx, 0, vx, 0, count);
+            System.arraycopy(store.vy, 0, vy, 0, count);
+            System.arraycopy(store.radius, 0, radius, 0, count);
+            System.arraycopy(store.color, 0, color, 0, count);
+        }
+    }
+
+}
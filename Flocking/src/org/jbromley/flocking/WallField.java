@@ -0,0 +1,221 @@
+// WallField.java
+// Raster of the inside of the walls and the distance to them.
+package org.jbromley.flocking;
+
+
+import java.util.Arrays;
+
+
+/**
+ * This class rasterizes the walls of the world into a grid of small
+ * cells, each marked as inside the walls, outside them, or on a wall, and
+ * each holding the distance from its center to the nearest wall. Whether
+ * a point is inside the walls is then a single lookup unless the point is
+ * in a cell that a wall passes through, where the exact even-odd test of
+ * {@link WallGrid#crossingsRight} decides. The distances are only kept up
+ * to a range, beyond which a cell just records the range, and a lookup
+ * gives a lower bound on the distance from any point in the cell, which
+ * is enough to tell that a boid is clear of every wall.
+ * <p>
+ * The grid covers the bounding box of the walls, and everything outside
+ * it is outside the walls. Inside and outside follow the even-odd rule of
+ * a ray running to the right, so the walls should close an arena. The
+ * cells are made larger if the walls span more than {@link #MAX_CELLS}
+ * of them.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class WallField {
+
+    /** The most cells in a field. */
+    public static final int MAX_CELLS = 1 << 22;
+
+    private static final byte OUTSIDE = 0;
+    private static final byte INSIDE = 1;
+    private static final byte BOUNDARY = 2;
+
+    private WallGrid walls;
+    private float minX;
+    private float minY;
+    private float maxX;
+    private float maxY;
+    private int numberCellsX;
+    private int numberCellsY;
+    private float cellSize;
+    private float halfDiagonal;
+    private float range;
+    private byte[] state;
+    private float[] distance;
+
+    /**
+     * Creates the field of a set of walls.
+     * @param walls the grid holding the walls
+     * @param cellSize the size of a cell
+     * @param range the largest distance to a wall that is kept; it is
+     *              raised to the diagonal of a cell if it is less
+     */
+    public WallField(WallGrid walls, float cellSize, float range) {
+        this.walls = walls;
+        minX = walls.getMinX();
+        minY = walls.getMinY();
+        maxX = walls.getMaxX();
+        maxY = walls.getMaxY();
+        float spanX = maxX - minX;
+        float spanY = maxY - minY;
+        if (spanX * spanY > (double) MAX_CELLS * cellSize * cellSize) {
+            cellSize = (float) Math.sqrt(spanX * spanY / MAX_CELLS);
+        }
+        this.cellSize = cellSize;
+        numberCellsX = Math.max(1, (int) Math.ceil(spanX / cellSize));
+        numberCellsY = Math.max(1, (int) Math.ceil(spanY / cellSize));
+        halfDiagonal = cellSize * (float) Math.sqrt(0.5);
+        this.range = Math.max(range, 2.0f * halfDiagonal);
+
+        int cells = numberCellsX * numberCellsY;
+        state = new byte[cells];
+        distance = new float[cells];
+        Arrays.fill(distance, this.range);
+        for (int wall = 0; wall < walls.size(); ++wall) {
+            stampDistance(wall);
+        }
+        for (int row = 0; row < numberCellsY; ++row) {
+            fillRow(row);
+        }
+        for (int cell = 0; cell < cells; ++cell) {
+            // The walls may pass through any cell whose center is this near.
+            if (distance[cell] <= halfDiagonal) {
+                state[cell] = BOUNDARY;
+            }
+        }
+    }
+
+    /**
+     * Lowers the distances of the cells within range of a wall to the
+     * distance from their centers to the wall.
+     * @param wall the id of the wall
+     */
+    private void stampDistance(int wall) {
+        int left = column(walls.getX1(wall), walls.getX2(wall), -range);
+        int right = column(walls.getX1(wall), walls.getX2(wall), range);
+        int top = row(walls.getY1(wall), walls.getY2(wall), -range);
+        int bottom = row(walls.getY1(wall), walls.getY2(wall), range);
+        for (int row = top; row <= bottom; ++row) {
+            float y = minY + (row + 0.5f) * cellSize;
+            for (int column = left; column <= right; ++column) {
+                float x = minX + (column + 0.5f) * cellSize;
+                int cell = column + row * numberCellsX;
+                distance[cell] = Math.min(distance[cell], walls.distanceTo(wall, x, y));
+            }
+        }
+    }
+
+    /**
+     * Marks the cells of a row inside or outside the walls by casting a
+     * ray to the right from the center of each. The crossings of the row
+     * with the walls are sorted once, so a sweep from the right end of the
+     * row counts the crossings to the right of every cell.
+     * @param row the row to fill
+     */
+    private void fillRow(int row) {
+        float y = minY + (row + 0.5f) * cellSize;
+        float[] crossings = new float[8];
+        int count = 0;
+        for (int wall = 0; wall < walls.size(); ++wall) {
+            if (walls.spansHeight(wall, y)) {
+                if (count == crossings.length) {
+                    crossings = Arrays.copyOf(crossings, 2 * count);
+                }
+                crossings[count++] = walls.crossingAt(wall, y);
+            }
+        }
+        Arrays.sort(crossings, 0, count);
+
+        int next = count;
+        for (int column = numberCellsX - 1; column >= 0; --column) {
+            float x = minX + (column + 0.5f) * cellSize;
+            while (next > 0 && crossings[next - 1] > x) {
+                --next;
+            }
+            // The crossings to the right of the center are count - next.
+            state[column + row * numberCellsX] = (count - next) % 2 == 1 ? INSIDE : OUTSIDE;
+        }
+    }
+
+    /**
+     * Tests whether a point is inside the walls.
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @return true if the point is inside the walls
+     */
+    public boolean contains(float x, float y) {
+        if (!(x >= minX && x <= maxX && y >= minY && y <= maxY) || walls.size() == 0) {
+            return false;
+        }
+        byte inside = state[cellOf(x, y)];
+        if (inside == BOUNDARY) {
+            return walls.crossingsRight(x, y) % 2 == 1;
+        }
+        return inside == INSIDE;
+    }
+
+    /**
+     * Returns a lower bound on the distance from a point to the nearest
+     * wall. The bound is within the diagonal of a cell of the true
+     * distance, but never more than the range of the field.
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @return a distance no greater than the distance to the nearest wall
+     */
+    public float distanceToWall(float x, float y) {
+        if (walls.size() == 0) {
+            return Float.MAX_VALUE;
+        }
+        float dx = Math.max(0.0f, Math.max(minX - x, x - maxX));
+        float dy = Math.max(0.0f, Math.max(minY - y, y - maxY));
+        if (dx > 0.0f || dy > 0.0f) {
+            // Every wall is inside its bounding box.
+            return (float) Math.sqrt(dx * dx + dy * dy);
+        }
+        return Math.max(0.0f, distance[cellOf(x, y)] - halfDiagonal);
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public float getRange() {
+        return range;
+    }
+
+    /**
+     * Returns the cell holding a point within the bounding box.
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @return the index of the cell
+     */
+    private int cellOf(float x, float y) {
+        int column = Math.min(numberCellsX - 1, (int) ((x - minX) / cellSize));
+        int row = Math.min(numberCellsY - 1, (int) ((y - minY) / cellSize));
+        return column + row * numberCellsX;
+    }
+
+    /**
+     * Returns the column at one end of a span grown by a margin, clamped
+     * to the grid.
+     * @param a one end of the span
+     * @param b the other end of the span
+     * @param margin the margin, negative for the left end of the span
+     * @return the column
+     */
+    private int column(float a, float b, float margin) {
+        float x = margin < 0.0f ? Math.min(a, b) + margin : Math.max(a, b) + margin;
+        int column = (int) Math.floor((x - minX) / cellSize);
+        return Math.min(numberCellsX - 1, Math.max(0, column));
+    }
+
+    private int row(float a, float b, float margin) {
+        float y = margin < 0.0f ? Math.min(a, b) + margin : Math.max(a, b) + margin;
+        int row = (int) Math.floor((y - minY) / cellSize);
+        return Math.min(numberCellsY - 1, Math.max(0, row));
+    }
+
+}
@@ -0,0 +1,379 @@
+// WallGrid.java
+// Uniform grid over the wall segments of the world.
+package org.jbromley.flocking;
+
+
+import java.awt.geom.Line2D;
+import java.util.List;
+
+
+/**
+ * This class bins wall segments into a uniform grid so that a boid's
+ * feelers only have to be tested against the walls near the boid. Each
+ * wall is listed in every cell its segment passes through. The lists are
+ * kept in one array, with cell <code>c</code> holding the wall ids in
+ * <code>wallIds[cellStart[c]]</code> up to
+ * <code>wallIds[cellStart[c + 1]]</code>, and the segment end points are
+ * kept in primitive arrays so that intersection tests do not allocate.
+ * The grid only covers the bounding box of the walls, so its size does
+ * not depend on the size of the world.
+ * @author <a href="mailto:jbromley@gmail.com">J. Bromley</a>
+ */
+public class WallGrid {
+
+    private float[] x1;
+    private float[] y1;
+    private float[] x2;
+    private float[] y2;
+
+    private float minX;
+    private float minY;
+    private float maxX;
+    private float maxY;
+
+    private float originX;
+    private float originY;
+    private int numberCellsX;
+    private int numberCellsY;
+    private float cellSize;
+    private int[] cellStart;
+    private int[] wallIds;
+
+    /**
+     * Creates a grid over a list of walls.
+     * @param walls the wall segments
+     * @param cellSize the size of a grid cell
+     */
+    public WallGrid(List<Line2D.Float> walls, float cellSize) {
+        int count = walls.size();
+        x1 = new float[count];
+        y1 = new float[count];
+        x2 = new float[count];
+        y2 = new float[count];
+        for (int i = 0; i < count; ++i) {
+            Line2D.Float wall = walls.get(i);
+            x1[i] = wall.x1;
+            y1[i] = wall.y1;
+            x2[i] = wall.x2;
+            y2[i] = wall.y2;
+        }
+
+        float right = count > 0 ? -Float.MAX_VALUE : 0.0f;
+        float bottom = count > 0 ? -Float.MAX_VALUE : 0.0f;
+        originX = count > 0 ? Float.MAX_VALUE : 0.0f;
+        originY = count > 0 ? Float.MAX_VALUE : 0.0f;
+        for (int i = 0; i < count; ++i) {
+            originX = Math.min(originX, Math.min(x1[i], x2[i]));
+            originY = Math.min(originY, Math.min(y1[i], y2[i]));
+            right = Math.max(right, Math.max(x1[i], x2[i]));
+            bottom = Math.max(bottom, Math.max(y1[i], y2[i]));
+        }
+        minX = originX;
+        minY = originY;
+        maxX = right;
+        maxY = bottom;
+
+        this.cellSize = cellSize;
+        numberCellsX = Math.max(1, (int) Math.ceil((right - originX) / cellSize));
+        numberCellsY = Math.max(1, (int) Math.ceil((bottom - originY) / cellSize));
+        cellStart = new int[numberCellsX * numberCellsY + 1];
+
+        // Two passes over the walls: the first counts the walls per cell,
+        // the second writes them into place after a prefix sum.
+        forEachWallCell(null);
+        for (int cell = 0; cell < numberCellsX * numberCellsY; ++cell) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        wallIds = new int[cellStart[numberCellsX * numberCellsY]];
+        int[] cursor = new int[numberCellsX * numberCellsY];
+        System.arraycopy(cellStart, 0, cursor, 0, cursor.length);
+        forEachWallCell(cursor);
+    }
+
+    /**
+     * Returns the number of walls in the grid.
+     * @return the number of walls
+     */
+    public int size() {
+        return x1.length;
+    }
+
+    /**
+     * Finds the wall that a feeler crosses closest to its start.
+     * @param x the x-coordinate of the start of the feeler
+     * @param y the y-coordinate of the start of the feeler
+     * @param feelerX the x-component of the feeler
+     * @param feelerY the y-component of the feeler
+     * @return the id of the closest wall crossed, or -1 if there is none
+     */
+    public int closestWall(float x, float y, float feelerX, float feelerY) {
+        int left = column(Math.min(x, x + feelerX));
+        int right = column(Math.max(x, x + feelerX));
+        int top = row(Math.min(y, y + feelerY));
+        int bottom = row(Math.max(y, y + feelerY));
+
+        // A wall listed in several of these cells is simply tested again,
+        // which cannot change the closest hit.
+        int closest = -1;
+        float closestFraction = Float.MAX_VALUE;
+        for (int row = top; row <= bottom; ++row) {
+            for (int column = left; column <= right; ++column) {
+                int cell = column + row * numberCellsX;
+                int end = cellStart[cell + 1];
+                for (int i = cellStart[cell]; i < end; ++i) {
+                    int wall = wallIds[i];
+                    float r = intersectFeeler(wall, x, y, feelerX, feelerY);
+                    if (r > 0.0f && r < closestFraction) {
+                        closestFraction = r;
+                        closest = wall;
+                    }
+                }
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * Counts the walls crossed by a ray running from a point to the right
+     * forever, so that an odd count means the point is inside the walls.
+     * Only the cells in the ray's row are searched, and each crossing is
+     * counted in the cell that holds it, so a wall listed in several
+     * cells is counted once. A wall crosses the ray if the ray's height
+     * lies from the smaller y-coordinate of the wall up to, but not
+     * including, the larger one, so a ray through a joint between two
+     * walls counts it once.
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @return the number of walls crossed
+     */
+    public int crossingsRight(float x, float y) {
+        int row = row(y);
+        int crossings = 0;
+        for (int column = column(x); column < numberCellsX; ++column) {
+            float cellLeft = column == 0 ? -Float.MAX_VALUE : originX + column * cellSize;
+            float cellRight = column == numberCellsX - 1 ?
+                Float.MAX_VALUE : originX + (column + 1) * cellSize;
+            int cell = column + row * numberCellsX;
+            int end = cellStart[cell + 1];
+            for (int i = cellStart[cell]; i < end; ++i) {
+                int wall = wallIds[i];
+                if (!spansHeight(wall, y)) {
+                    continue;
+                }
+                float crossing = crossingAt(wall, y);
+                if (crossing > x && crossing >= cellLeft && crossing < cellRight) {
+                    ++crossings;
+                }
+            }
+        }
+        return crossings;
+    }
+
+    /**
+     * Tests whether a horizontal line crosses a wall, counting the end
+     * point with the smaller y-coordinate but not the other. Horizontal
+     * walls are never crossed.
+     * @param wall the id of the wall
+     * @param y the height of the line
+     * @return true if the line crosses the wall
+     */
+    boolean spansHeight(int wall, float y) {
+        return (y1[wall] <= y && y < y2[wall]) || (y2[wall] <= y && y < y1[wall]);
+    }
+
+    /**
+     * Returns where a horizontal line crosses a wall. The line must span
+     * the height of the wall, as tested by {@link #spansHeight}.
+     * @param wall the id of the wall
+     * @param y the height of the line
+     * @return the x-coordinate of the crossing
+     */
+    float crossingAt(int wall, float y) {
+        return x1[wall] + (y - y1[wall]) * (x2[wall] - x1[wall]) / (y2[wall] - y1[wall]);
+    }
+
+    /**
+     * Returns the distance from a point to a wall.
+     * @param wall the id of the wall
+     * @param x the x-coordinate of the point
+     * @param y the y-coordinate of the point
+     * @return the distance to the closest point of the wall
+     */
+    float distanceTo(int wall, float x, float y) {
+        float wallX = x2[wall] - x1[wall];
+        float wallY = y2[wall] - y1[wall];
+        float lengthSq = wallX * wallX + wallY * wallY;
+        float t = 0.0f;
+        if (lengthSq > 0.0f) {
+            t = ((x - x1[wall]) * wallX + (y - y1[wall]) * wallY) / lengthSq;
+            t = Math.max(0.0f, Math.min(1.0f, t));
+        }
+        float dx = x - (x1[wall] + t * wallX);
+        float dy = y - (y1[wall] + t * wallY);
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    float getX1(int wall) {
+        return x1[wall];
+    }
+
+    float getY1(int wall) {
+        return y1[wall];
+    }
+
+    float getX2(int wall) {
+        return x2[wall];
+    }
+
+    float getY2(int wall) {
+        return y2[wall];
+    }
+
+    /**
+     * Returns the left edge of the bounding box of the walls.
+     * @return the smallest x-coordinate of any wall
+     */
+    float getMinX() {
+        return minX;
+    }
+
+    float getMinY() {
+        return minY;
+    }
+
+    float getMaxX() {
+        return maxX;
+    }
+
+    float getMaxY() {
+        return maxY;
+    }
+
+    /**
+     * Intersects a feeler with a wall.
+     * @param wall the id of the wall
+     * @param x the x-coordinate of the start of the feeler
+     * @param y the y-coordinate of the start of the feeler
+     * @param feelerX the x-component of the feeler
+     * @param feelerY the y-component of the feeler
+     * @return the fraction of the feeler's length at which it crosses the
+     *         wall, or -1 if it does not cross it
+     */
+    public float intersectFeeler(int wall, float x, float y,
+                                 float feelerX, float feelerY) {
+        float wallX = x2[wall] - x1[wall];
+        float wallY = y2[wall] - y1[wall];
+        float rNumerator = (y - y1[wall]) * wallX - (x - x1[wall]) * wallY;
+        float sNumerator = (y - y1[wall]) * feelerX - (x - x1[wall]) * feelerY;
+        float det = feelerX * wallY - feelerY * wallX;
+
+        if (det == 0.0f) {
+            return -1.0f;
+        }
+
+        float r = rNumerator / det;
+        float s = sNumerator / det;
+        if (0.0f < r && r < 1.0f && 0.0f < s && s < 1.0f) {
+            return r;
+        }
+
+        return -1.0f;
+    }
+
+    /**
+     * Returns the x-component of a wall's unnormalized normal.
+     * @param wall the id of the wall
+     * @return the x-component of the normal
+     */
+    public float getNormalX(int wall) {
+        return -(y2[wall] - y1[wall]);
+    }
+
+    /**
+     * Returns the y-component of a wall's unnormalized normal.
+     * @param wall the id of the wall
+     * @return the y-component of the normal
+     */
+    public float getNormalY(int wall) {
+        return x2[wall] - x1[wall];
+    }
+
+    /**
+     * Visits every cell that each wall passes through. Without a cursor the
+     * walls are counted into the cell after the one they touch; with one
+     * their ids are written at the cursor.
+     * @param cursor the next free slot of each cell, or null to count
+     */
+    private void forEachWallCell(int[] cursor) {
+        for (int wall = 0; wall < x1.length; ++wall) {
+            int left = column(Math.min(x1[wall], x2[wall]));
+            int right = column(Math.max(x1[wall], x2[wall]));
+            int top = row(Math.min(y1[wall], y2[wall]));
+            int bottom = row(Math.max(y1[wall], y2[wall]));
+            for (int row = top; row <= bottom; ++row) {
+                for (int column = left; column <= right; ++column) {
+                    if (!touchesCell(wall, column, row)) {
+                        continue;
+                    }
+                    int cell = column + row * numberCellsX;
+                    if (cursor == null) {
+                        ++cellStart[cell + 1];
+                    } else {
+                        wallIds[cursor[cell]++] = wall;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests whether a wall passes through a cell by clipping the segment to
+     * the cell's rectangle. Cells on the edge of the grid extend to
+     * infinity, since positions outside the grid are clamped into them.
+     * @param wall the id of the wall
+     * @param column the column of the cell
+     * @param row the row of the cell
+     * @return true if some part of the wall lies in the cell
+     */
+    private boolean touchesCell(int wall, int column, int row) {
+        float left = column == 0 ? -Float.MAX_VALUE : originX + column * cellSize;
+        float right = column == numberCellsX - 1 ? Float.MAX_VALUE : originX + (column + 1) * cellSize;
+        float top = row == 0 ? -Float.MAX_VALUE : originY + row * cellSize;
+        float bottom = row == numberCellsY - 1 ? Float.MAX_VALUE : originY + (row + 1) * cellSize;
+
+        float dx = x2[wall] - x1[wall];
+        float dy = y2[wall] - y1[wall];
+        float t0 = 0.0f;
+        float t1 = 1.0f;
+        float[] p = { -dx, dx, -dy, dy };
+        float[] q = { x1[wall] - left, right - x1[wall],
+                      y1[wall] - top, bottom - y1[wall] };
+        for (int i = 0; i < 4; ++i) {
+            if (p[i] == 0.0f) {
+                if (q[i] < 0.0f) {
+                    return false;
+                }
+            } else {
+                float t = q[i] / p[i];
+                if (p[i] < 0.0f) {
+                    t0 = Math.max(t0, t);
+                } else {
+                    t1 = Math.min(t1, t);
+                }
+                if (t0 > t1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private int column(float x) {
+        return Math.min(numberCellsX - 1, Math.max(0, (int) Math.floor((x - originX) / cellSize)));
+    }
+
+    private int row(float y) {
+        return Math.min(numberCellsY - 1, Math.max(0, (int) Math.floor((y - originY) / cellSize)));
+    }
+
+}